@@ -0,0 +1,276 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Expands many rules over a window.
+ *
+ * <p>The jobs are grouped by timezone and rule so that jobs sharing
+ * them run one after the other on the same thread, where the calendars
+ * and the compiled rule are already to hand. A small number of tasks,
+ * at most the parallelism, are handed to the executor and each task
+ * takes whole groups until none are left - there is no handoff per
+ * job.</p>
+ *
+ * <p>Instances may be shared between threads.</p>
+ */
+public class BatchExpander {
+  private final Executor executor;
+
+  private final int parallelism;
+
+  /**
+   * The outcome of {@link #expand(Collection)}.
+   */
+  public static class BatchResult {
+    private final List<OccurrenceList> results;
+
+    private final BatchStatistics statistics;
+
+    BatchResult(final List<OccurrenceList> results,
+                final BatchStatistics statistics) {
+      this.results = results;
+      this.statistics = statistics;
+    }
+
+    /**
+     * @return the dates for each job in the order of the jobs
+     */
+    public List<OccurrenceList> getResults() {
+      return results;
+    }
+
+    public BatchStatistics getStatistics() {
+      return statistics;
+    }
+  }
+
+  /**
+   * Counts for one batch.
+   */
+  public static class BatchStatistics {
+    private final int jobs;
+
+    private final int groups;
+
+    private final int tasks;
+
+    private final long occurrences;
+
+    private final long elapsedNanos;
+
+    BatchStatistics(final int jobs,
+                    final int groups,
+                    final int tasks,
+                    final long occurrences,
+                    final long elapsedNanos) {
+      this.jobs = jobs;
+      this.groups = groups;
+      this.tasks = tasks;
+      this.occurrences = occurrences;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getJobs() {
+      return jobs;
+    }
+
+    /**
+     * @return number of distinct timezone and rule combinations
+     */
+    public int getGroups() {
+      return groups;
+    }
+
+    /**
+     * @return number of tasks given to the executor
+     */
+    public int getTasks() {
+      return tasks;
+    }
+
+    /**
+     * @return total number of occurrences produced
+     */
+    public long getOccurrences() {
+      return occurrences;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * @return jobs completed per second
+     */
+    public double getJobsPerSecond() {
+      return perSecond(jobs);
+    }
+
+    /**
+     * @return occurrences produced per second
+     */
+    public double getOccurrencesPerSecond() {
+      return perSecond(occurrences);
+    }
+
+    @Override
+    public String toString() {
+      return "BatchStatistics{jobs=" + jobs +
+              ", groups=" + groups +
+              ", tasks=" + tasks +
+              ", occurrences=" + occurrences +
+              ", elapsedMillis=" + elapsedNanos / 1000000 +
+              "}";
+    }
+
+    private double perSecond(final long val) {
+      if (elapsedNanos <= 0) {
+        return 0;
+      }
+
+      return val * 1e9 / elapsedNanos;
+    }
+  }
+
+  /**
+   * @param executor runs the tasks - null to run on the calling thread
+   * @param parallelism maximum number of tasks for a batch
+   */
+  public BatchExpander(final Executor executor,
+                       final int parallelism) {
+    this.executor = executor;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Expands the jobs and waits for them all to complete.
+   *
+   * @param jobs to expand
+   * @return the results and statistics
+   */
+  public BatchResult expand(final Collection<ExpansionJob> jobs) {
+    final OccurrenceList[] results = new OccurrenceList[jobs.size()];
+
+    final BatchStatistics stats =
+            run(new ArrayList<>(jobs),
+                (index, dates) -> results[index] = dates);
+
+    return new BatchResult(Arrays.asList(results), stats);
+  }
+
+  /**
+   * Expands the jobs passing each result to the sink as it completes.
+   * The sink is called from the executor's threads and must be thread
+   * safe. Returns once all the jobs have completed.
+   *
+   * @param jobs to expand
+   * @param sink receives each job and its dates
+   * @return the statistics for the batch
+   */
+  public BatchStatistics expand(
+          final Collection<ExpansionJob> jobs,
+          final BiConsumer<ExpansionJob, OccurrenceList> sink) {
+    final List<ExpansionJob> jobList = new ArrayList<>(jobs);
+
+    return run(jobList,
+               (index, dates) -> sink.accept(jobList.get(index), dates));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private interface ResultSink {
+    void accept(int index, OccurrenceList dates);
+  }
+
+  private BatchStatistics run(final List<ExpansionJob> jobs,
+                              final ResultSink sink) {
+    final long start = System.nanoTime();
+
+    // Indexes of the jobs in each group
+    final Map<String, List<Integer>> grouped = new LinkedHashMap<>();
+    for (int i = 0; i < jobs.size(); i++) {
+      grouped.computeIfAbsent(jobs.get(i).getGroupKey(),
+                              k -> new ArrayList<>())
+             .add(i);
+    }
+
+    final List<List<Integer>> groups = new ArrayList<>(grouped.values());
+    final AtomicInteger nextGroup = new AtomicInteger();
+    final AtomicLong occurrences = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    final Runnable task = () -> {
+      int g;
+      while ((failure.get() == null) &&
+              ((g = nextGroup.getAndIncrement()) < groups.size())) {
+        for (final int index: groups.get(g)) {
+          final OccurrenceList dates = jobs.get(index).expand();
+          occurrences.addAndGet(dates.size());
+          sink.accept(index, dates);
+        }
+      }
+    };
+
+    final int tasks;
+    if (executor == null) {
+      tasks = Math.min(1, groups.size());
+      task.run();
+    } else {
+      tasks = Math.min(parallelism, groups.size());
+      final CountDownLatch done = new CountDownLatch(tasks);
+
+      for (int i = 0; i < tasks; i++) {
+        executor.execute(() -> {
+          try {
+            task.run();
+          } catch (final Throwable t) {
+            failure.compareAndSet(null, t);
+          } finally {
+            done.countDown();
+          }
+        });
+      }
+
+      try {
+        done.await();
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(ie);
+      }
+    }
+
+    final Throwable t = failure.get();
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    }
+
+    if (t instanceof Error) {
+      throw (Error)t;
+    }
+
+    if (t != null) {
+      throw new IllegalStateException(t);
+    }
+
+    return new BatchStatistics(jobs.size(), groups.size(), tasks,
+                               occurrences.get(),
+                               System.nanoTime() - start);
+  }
+}
@@ -0,0 +1,146 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.util.TimeZones;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An index of the state of the expansion of a COUNT rule, kept for
+ * each seed the rule has been expanded with.
+ *
+ * <p>A COUNT rule cannot be started part way through as the number
+ * of occurrences before the window has to be known. As periods are
+ * expanded the number of occurrences generated before every
+ * n'th period is recorded so that later expansions can resume at
+ * the nearest recorded period before their window.</p>
+ *
+ * <p>The number of seeds and the number of checkpoints per seed are
+ * both bounded.</p>
+ */
+class CountCheckpoints {
+  /* Most recently used seeds retained */
+  private static final int maxSeeds = 32;
+
+  /* Checkpoints retained per seed */
+  private static final int maxCheckpoints = 4096;
+
+  /* Periods between checkpoints */
+  private final int interval;
+
+  private final Map<SeedKey, Checkpoints> seeds =
+          new LinkedHashMap<SeedKey, Checkpoints>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<SeedKey, Checkpoints> eldest) {
+              return size() > maxSeeds;
+            }
+          };
+
+  /* A seed and the zone it is expanded in. Zones sharing an id
+     but not their rules are different seeds. */
+  private static final class SeedKey {
+    private final long time;
+
+    private final boolean dateOnly;
+
+    private final TimeZone zone;
+
+    SeedKey(final Occurrence seed,
+            final TimeZone zone) {
+      time = seed.getDate().getTime();
+      dateOnly = seed.getDateOnly();
+      this.zone = zone;
+    }
+
+    @Override
+    public int hashCode() {
+      return (Long.hashCode(time) * 31 + Boolean.hashCode(dateOnly)) * 31 +
+              zone.getID().hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof SeedKey)) {
+        return false;
+      }
+
+      final SeedKey that = (SeedKey)o;
+
+      return (time == that.time) && (dateOnly == that.dateOnly) &&
+              TimeZones.isSameZone(zone, that.zone);
+    }
+  }
+
+  /**
+   * The ordinal of the first occurrence in periods
+   * 0, interval, 2 * interval, ...
+   */
+  static class Checkpoints {
+    private int[] ordinals = new int[16];
+
+    private int size;
+
+    /**
+     * @param checkpoint number of the checkpoint
+     * @param ordinal number of occurrences before the period
+     */
+    synchronized void record(final int checkpoint,
+                             final int ordinal) {
+      // Checkpoints are only ever appended in order
+      if ((checkpoint != size) || (size == maxCheckpoints)) {
+        return;
+      }
+
+      if (size == ordinals.length) {
+        ordinals = Arrays.copyOf(ordinals, size * 2);
+      }
+
+      ordinals[size] = ordinal;
+      size++;
+    }
+
+    /**
+     * @param checkpoint the highest checkpoint wanted
+     * @return the highest recorded checkpoint not above the one
+     *         wanted or -1 for none
+     */
+    synchronized int floor(final int checkpoint) {
+      return Math.min(checkpoint, size - 1);
+    }
+
+    synchronized int getOrdinal(final int checkpoint) {
+      return ordinals[checkpoint];
+    }
+  }
+
+  /**
+   * @param interval number of periods between checkpoints
+   */
+  CountCheckpoints(final int interval) {
+    this.interval = interval;
+  }
+
+  int getInterval() {
+    return interval;
+  }
+
+  /**
+   * @param seed the start of the recurrence
+   * @param zone the timezone the seed is expanded in
+   * @return the checkpoints for that seed - never null
+   */
+  Checkpoints forSeed(final Occurrence seed,
+                      final TimeZone zone) {
+    final SeedKey key = new SeedKey(seed, zone);
+
+    synchronized (seeds) {
+      return seeds.computeIfAbsent(key, k -> new Checkpoints());
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+/**
+ * The occurrences of a recurrence in a window together with the state
+ * needed to carry on past its end.
+ *
+ * <p>{@link #extend(Occurrence)} returns the occurrences after the end
+ * of this window up to a later date. The expansion resumes in the
+ * period it stopped in, with the candidates of that period not yet
+ * returned and the number of occurrences counted so far, so only the
+ * new part of the window is expanded.</p>
+ *
+ * <p>An instance is not changed by extending it, so it may be
+ * extended more than once. Instances may be shared between threads
+ * but the dates returned should not be modified.</p>
+ *
+ * <p>Instances are obtained from
+ * {@link Recur#expand(Occurrence, Occurrence, Occurrence)}.</p>
+ */
+public class Expansion {
+  private final OccurrenceList dates;
+
+  private final Occurrence periodEnd;
+
+  /* Positioned at the first occurrence after periodEnd. It is never
+     advanced, only copied. */
+  private final OccurrenceIterator state;
+
+  /**
+   * @param dates in the window
+   * @param periodEnd end of the window
+   * @param state positioned after the end
+   */
+  Expansion(final OccurrenceList dates,
+            final Occurrence periodEnd,
+            final OccurrenceIterator state) {
+    this.dates = dates;
+    this.periodEnd = periodEnd;
+    this.state = state;
+  }
+
+  /**
+   * @return the dates in the window
+   */
+  public OccurrenceList getDates() {
+    return dates;
+  }
+
+  /**
+   * @return the end of the window
+   */
+  public Occurrence getPeriodEnd() {
+    return periodEnd;
+  }
+
+  /**
+   * @return true if there are no occurrences after the window
+   */
+  public boolean isComplete() {
+    // Already looked at so this does not advance the state
+    return state.peek() == null;
+  }
+
+  /**
+   * Expands the occurrences after the end of this window up to a new
+   * end. The dates of the result are only those after the end of this
+   * window. An end not after the current one gives no dates and the
+   * same end.
+   *
+   * @param end the end of the extended window
+   * @return the dates after this window up to end inclusive
+   */
+  public Expansion extend(final Occurrence end) {
+    if (!end.after(periodEnd)) {
+      return expand(state, dates, periodEnd);
+    }
+
+    return expand(state.copy(), dates, end);
+  }
+
+  /* ====================================================================
+   *                   Package methods
+   * ==================================================================== */
+
+  /**
+   * @param it positioned at the first occurrence to return
+   * @param like supplies the form of the list
+   * @param end the end of the window
+   * @return the dates up to end and the state after them
+   */
+  static Expansion expand(final OccurrenceIterator it,
+                          final OccurrenceList like,
+                          final Occurrence end) {
+    final OccurrenceList res = new OccurrenceList(like.getDateOnly());
+    if (!like.getDateOnly()) {
+      if (like.getUtc()) {
+        res.setUtc(true);
+      } else {
+        res.setTimeZone(like.getTimeZone());
+      }
+    }
+
+    while (true) {
+      final Occurrence next = it.peek();
+
+      // candidates exclusive of periodEnd..
+      if ((next == null) || next.after(end)) {
+        break;
+      }
+
+      res.add(it.next());
+    }
+
+    return new Expansion(res, end, it);
+  }
+}
@@ -0,0 +1,79 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import net.fortuna.recur.ExpansionResult.Truncation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The period, time and cancellation limits of one expansion. Checked
+ * before each period is examined.
+ *
+ * <p>Instances are not thread safe.</p>
+ */
+class ExpansionBudget {
+  private final long maxPeriods;
+
+  private final boolean timed;
+
+  /* System.nanoTime() */
+  private final long deadline;
+
+  private final BooleanSupplier cancelled;
+
+  private long periods;
+
+  private Truncation truncation;
+
+  /**
+   * @param options the limits - the timeout starts now
+   */
+  ExpansionBudget(final ExpansionOptions options) {
+    maxPeriods = options.getMaxPeriods();
+    timed = options.getTimeout() >= 0;
+    if (timed) {
+      deadline = System.nanoTime() +
+              TimeUnit.MILLISECONDS.toNanos(options.getTimeout());
+    } else {
+      deadline = 0;
+    }
+    cancelled = options.getCancelled();
+  }
+
+  /**
+   * @return false if the next period is not to be examined
+   */
+  boolean enterPeriod() {
+    if (truncation != null) {
+      return false;
+    }
+
+    if ((maxPeriods >= 0) && (periods >= maxPeriods)) {
+      truncation = Truncation.MaxPeriods;
+      return false;
+    }
+
+    if (timed && (System.nanoTime() - deadline >= 0)) {
+      truncation = Truncation.Deadline;
+      return false;
+    }
+
+    if ((cancelled != null) && cancelled.getAsBoolean()) {
+      truncation = Truncation.Cancelled;
+      return false;
+    }
+
+    periods++;
+    return true;
+  }
+
+  /**
+   * @return the limit reached - null if none
+   */
+  Truncation getTruncation() {
+    return truncation;
+  }
+}
@@ -0,0 +1,444 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.Gregorian;
+import net.fortuna.recur.engine.ZoneConverter;
+import net.fortuna.recur.util.TimeZones;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of expanded occurrences split into calendar months.
+ *
+ * <p>The occurrences of a series - a rule and a seed - are cached a
+ * month at a time, the months being those of the timezone of the seed
+ * (the default timezone for a floating seed). A request for a window
+ * is answered from the cached months it covers and only the missing
+ * months are expanded, so overlapping windows such as successive week
+ * views share the work. Months with no occurrences are cached too.</p>
+ *
+ * <p>The dates held for a month are those it has as part of any longer
+ * window, unless a period can have candidates outside itself - rules
+ * with BYWEEKNO and sub-daily rules whose BYDAY is expanded beyond the
+ * period - or the expansion of the month is abandoned after too many
+ * periods without candidates (see
+ * {@link Recur#setMaxIncrementCount(int)}). Such rules, and windows
+ * with such a month, are expanded directly and not cached.</p>
+ *
+ * <p>The size of the cache is bounded by its total weight - the number
+ * of occurrences held plus one for each month. The least recently used
+ * months are dropped to keep within the bound.</p>
+ *
+ * <p>Rules are matched by value (see {@link Recur#equals(Object)}) so
+ * equivalent rules share their entries. Instances may be shared
+ * between threads.</p>
+ */
+public class ExpansionCache {
+  private static final long[] none = new long[0];
+
+  /* Reports an expansion abandoned after too many empty periods */
+  private static final ExpansionOptions unlimited =
+          new ExpansionOptions.Builder().build();
+
+  private final long maxWeight;
+
+  /* Guarded by buckets */
+  private long weight;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  private final Map<BucketKey, long[]> buckets =
+          new LinkedHashMap<>(16, 0.75f, true);
+
+  /* A rule and seed */
+  private static final class SeriesKey {
+    private final Recur recur;
+
+    private final long seed;
+
+    private final boolean dateOnly;
+
+    private final boolean floating;
+
+    /* UTC, the seed's timezone or the default for a floating seed.
+       Zones sharing an id but not their rules are different series. */
+    private final TimeZone zone;
+
+    SeriesKey(final Recur recur,
+              final Occurrence seed,
+              final TimeZone zone) {
+      this.recur = recur;
+      this.seed = seed.getDate().getTime();
+      dateOnly = seed.getDateOnly();
+      floating = seed.isFloating();
+      this.zone = zone;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof SeriesKey)) {
+        return false;
+      }
+
+      final SeriesKey that = (SeriesKey)o;
+      return (seed == that.seed) && (dateOnly == that.dateOnly) &&
+              (floating == that.floating) &&
+              TimeZones.isSameZone(zone, that.zone) &&
+              recur.equals(that.recur);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(recur.getFingerprint() * 31 + seed) ^
+              zone.getID().hashCode();
+    }
+  }
+
+  private static final class BucketKey {
+    private final SeriesKey series;
+
+    /* Months since 1970-01 */
+    private final long month;
+
+    BucketKey(final SeriesKey series,
+              final long month) {
+      this.series = series;
+      this.month = month;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof BucketKey)) {
+        return false;
+      }
+
+      final BucketKey that = (BucketKey)o;
+      return (month == that.month) && series.equals(that.series);
+    }
+
+    @Override
+    public int hashCode() {
+      return series.hashCode() * 31 + Long.hashCode(month);
+    }
+  }
+
+  /**
+   * @param maxWeight maximum number of occurrences and months held
+   */
+  public ExpansionCache(final long maxWeight) {
+    if (maxWeight < 1) {
+      throw new IllegalArgumentException("maxWeight must be positive: " +
+                                                 maxWeight);
+    }
+
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Returns the same dates as
+   * {@link Recur#getDates(Occurrence, Occurrence, Occurrence)}.
+   *
+   * @param recur       the rule
+   * @param seed        the start date of the first instance
+   * @param periodStart the start of the period
+   * @param periodEnd   the end of the period
+   * @return a list of dates
+   */
+  public OccurrenceList getDates(final Recur recur,
+                                 final Occurrence seed,
+                                 final Occurrence periodStart,
+                                 final Occurrence periodEnd) {
+    return getDates(recur, seed, periodStart, periodEnd, -1);
+  }
+
+  /**
+   * Returns the same dates as
+   * {@link Recur#getDates(Occurrence, Occurrence, Occurrence, int)}.
+   *
+   * @param recur       the rule
+   * @param seed        the start date of the first instance
+   * @param periodStart the start of the period
+   * @param periodEnd   the end of the period
+   * @param maxCount    limits the number of instances returned. Less
+   *                    than 0 means no limit
+   * @return a list of dates
+   */
+  public OccurrenceList getDates(final Recur recur,
+                                 final Occurrence seed,
+                                 final Occurrence periodStart,
+                                 final Occurrence periodEnd,
+                                 final int maxCount) {
+    final boolean dateOnly = seed.getDateOnly();
+    final OccurrenceList dates = new OccurrenceList(dateOnly);
+    if (!dateOnly) {
+      if (seed.getUtc()) {
+        dates.setUtc(true);
+      } else {
+        dates.setTimeZone(seed.getTimeZone());
+      }
+    }
+
+    final long start = periodStart.getDate().getTime();
+    final long end = periodEnd.getDate().getTime();
+    if ((end < start) || (maxCount == 0)) {
+      return dates;
+    }
+
+    if (recur.leavesPeriods()) {
+      return recur.getDates(seed, periodStart, periodEnd, maxCount);
+    }
+
+    final TimeZone tz;
+    if (seed.isFloating()) {
+      tz = TimeZone.getDefault();
+    } else if (seed.getUtc() || (seed.getTimeZone() == null)) {
+      tz = TimeZones.getUtcTimeZone();
+    } else {
+      tz = seed.getTimeZone();
+    }
+
+    final ZoneConverter zone = CalendarBackend.getDefault()
+                                              .getZoneConverter(tz);
+    final SeriesKey series = new SeriesKey(recur, seed, tz);
+
+    long month = monthOf(zone, start);
+    if (monthStart(zone, month) > start) {
+      month--;
+    }
+
+    while (true) {
+      final long from = monthStart(zone, month);
+      if (from > end) {
+        break;
+      }
+
+      final long to = monthStart(zone, month + 1) - 1;
+
+      final long[] vals = bucket(recur, seed, series, month, from, to);
+      if (vals == null) {
+        return recur.getDates(seed, periodStart, periodEnd, maxCount);
+      }
+
+      for (final long val: vals) {
+        if (val < start) {
+          continue;
+        }
+
+        if (val > end) {
+          return dates;
+        }
+
+        dates.add(Occurrence.getInstanceLike(new Date(val), seed));
+        if (dates.size() == maxCount) {
+          return dates;
+        }
+      }
+
+      month++;
+    }
+
+    return dates;
+  }
+
+  /**
+   * @return maximum weight held
+   */
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  /**
+   * @return number of occurrences and months currently held
+   */
+  public long getWeight() {
+    synchronized (buckets) {
+      return weight;
+    }
+  }
+
+  /**
+   * @return number of months currently held
+   */
+  public int size() {
+    synchronized (buckets) {
+      return buckets.size();
+    }
+  }
+
+  /**
+   * Removes everything. The statistics are unchanged.
+   */
+  public void clear() {
+    synchronized (buckets) {
+      buckets.clear();
+      weight = 0;
+    }
+  }
+
+  /**
+   * @return number of months found in the cache
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of months which were expanded
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return number of months dropped to stay within the maximum weight
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return fraction of months found in the cache - 0 if none
+   */
+  public double getHitRate() {
+    final long h = hits.sum();
+    final long total = h + misses.sum();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    return (double)h / total;
+  }
+
+  /**
+   * Zeroes the hit, miss and eviction counts.
+   */
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "ExpansionCache{months=" + size() +
+            ", weight=" + getWeight() +
+            ", maxWeight=" + maxWeight +
+            ", hits=" + getHits() +
+            ", misses=" + getMisses() +
+            ", evictions=" + getEvictions() +
+            "}";
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /**
+   * @return the occurrences from from to to inclusive - ascending. null
+   *         if the expansion was abandoned so may have missed some
+   */
+  private long[] bucket(final Recur recur,
+                        final Occurrence seed,
+                        final SeriesKey series,
+                        final long month,
+                        final long from,
+                        final long to) {
+    final BucketKey key = new BucketKey(series, month);
+
+    synchronized (buckets) {
+      final long[] vals = buckets.get(key);
+      if (vals != null) {
+        hits.increment();
+        return vals;
+      }
+    }
+
+    misses.increment();
+
+    final ExpansionResult res =
+            recur.getDates(seed,
+                           Occurrence.getInstanceLike(new Date(from), seed),
+                           Occurrence.getInstanceLike(new Date(to), seed),
+                           unlimited);
+    if (res.isTruncated()) {
+      return null;
+    }
+
+    final OccurrenceList dates = res.getDates();
+
+    final long[] vals;
+    if (dates.isEmpty()) {
+      vals = none;
+    } else {
+      vals = new long[dates.size()];
+      for (int i = 0; i < vals.length; i++) {
+        vals[i] = dates.get(i).getDate().getTime();
+      }
+    }
+
+    synchronized (buckets) {
+      final long[] prev = buckets.putIfAbsent(key, vals);
+      if (prev != null) {
+        return prev;
+      }
+
+      weight += weightOf(vals);
+      evict();
+    }
+
+    return vals;
+  }
+
+  /* Called holding the lock */
+  private void evict() {
+    final Iterator<long[]> it = buckets.values().iterator();
+
+    // Always keep the most recent month
+    while ((weight > maxWeight) && (buckets.size() > 1)) {
+      weight -= weightOf(it.next());
+      it.remove();
+      evictions.increment();
+    }
+  }
+
+  private static long weightOf(final long[] vals) {
+    return vals.length + 1;
+  }
+
+  /**
+   * @return the month containing the time in the zone
+   */
+  private static long monthOf(final ZoneConverter zone,
+                              final long epochMillis) {
+    final int civil = Gregorian.civil(Gregorian.epochDayOf(
+            zone.toLocal(epochMillis)));
+
+    return (Gregorian.year(civil) - 1970L) * 12 +
+            Gregorian.month(civil) - 1;
+  }
+
+  /**
+   * @return the first instant of the month in the zone
+   */
+  private static long monthStart(final ZoneConverter zone,
+                                 final long month) {
+    final int year = (int)(1970 + Math.floorDiv(month, 12));
+    final int m = Math.floorMod(month, 12) + 1;
+
+    return zone.toEpoch(Gregorian.epochDay(year, m, 1) *
+                                Gregorian.MILLIS_PER_DAY);
+  }
+}
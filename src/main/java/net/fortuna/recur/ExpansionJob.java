@@ -0,0 +1,83 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+/**
+ * One expansion for a {@link BatchExpander}: the arguments to
+ * {@link Recur#getDates(Occurrence, Occurrence, Occurrence, int)}.
+ */
+public class ExpansionJob {
+  private final Recur recur;
+
+  private final Occurrence seed;
+
+  private final Occurrence periodStart;
+
+  private final Occurrence periodEnd;
+
+  private final int maxCount;
+
+  /**
+   * @param recur       the rule
+   * @param seed        the start date of the first instance
+   * @param periodStart the start of the period
+   * @param periodEnd   the end of the period
+   * @param maxCount    limits the number of instances returned. Less
+   *                    than 0 means no limit
+   */
+  public ExpansionJob(final Recur recur,
+                      final Occurrence seed,
+                      final Occurrence periodStart,
+                      final Occurrence periodEnd,
+                      final int maxCount) {
+    this.recur = recur;
+    this.seed = seed;
+    this.periodStart = periodStart;
+    this.periodEnd = periodEnd;
+    this.maxCount = maxCount;
+  }
+
+  public Recur getRecur() {
+    return recur;
+  }
+
+  public Occurrence getSeed() {
+    return seed;
+  }
+
+  public Occurrence getPeriodStart() {
+    return periodStart;
+  }
+
+  public Occurrence getPeriodEnd() {
+    return periodEnd;
+  }
+
+  public int getMaxCount() {
+    return maxCount;
+  }
+
+  /**
+   * @return the dates for this job
+   */
+  OccurrenceList expand() {
+    return recur.getDates(seed, periodStart, periodEnd, maxCount);
+  }
+
+  /**
+   * @return key grouping jobs which share a timezone and rule
+   */
+  String getGroupKey() {
+    final String tzid;
+    if (seed.getUtc()) {
+      tzid = "UTC";
+    } else if (seed.getTimeZone() == null) {
+      tzid = "";
+    } else {
+      tzid = seed.getTimeZone().getID();
+    }
+
+    return tzid + "|" + recur.getCanonicalForm();
+  }
+}
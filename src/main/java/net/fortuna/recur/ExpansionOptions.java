@@ -0,0 +1,151 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import java.util.Date;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits on the work done by a single expansion.
+ *
+ * <p>An expansion which reaches a limit stops and returns what it has
+ * found so far, with the reason it stopped (see
+ * {@link ExpansionResult#getTruncation()}). Limits which are not set
+ * do not apply.</p>
+ *
+ * <ul>
+ *   <li>maxPeriods - the number of periods (of the rule frequency)
+ *   examined, whether or not they have occurrences</li>
+ *   <li>maxOccurrences - the number of occurrences returned</li>
+ *   <li>timeout - milliseconds from the start of the expansion</li>
+ *   <li>horizon - no occurrences after this are returned for a rule
+ *   with neither a COUNT nor an UNTIL</li>
+ *   <li>cancelled - polled before each period. The expansion stops
+ *   once it returns true</li>
+ * </ul>
+ *
+ * <p>Instances are immutable and may be shared, though a cancellation
+ * flag is usually specific to one request.</p>
+ */
+public class ExpansionOptions {
+  private final long maxPeriods;
+
+  private final int maxOccurrences;
+
+  private final long timeout;
+
+  private final Date horizon;
+
+  private final BooleanSupplier cancelled;
+
+  private ExpansionOptions(final long maxPeriods,
+                           final int maxOccurrences,
+                           final long timeout,
+                           final Date horizon,
+                           final BooleanSupplier cancelled) {
+    this.maxPeriods = maxPeriods;
+    this.maxOccurrences = maxOccurrences;
+    this.timeout = timeout;
+    this.horizon = horizon;
+    this.cancelled = cancelled;
+  }
+
+  /**
+   * @return maximum number of periods examined - less than 0 for no
+   *         limit
+   */
+  public long getMaxPeriods() {
+    return maxPeriods;
+  }
+
+  /**
+   * @return maximum number of occurrences returned - less than 0 for
+   *         no limit
+   */
+  public int getMaxOccurrences() {
+    return maxOccurrences;
+  }
+
+  /**
+   * @return milliseconds allowed for the expansion - less than 0 for
+   *         no limit
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @return the last date returned for an unbounded rule - null for
+   *         no limit
+   */
+  public Date getHorizon() {
+    return horizon;
+  }
+
+  /**
+   * @return true once the expansion is to stop - null if it cannot be
+   *         cancelled
+   */
+  public BooleanSupplier getCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public String toString() {
+    return "ExpansionOptions{maxPeriods=" + maxPeriods +
+            ", maxOccurrences=" + maxOccurrences +
+            ", timeout=" + timeout +
+            ", horizon=" + horizon +
+            ", cancellable=" + (cancelled != null) +
+            "}";
+  }
+
+  /**
+   * Support for building ExpansionOptions instances.
+   */
+  public static class Builder {
+    private long maxPeriods = -1;
+
+    private int maxOccurrences = -1;
+
+    private long timeout = -1;
+
+    private Date horizon;
+
+    private BooleanSupplier cancelled;
+
+    public Builder maxPeriods(final long maxPeriods) {
+      this.maxPeriods = maxPeriods;
+      return this;
+    }
+
+    public Builder maxOccurrences(final int maxOccurrences) {
+      this.maxOccurrences = maxOccurrences;
+      return this;
+    }
+
+    public Builder timeout(final long timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    public Builder horizon(final Date horizon) {
+      this.horizon = horizon;
+      return this;
+    }
+
+    public Builder cancelled(final BooleanSupplier cancelled) {
+      this.cancelled = cancelled;
+      return this;
+    }
+
+    public ExpansionOptions build() {
+      return new ExpansionOptions(maxPeriods,
+                                  maxOccurrences,
+                                  timeout,
+                                  horizon,
+                                  cancelled);
+    }
+  }
+}
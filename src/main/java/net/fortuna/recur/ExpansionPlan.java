@@ -0,0 +1,177 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.Calendar;
+import net.fortuna.recur.Recur.Frequency;
+import net.fortuna.recur.transform.ByDayRule;
+import net.fortuna.recur.transform.ByMonthDayRule;
+import net.fortuna.recur.transform.Transformer;
+import org.slf4j.Logger;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The BY* rules of a recurrence resolved once into the ordered array
+ * of stages applied to each period.
+ *
+ * <p>Where RFC5545 requires the day of the month or the day of the
+ * week to be taken from the seed the stage selects a rule from a small
+ * table indexed by that value. The rules are built the first time each
+ * value is seen so no transformer is constructed per period.</p>
+ */
+class ExpansionPlan implements Serializable {
+  private static final long serialVersionUID = 6278314744523580143L;
+
+  private final Stage[] stages;
+
+  /**
+   * A step in the expansion of a period.
+   */
+  abstract static class Stage implements Serializable {
+    private static final long serialVersionUID = 8178487946830493815L;
+
+    private final String name;
+
+    Stage(final String name) {
+      this.name = name;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @param rootSeed start of the first period
+     * @return the transformer to apply
+     */
+    abstract Transformer getTransformer(Calendar rootSeed);
+  }
+
+  /**
+   * Applies a transformer built from an explicit rule part.
+   */
+  static class RuleStage extends Stage {
+    private static final long serialVersionUID = -7135090535216748403L;
+
+    private final Transformer transformer;
+
+    RuleStage(final String name,
+              final Transformer transformer) {
+      super(name);
+      this.transformer = transformer;
+    }
+
+    @Override
+    Transformer getTransformer(final Calendar rootSeed) {
+      return transformer;
+    }
+  }
+
+  /**
+   * Expands to the day of the month of the seed.
+   */
+  static class ImplicitMonthDayStage extends Stage {
+    private static final long serialVersionUID = 6796619034484074658L;
+
+    private final Frequency frequency;
+
+    private final WeekDay.Day weekStartDay;
+
+    /* Indexed by day of month */
+    private final Transformer[] rules =
+            new Transformer[Recur.MAX_DAYS_PER_MONTH + 1];
+
+    ImplicitMonthDayStage(final Frequency frequency,
+                          final WeekDay.Day weekStartDay) {
+      super("implicit BYMONTHDAY");
+      this.frequency = frequency;
+      this.weekStartDay = weekStartDay;
+    }
+
+    @Override
+    Transformer getTransformer(final Calendar rootSeed) {
+      final int day = rootSeed.get(Calendar.DAY_OF_MONTH);
+      Transformer rule = rules[day];
+
+      if (rule == null) {
+        final NumberList monthDays = new NumberList();
+        monthDays.add(day);
+        rule = new ByMonthDayRule(monthDays, frequency, weekStartDay);
+        rules[day] = rule;
+      }
+
+      return rule;
+    }
+  }
+
+  /**
+   * Expands to the day of the week of the seed.
+   */
+  static class ImplicitDayStage extends Stage {
+    private static final long serialVersionUID = 807245392750664142L;
+
+    private final Frequency filterType;
+
+    private final WeekDay.Day weekStartDay;
+
+    /* Indexed by Calendar day of week */
+    private final Transformer[] rules =
+            new Transformer[Calendar.SATURDAY + 1];
+
+    ImplicitDayStage(final Frequency filterType,
+                     final WeekDay.Day weekStartDay) {
+      super("implicit BYDAY");
+      this.filterType = filterType;
+      this.weekStartDay = weekStartDay;
+    }
+
+    @Override
+    Transformer getTransformer(final Calendar rootSeed) {
+      final int day = rootSeed.get(Calendar.DAY_OF_WEEK);
+      Transformer rule = rules[day];
+
+      if (rule == null) {
+        rule = new ByDayRule(new WeekDayList(WeekDay.getWeekDay(rootSeed)),
+                             filterType, weekStartDay);
+        rules[day] = rule;
+      }
+
+      return rule;
+    }
+  }
+
+  /**
+   * @param stages in the order they are applied
+   */
+  ExpansionPlan(final List<Stage> stages) {
+    this.stages = stages.toArray(new Stage[0]);
+  }
+
+  /**
+   * Applies each stage in turn to a period.
+   *
+   * @param rootSeed start of the first period
+   * @param dates the start of the period
+   * @param log for debug output
+   * @return the candidates for the period
+   */
+  OccurrenceList apply(final Calendar rootSeed,
+                       final OccurrenceList dates,
+                       final Logger log) {
+    OccurrenceList res = dates;
+
+    for (final Stage stage: stages) {
+      res = stage.getTransformer(rootSeed).transform(res);
+
+      if (log.isDebugEnabled()) {
+        log.debug("Dates after " + stage.getName() +
+                          " processing: " + res);
+      }
+    }
+
+    return res;
+  }
+}
@@ -0,0 +1,77 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+/**
+ * The occurrences found by an expansion limited by
+ * {@link ExpansionOptions} and, if it stopped early, the reason.
+ */
+public class ExpansionResult {
+  /**
+   * Why an expansion stopped before it was complete.
+   */
+  public enum Truncation {
+    /** The maximum number of periods was examined */
+    MaxPeriods,
+
+    /** The maximum number of occurrences was returned */
+    MaxOccurrences,
+
+    /** The timeout expired */
+    Deadline,
+
+    /** An unbounded rule reached the horizon */
+    Horizon,
+
+    /** The expansion was cancelled */
+    Cancelled,
+
+    /** Too many consecutive periods had no candidates (see
+     * {@link Recur#setMaxIncrementCount(int)}) */
+    EmptyPeriods
+  }
+
+  private final OccurrenceList dates;
+
+  private final Truncation truncation;
+
+  /**
+   * @param dates found
+   * @param truncation null if the expansion is complete
+   */
+  ExpansionResult(final OccurrenceList dates,
+                  final Truncation truncation) {
+    this.dates = dates;
+    this.truncation = truncation;
+  }
+
+  /**
+   * @return the dates found - all of them unless truncated
+   */
+  public OccurrenceList getDates() {
+    return dates;
+  }
+
+  /**
+   * @return true if the expansion stopped early and there may be
+   *         more dates
+   */
+  public boolean isTruncated() {
+    return truncation != null;
+  }
+
+  /**
+   * @return why the expansion stopped early - null if it is complete
+   */
+  public Truncation getTruncation() {
+    return truncation;
+  }
+
+  @Override
+  public String toString() {
+    return "ExpansionResult{dates=" + dates.size() +
+            ", truncation=" + truncation +
+            "}";
+  }
+}
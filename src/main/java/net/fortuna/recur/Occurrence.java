@@ -81,6 +81,16 @@ public class Occurrence implements Comparable<Occurrence> {
     return isDateOnly;
   }
 
+  /**
+   * A floating occurrence has no timezone and is not UTC. Its date is
+   * the wall-clock time in the default timezone.
+   *
+   * @return true for a floating occurrence
+   */
+  public boolean isFloating() {
+    return !utc && (timeZone == null);
+  }
+
   public Date getDate() {
     return date;
   }
@@ -0,0 +1,797 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.Calendar;
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.DayFeasibility;
+import net.fortuna.recur.engine.ExpansionCursor;
+import net.fortuna.recur.engine.Gregorian;
+import net.fortuna.recur.engine.TimeLimits;
+import net.fortuna.recur.engine.ZoneConverter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the occurrences of a recurrence in date order.
+ *
+ * <p>Candidates are generated one period at a time so only the
+ * candidates for the current period are held. The iterator may be
+ * advanced as often as required - it ends when the COUNT or UNTIL
+ * of the rule is reached or when too many consecutive periods produce
+ * no candidates (see {@link Recur#setMaxIncrementCount(int)}). An
+ * iteration limited by {@link ExpansionOptions} also ends when a limit
+ * is reached (see {@link #getTruncation()}).</p>
+ *
+ * <p>A floating seed of a DAILY or coarser rule is expanded entirely
+ * in wall-clock time. The default timezone is only used to read the
+ * seed and start dates and to convert each occurrence returned, so DST
+ * in that zone does not affect the expansion. Wall-clock times in a
+ * DST gap convert to the same instants as later ones, so an occurrence
+ * which does not follow the one before is dropped. A date-only seed is
+ * expanded with calendars in the default timezone, as the transformers
+ * reset the time of each date-only candidate as they go.</p>
+ *
+ * <p>SECONDLY, MINUTELY and HOURLY rules are stepped through in epoch
+ * and local arithmetic by an {@link ExpansionCursor} rather than
+ * creating calendars and lists for every period. Their periods are
+ * elapsed time, so for a floating seed they are stepped in the default
+ * timezone rather than in wall-clock time.</p>
+ *
+ * <p>Instances are obtained from
+ * {@link Recur#iterator(Occurrence, Occurrence)}.</p>
+ */
+public class OccurrenceIterator implements Iterator<Occurrence> {
+  private final Recur recur;
+
+  private final Occurrence seed;
+
+  private final long seedTime;
+
+  private final long fromTime;
+
+  /* true if an occurrence at fromTime is returned */
+  private final boolean inclusive;
+
+  private final Date until;
+
+  private final int count;
+
+  private final Calendar rootSeed;
+
+  /* Start of the current period */
+  private final Calendar period;
+
+  private long periodIndex;
+
+  /* Candidates for the current period - sorted and no duplicates */
+  private long[] candidates = new long[16];
+
+  private int numCandidates;
+
+  private int pos;
+
+  /* True once candidates for the first period have been generated */
+  private boolean started;
+
+  /* Number of candidates on or after the seed seen so far */
+  private int ordinal;
+
+  /* ordinal when the current period started */
+  private int periodOrdinal;
+
+  /* Last candidate counted and its value when the current period
+     started */
+  private long last = Long.MIN_VALUE;
+
+  private long periodLast = Long.MIN_VALUE;
+
+  private boolean done;
+
+  /* Index of COUNT state for this seed - null if not enabled */
+  private final CountCheckpoints.Checkpoints checkpoints;
+
+  private final int checkpointInterval;
+
+  /* true if the occurrences are the period starts */
+  private final boolean arithmetic;
+
+  private Occurrence next;
+
+  /* Value of next and of the last occurrence returned - local millis
+     for a floating seed expanded in wall-clock time */
+  private long nextValue;
+
+  private long lastValue;
+
+  /* Instant of the last wall-clock time converted */
+  private long lastEpoch = Long.MIN_VALUE;
+
+  /* Expands a floating seed in wall-clock time or a sub-daily rule in
+     the zone of the seed - null otherwise */
+  private final ExpansionCursor cursor;
+
+  private final DayFeasibility feasibility;
+
+  /* The times a sub-daily rule can occur in - otherwise null */
+  private final TimeLimits timeLimits;
+
+  /* true if periods which cannot have candidates can be skipped */
+  private final boolean skippable;
+
+  /* Used to find the periods to skip - created when needed */
+  private Calendar skipCal;
+
+  private ZoneConverter skipZone;
+
+  /* null for no limits */
+  private ExpansionBudget budget;
+
+  /* true if stopped by too many periods without candidates */
+  private boolean abandoned;
+
+  /* Earliest seed expanded by a cursor - later dates are the same in
+     the calendars and the proleptic Gregorian arithmetic */
+  private static final long gregorianStart =
+          Gregorian.epochDay(1583, 1, 1) * Gregorian.MILLIS_PER_DAY;
+
+  /* Further than a candidate can be from the start of its period - a
+     BYWEEKNO week of the next year in a yearly period */
+  private static final long offsetMargin = 800 * Gregorian.MILLIS_PER_DAY;
+
+  /* Zone of the dates of floating occurrences - null otherwise */
+  private final ZoneConverter floatingZone;
+
+  /**
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @param from occurrences before this are skipped
+   * @param inclusive true if an occurrence at from is returned
+   */
+  OccurrenceIterator(final Recur recur,
+                     final Occurrence seed,
+                     final Date from,
+                     final boolean inclusive) {
+    this(recur, seed, from, inclusive, null);
+  }
+
+  /**
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @param from occurrences before this are skipped. When resuming
+   *             the value from {@link #getLastValue()}
+   * @param inclusive true if an occurrence at from is returned
+   * @param resume null or the period to start at from
+   *               {@link #getPosition()}
+   */
+  OccurrenceIterator(final Recur recur,
+                     final Occurrence seed,
+                     final Date from,
+                     final boolean inclusive,
+                     final ExpansionCursor.Position resume) {
+    this.recur = recur;
+    this.seed = seed;
+    this.inclusive = inclusive;
+
+    seedTime = seed.getDate().getTime();
+    fromTime = from.getTime();
+    until = recur.getUntil();
+    count = recur.getCount();
+    feasibility = recur.getFeasibility();
+    timeLimits = recur.getLocalRule().getTimeLimits();
+    if (timeLimits == null) {
+      skippable = feasibility.canSkip();
+    } else if (recur.expandsDaysOfSubDaily()) {
+      skippable = false;
+    } else {
+      skippable = timeLimits.canSkip(feasibility);
+    }
+    done = feasibility.isEmpty();
+
+    if (seed.isFloating() && !seed.getDateOnly() && !steps(recur, seed)) {
+      floatingZone = CalendarBackend.getDefault()
+                                    .getZoneConverter(TimeZone.getDefault());
+
+      final long seedLocal = floatingZone.toLocal(seedTime);
+
+      if (resume == null) {
+        cursor = new ExpansionCursor(recur.getLocalRule(), null,
+                                     seedLocal,
+                                     floatingZone.toLocal(fromTime),
+                                     inclusive);
+      } else {
+        cursor = new ExpansionCursor(recur.getLocalRule(), null,
+                                     seedLocal, fromTime, inclusive,
+                                     CalendarBackend.getDefault(),
+                                     resume);
+        lastEpoch = floatingZone.toEpoch(fromTime);
+      }
+      period = null;
+      rootSeed = null;
+      checkpoints = null;
+      checkpointInterval = 0;
+      arithmetic = false;
+      return;
+    }
+
+    floatingZone = null;
+
+    final Calendar seedCal = recur.getCalendarInstance(seed);
+
+    if (steps(recur, seed)) {
+      if (resume == null) {
+        cursor = new ExpansionCursor(recur.getLocalRule(),
+                                     seedCal.getTimeZone(),
+                                     seedTime, fromTime, inclusive);
+      } else {
+        cursor = new ExpansionCursor(recur.getLocalRule(),
+                                     seedCal.getTimeZone(),
+                                     seedTime, fromTime, inclusive,
+                                     CalendarBackend.getDefault(),
+                                     resume);
+      }
+      period = null;
+      rootSeed = null;
+      checkpoints = null;
+      checkpointInterval = 0;
+      arithmetic = false;
+      return;
+    }
+
+    cursor = null;
+
+    period = seedCal;
+    rootSeed = (Calendar)period.clone();
+    arithmetic = recur.isArithmetic(rootSeed);
+
+    /* A checkpoint does not hold the last candidate counted, which
+       a period with candidates outside it needs */
+    final CountCheckpoints countCheckpoints;
+    if ((count < 0) || arithmetic || recur.leavesPeriods()) {
+      countCheckpoints = null;
+    } else {
+      countCheckpoints = recur.getCountCheckpoints();
+    }
+
+    if (countCheckpoints == null) {
+      checkpoints = null;
+      checkpointInterval = 0;
+    } else {
+      checkpoints = countCheckpoints.forSeed(seed, period.getTimeZone());
+      checkpointInterval = countCheckpoints.getInterval();
+    }
+
+    // optimize the start time for selecting candidates
+    if (resume != null) {
+      periodIndex = resume.getPeriodIndex();
+      ordinal = resume.getOrdinal();
+      last = resume.getLast();
+      recur.periodStart(rootSeed, periodIndex, period);
+    } else if (count < 0) {
+      periodIndex = recur.periodIndexBefore(rootSeed, from, period);
+      recur.periodStart(rootSeed, periodIndex, period);
+    } else if (arithmetic) {
+      // One occurrence per period - the ordinal is the period index
+      periodIndex = recur.periodIndexBefore(rootSeed, from, period);
+      if (periodIndex > 0) {
+        long skipped = periodIndex;
+        final Calendar first = (Calendar)rootSeed.clone();
+        resolveImplicitDay(first);
+        if (first.getTimeInMillis() < seedTime) {
+          /* The first period has no occurrence - a date-only seed or
+             a repeated wall time resolved to the earlier instant */
+          skipped--;
+        }
+        ordinal = (int)Math.min(skipped, Integer.MAX_VALUE);
+      }
+      recur.periodStart(rootSeed, periodIndex, period);
+    } else if (checkpoints != null) {
+      // Resume from the nearest checkpoint before the start
+      final long target =
+              recur.periodIndexBefore(rootSeed, from, period) /
+                      checkpointInterval;
+      final int checkpoint =
+              checkpoints.floor((int)Math.min(target, Integer.MAX_VALUE));
+
+      if (checkpoint > 0) {
+        periodIndex = (long)checkpoint * checkpointInterval;
+        ordinal = checkpoints.getOrdinal(checkpoint);
+      }
+      recur.periodStart(rootSeed, periodIndex, period);
+    }
+    periodOrdinal = ordinal;
+    periodLast = last;
+  }
+
+  /* Copies the state of another iterator */
+  private OccurrenceIterator(final OccurrenceIterator that) {
+    recur = that.recur;
+    seed = that.seed;
+    seedTime = that.seedTime;
+    fromTime = that.fromTime;
+    inclusive = that.inclusive;
+    until = that.until;
+    count = that.count;
+    checkpoints = that.checkpoints;
+    checkpointInterval = that.checkpointInterval;
+    arithmetic = that.arithmetic;
+    feasibility = that.feasibility;
+    timeLimits = that.timeLimits;
+    skippable = that.skippable;
+    floatingZone = that.floatingZone;
+
+    if (that.cursor == null) {
+      cursor = null;
+      rootSeed = (Calendar)that.rootSeed.clone();
+      period = (Calendar)that.period.clone();
+    } else {
+      cursor = that.cursor.copy();
+      rootSeed = null;
+      period = null;
+    }
+
+    periodIndex = that.periodIndex;
+    candidates = that.candidates.clone();
+    numCandidates = that.numCandidates;
+    pos = that.pos;
+    started = that.started;
+    ordinal = that.ordinal;
+    periodOrdinal = that.periodOrdinal;
+    last = that.last;
+    periodLast = that.periodLast;
+    budget = that.budget;
+    abandoned = that.abandoned;
+    done = that.done;
+    next = that.next;
+    nextValue = that.nextValue;
+    lastValue = that.lastValue;
+    lastEpoch = that.lastEpoch;
+  }
+
+  /**
+   * @return an iterator which continues independently from the current
+   *         position of this one
+   */
+  OccurrenceIterator copy() {
+    return new OccurrenceIterator(this);
+  }
+
+  /**
+   * Limits the periods examined from now on.
+   *
+   * @param budget the limits of the expansion
+   */
+  void setBudget(final ExpansionBudget budget) {
+    this.budget = budget;
+    if (cursor != null) {
+      cursor.setPeriodCheck(budget::enterPeriod);
+    }
+  }
+
+  /**
+   * @return why the iteration ended early - null if it has not or
+   *         reached the end of the rule
+   */
+  ExpansionResult.Truncation getTruncation() {
+    if ((budget != null) && (budget.getTruncation() != null)) {
+      return budget.getTruncation();
+    }
+
+    if (abandoned || ((cursor != null) && cursor.isAbandoned())) {
+      return ExpansionResult.Truncation.EmptyPeriods;
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the start of the period the last occurrence returned came
+   *         from, for the resume constructor
+   */
+  ExpansionCursor.Position getPosition() {
+    if (cursor != null) {
+      return cursor.getPosition();
+    }
+
+    return new ExpansionCursor.Position(periodIndex, periodOrdinal,
+                                        periodLast);
+  }
+
+  /**
+   * @return the value of the last occurrence returned - local millis
+   *         for a floating seed expanded in wall-clock time
+   */
+  long getLastValue() {
+    return lastValue;
+  }
+
+  /**
+   * @return the occurrence the next call to {@link #next()} returns
+   *         without moving past it - null if there are none
+   */
+  Occurrence peek() {
+    if (!hasNext()) {
+      return null;
+    }
+
+    return next;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if ((next == null) && !done) {
+      next = advance();
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public Occurrence next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    final Occurrence res = next;
+    next = null;
+    lastValue = nextValue;
+
+    return res;
+  }
+
+  private Occurrence advance() {
+    if (cursor != null) {
+      while (cursor.hasNext()) {
+        nextValue = cursor.nextLong();
+
+        if (floatingZone == null) {
+          return Occurrence.getInstanceLike(new Date(nextValue), seed);
+        }
+
+        // The only zone conversion for the occurrence
+        final long epoch = floatingZone.toEpoch(nextValue);
+        if (epoch <= lastEpoch) {
+          continue;
+        }
+
+        lastEpoch = epoch;
+        return Occurrence.getInstanceLike(new Date(epoch), seed);
+      }
+
+      done = true;
+      return null;
+    }
+
+    while (true) {
+      while (pos < numCandidates) {
+        final long candidate = candidates[pos];
+        pos++;
+
+        // don't count candidates that occur before the seed date..
+        if (candidate < seedTime) {
+          continue;
+        }
+
+        /* A period may repeat or precede values from the one before -
+           BYWEEKNO weeks which cross the year end for example */
+        if (candidate <= last) {
+          continue;
+        }
+
+        if ((until != null) && (candidate > until.getTime())) {
+          done = true;
+          return null;
+        }
+
+        last = candidate;
+        ordinal++;
+        if ((count >= 1) && (ordinal > count)) {
+          done = true;
+          return null;
+        }
+
+        if ((candidate < fromTime) ||
+                (!inclusive && (candidate == fromTime))) {
+          continue;
+        }
+
+        nextValue = candidate;
+        return Occurrence.getInstanceLike(new Date(candidate), seed);
+      }
+
+      if (!nextPeriod()) {
+        done = true;
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Moves to the next period which has candidates.
+   *
+   * @return false if no more periods are to be searched
+   */
+  private boolean nextPeriod() {
+    int noCandidateIncrementCount = 0;
+    final int maxIncrementCount = Recur.getMaxIncrementCount();
+
+    while (true) {
+      if ((budget != null) && !budget.enterPeriod()) {
+        return false;
+      }
+
+      if (started) {
+        periodIndex++;
+        recur.periodStart(rootSeed, periodIndex, period);
+      } else {
+        started = true;
+      }
+
+      if ((checkpoints != null) &&
+              ((periodIndex % checkpointInterval) == 0)) {
+        final long checkpoint = periodIndex / checkpointInterval;
+        if (checkpoint < Integer.MAX_VALUE) {
+          checkpoints.record((int)checkpoint, ordinal);
+        }
+      }
+
+      periodOrdinal = ordinal;
+      periodLast = last;
+
+      if (arithmetic) {
+        resolveImplicitDay(period);
+        candidates[0] = period.getTimeInMillis();
+        numCandidates = 1;
+        pos = 0;
+        return true;
+      }
+
+      final OccurrenceList periodCandidates =
+              recur.getCandidates(rootSeed,
+                                  Occurrence.getInstanceLike(
+                                          period.getTime(), seed),
+                                  seed.getDateOnly());
+
+      if (!periodCandidates.isEmpty()) {
+        setCandidates(periodCandidates);
+        return true;
+      }
+
+      if (skippable) {
+        if (timeLimits == null) {
+          skipImpossiblePeriods();
+        } else {
+          skipExcludedTimes();
+        }
+      }
+
+      noCandidateIncrementCount++;
+      if ((maxIncrementCount > 0) &&
+              (noCandidateIncrementCount > maxIncrementCount)) {
+        abandoned = true;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Moves past the periods following the current one which have no
+   * day the rule can occur on, so the next one examined is the first
+   * which may have candidates.
+   */
+  private void skipImpossiblePeriods() {
+    if (skipCal == null) {
+      skipCal = (Calendar)period.clone();
+    }
+
+    recur.periodStart(rootSeed, periodIndex + 1, skipCal);
+
+    final int year = skipCal.get(Calendar.EXTENDED_YEAR);
+    if (year < 1583) {
+      // Dates before the Gregorian change are Julian
+      return;
+    }
+
+    final long startDay = Gregorian.epochDay(
+            year,
+            skipCal.get(Calendar.MONTH) + 1,
+            skipCal.get(Calendar.DAY_OF_MONTH));
+    final long day = feasibility.nextDay(
+            DayFeasibility.periodFirstDay(recur.getFrequency(), startDay));
+
+    if (day <= startDay) {
+      return;
+    }
+
+    final int civil = Gregorian.civil(day);
+    skipCal.clear();
+    skipCal.set(Gregorian.year(civil), Gregorian.month(civil) - 1,
+                Gregorian.day(civil));
+
+    // Periods before this one end before the day
+    final long index = recur.periodIndexBefore(rootSeed,
+                                               skipCal.getTime(),
+                                               skipCal);
+    if (index <= periodIndex + 1) {
+      return;
+    }
+
+    skipTo(index - 1);
+  }
+
+  /**
+   * Moves past the sub-daily periods following the current one which
+   * start in an hour, minute or second the rule cannot occur in. See
+   * {@link ExpansionCursor} which does the same in local time.
+   */
+  private void skipExcludedTimes() {
+    if (skipCal == null) {
+      skipCal = (Calendar)period.clone();
+      skipZone = CalendarBackend.getDefault()
+                                .getZoneConverter(period.getTimeZone());
+    }
+
+    recur.periodStart(rootSeed, periodIndex + 1, skipCal);
+
+    if (skipCal.get(Calendar.EXTENDED_YEAR) < 1583) {
+      // Dates before the Gregorian change are Julian
+      return;
+    }
+
+    final long startEpoch = skipCal.getTimeInMillis();
+    final long start = skipZone.toLocal(startEpoch);
+    final long unitStart = timeLimits.unitStart(start);
+    final long possible = timeLimits.next(unitStart, feasibility);
+
+    if ((possible <= unitStart) || (possible == Long.MAX_VALUE)) {
+      return;
+    }
+
+    final long transition = skipZone.nextTransition(startEpoch);
+    if (transition == Long.MIN_VALUE) {
+      return;
+    }
+
+    // Periods starting before this are in excluded times
+    final long target = Math.min(possible - (start - startEpoch),
+                                 transition);
+    final long index = recur.periodIndexBefore(rootSeed,
+                                               new Date(target),
+                                               skipCal);
+    if (index > periodIndex) {
+      skipTo(index);
+    }
+  }
+
+  /**
+   * @param index of the last period skipped - the periods after the
+   *              current one up to it have no occurrences
+   */
+  private void skipTo(final long index) {
+    if (checkpoints != null) {
+      for (long checkpoint = periodIndex / checkpointInterval + 1;
+           (checkpoint * checkpointInterval <= index) &&
+                   (checkpoint < Integer.MAX_VALUE);
+           checkpoint++) {
+        checkpoints.record((int)checkpoint, ordinal);
+      }
+    }
+
+    periodIndex = index;
+  }
+
+  /**
+   * SECONDLY, MINUTELY and HOURLY rules are expanded by an
+   * {@link ExpansionCursor} in the zone of the seed - the default
+   * timezone for a floating seed - rather than a period at a time with
+   * calendars. Date-only seeds, seeds before
+   * the Gregorian calendar and rules whose BYDAY is expanded beyond
+   * the period are left to the calendars.
+   *
+   * @return true if the cursor expands the rule
+   */
+  static boolean steps(final Recur recur,
+                       final Occurrence seed) {
+    return (recur.getFrequency().compareTo(Recur.Frequency.DAILY) < 0) &&
+            !seed.getDateOnly() &&
+            (seed.getDate().getTime() >= gregorianStart) &&
+            !recur.expandsDaysOfSubDaily();
+  }
+
+  /**
+   * The calendars and the {@link ExpansionCursor} give the same dates
+   * for a seed in the Gregorian calendar in a zone whose offset does
+   * not change near them. They can resolve a local time in a DST gap
+   * or a repeated hour differently.
+   *
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @param tz the zone the calendars use for the seed
+   * @param from start of the dates wanted
+   * @param to end of the dates wanted
+   * @return true if a cursor gives the dates of the calendars
+   */
+  static boolean sameOffset(final Recur recur,
+                            final Occurrence seed,
+                            final TimeZone tz,
+                            final long from,
+                            final long to) {
+    final long seedTime = seed.getDate().getTime();
+    if (seedTime < gregorianStart) {
+      return false;
+    }
+
+    // Without a COUNT the expansion starts in the period before from
+    long start = seedTime;
+    if ((recur.getCount() < 1) && (from > seedTime)) {
+      start = from;
+    }
+
+    final long transition = CalendarBackend.getDefault()
+                                           .getZoneConverter(tz)
+                                           .nextTransition(start - offsetMargin);
+
+    return (transition == Long.MAX_VALUE) ||
+            ((transition != Long.MIN_VALUE) &&
+                     (transition - offsetMargin > to));
+  }
+
+  /**
+   * Resolves the wall time of the period start as the implicit BYDAY
+   * or BYMONTHDAY of the rule would. This only matters for a time
+   * in a DST gap or repeated at a DST change.
+   *
+   * @param cal start of a period
+   */
+  private void resolveImplicitDay(final Calendar cal) {
+    switch (recur.getFrequency()) {
+      case WEEKLY:
+        /* Days are generated forward a day at a time from the start of
+           the week, so a time moved by a gap stays moved */
+        final int day = cal.get(Calendar.DAY_OF_WEEK);
+        final int firstDay = cal.getFirstDayOfWeek();
+        cal.set(Calendar.DAY_OF_WEEK, firstDay);
+        for (int i = (day - firstDay + 7) % 7; i > 0; i--) {
+          cal.add(Calendar.DAY_OF_WEEK, 1);
+        }
+        break;
+      case MONTHLY:
+      case YEARLY:
+        cal.set(Calendar.DAY_OF_MONTH,
+                cal.get(Calendar.DAY_OF_MONTH));
+        break;
+      default:
+    }
+  }
+
+  private void setCandidates(final OccurrenceList periodCandidates) {
+    final int size = periodCandidates.size();
+    if (candidates.length < size) {
+      candidates = new long[Math.max(size, candidates.length * 2)];
+    }
+
+    for (int i = 0; i < size; i++) {
+      candidates[i] = periodCandidates.get(i).getDate().getTime();
+    }
+
+    // sort candidates for identifying when UNTIL date is exceeded..
+    Arrays.sort(candidates, 0, size);
+
+    // ..and drop any duplicates
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      if ((n == 0) || (candidates[i] != candidates[n - 1])) {
+        candidates[n] = candidates[i];
+        n++;
+      }
+    }
+
+    numCandidates = n;
+    pos = 0;
+  }
+}
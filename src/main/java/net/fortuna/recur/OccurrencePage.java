@@ -0,0 +1,47 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+/**
+ * One page of the occurrences of a recurrence and a token for the next.
+ *
+ * <p>The token is an opaque url safe string. Passing it to
+ * {@link Recur#getPage(Occurrence, String, int)} with the same rule and
+ * seed returns the following page, starting in the period the previous
+ * page stopped in, so each page costs about the same however far into
+ * the series it is.</p>
+ *
+ * <p>Instances are obtained from
+ * {@link Recur#getPage(Occurrence, Occurrence, int)}.</p>
+ */
+public class OccurrencePage {
+  private final OccurrenceList dates;
+
+  private final String nextPageToken;
+
+  /**
+   * @param dates on this page
+   * @param nextPageToken null for the last page
+   */
+  OccurrencePage(final OccurrenceList dates,
+                 final String nextPageToken) {
+    this.dates = dates;
+    this.nextPageToken = nextPageToken;
+  }
+
+  /**
+   * @return the dates on this page
+   */
+  public OccurrenceList getDates() {
+    return dates;
+  }
+
+  /**
+   * @return token for the next page - null if there are no more
+   *         occurrences
+   */
+  public String getNextPageToken() {
+    return nextPageToken;
+  }
+}
@@ -0,0 +1,207 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.Calendar;
+import net.fortuna.recur.util.CalendarPool;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the occurrences of a recurrence in a window.
+ *
+ * <p>Each part of the window is expanded by its own
+ * {@link OccurrenceIterator} so parts may be consumed in parallel. The
+ * window is split at the start of a year for YEARLY and MONTHLY rules
+ * and at the start of a month for the others, in the timezone of the
+ * seed. Rules with a COUNT are not split as every occurrence from the
+ * seed has to be counted.</p>
+ *
+ * <p>Instances are obtained from
+ * {@link Recur#stream(Occurrence, Occurrence, Occurrence)}.</p>
+ */
+class OccurrenceSpliterator implements Spliterator<Occurrence> {
+  private static final long approxMillisPerDay = 24L * 60 * 60 * 1000;
+
+  private final Recur recur;
+
+  private final Occurrence seed;
+
+  /* Start of this part of the window */
+  private long from;
+
+  /* End of this part of the window - exclusive */
+  private long to;
+
+  /* null until the first advance */
+  private OccurrenceIterator it;
+
+  /**
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @param from start of the window
+   * @param to end of the window - exclusive
+   */
+  OccurrenceSpliterator(final Recur recur,
+                        final Occurrence seed,
+                        final long from,
+                        final long to) {
+    this.recur = recur;
+    this.seed = seed;
+    this.from = from;
+    this.to = to;
+  }
+
+  @Override
+  public boolean tryAdvance(final Consumer<? super Occurrence> action) {
+    if (it == null) {
+      it = new OccurrenceIterator(recur, seed, new Date(from), true);
+    }
+
+    if (!it.hasNext()) {
+      return false;
+    }
+
+    final Occurrence occ = it.next();
+    if (occ.getDate().getTime() >= to) {
+      // Nothing more in this part
+      to = Long.MIN_VALUE;
+      return false;
+    }
+
+    action.accept(occ);
+    return true;
+  }
+
+  @Override
+  public Spliterator<Occurrence> trySplit() {
+    if ((it != null) || (recur.getCount() >= 1)) {
+      return null;
+    }
+
+    final long split = splitPoint();
+    if (split == Long.MIN_VALUE) {
+      return null;
+    }
+
+    final OccurrenceSpliterator prefix =
+            new OccurrenceSpliterator(recur, seed, from, split);
+
+    // This part becomes the suffix
+    from = split;
+
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    if (to <= from) {
+      return 0;
+    }
+
+    final long period = approxPeriodMillis();
+
+    return Math.max(1, (to - from) / period);
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | SORTED | DISTINCT | NONNULL;
+  }
+
+  @Override
+  public Comparator<? super Occurrence> getComparator() {
+    // Natural order
+    return null;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private long approxPeriodMillis() {
+    final long interval;
+    if (recur.getInterval() == null) {
+      interval = 1;
+    } else {
+      interval = Math.max(1, recur.getInterval());
+    }
+
+    final long millis;
+    switch (recur.getFrequency()) {
+      case SECONDLY:
+        millis = 1000;
+        break;
+      case MINUTELY:
+        millis = 60 * 1000;
+        break;
+      case HOURLY:
+        millis = 60 * 60 * 1000;
+        break;
+      case DAILY:
+        millis = approxMillisPerDay;
+        break;
+      case WEEKLY:
+        millis = 7 * approxMillisPerDay;
+        break;
+      case MONTHLY:
+        millis = 30 * approxMillisPerDay;
+        break;
+      default:
+        millis = 365 * approxMillisPerDay;
+    }
+
+    return millis * interval;
+  }
+
+  /**
+   * @return the start of the year or month nearest the middle of the
+   *         window or Long.MIN_VALUE if the window is too short.
+   */
+  private long splitPoint() {
+    if (to - from < 2 * approxMillisPerDay) {
+      return Long.MIN_VALUE;
+    }
+
+    final int unit;
+    switch (recur.getFrequency()) {
+      case YEARLY:
+      case MONTHLY:
+        unit = Calendar.YEAR;
+        break;
+      default:
+        unit = Calendar.MONTH;
+    }
+
+    final Calendar cal = recur.getCalendarInstance(seed);
+    try {
+      cal.setTimeInMillis(from + (to - from) / 2);
+      if (unit == Calendar.YEAR) {
+        cal.set(Calendar.MONTH, Calendar.JANUARY);
+      }
+      cal.set(Calendar.DAY_OF_MONTH, 1);
+      cal.set(Calendar.HOUR_OF_DAY, 0);
+      cal.set(Calendar.MINUTE, 0);
+      cal.set(Calendar.SECOND, 0);
+      cal.set(Calendar.MILLISECOND, 0);
+
+      long split = cal.getTimeInMillis();
+      if (split <= from) {
+        cal.add(unit, 1);
+        split = cal.getTimeInMillis();
+      }
+
+      if ((split <= from) || (split >= to)) {
+        return Long.MIN_VALUE;
+      }
+
+      return split;
+    } finally {
+      CalendarPool.release(cal);
+    }
+  }
+}
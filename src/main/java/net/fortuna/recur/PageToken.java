@@ -0,0 +1,141 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.engine.ExpansionCursor;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * The point an expansion stopped at, encoded as an opaque string so a
+ * later request - possibly to another server - can carry on from it.
+ *
+ * <p>The token holds the fingerprint of the rule, the seed and its
+ * timezone, the last occurrence returned and the period it came from
+ * with the number of occurrences before that period. A token is only
+ * accepted for the same rule and seed. The first byte is a version
+ * number so the layout may change.</p>
+ */
+class PageToken {
+  private static final byte version = 1;
+
+  /* version, fingerprint, seed, zone, last value, period index,
+     ordinal, last in period */
+  private static final int length = 1 + 8 + 8 + 4 + 8 + 8 + 4 + 8;
+
+  private final long lastValue;
+
+  private final ExpansionCursor.Position position;
+
+  /**
+   * @param lastValue of the last occurrence returned
+   * @param position the period it came from
+   */
+  PageToken(final long lastValue,
+            final ExpansionCursor.Position position) {
+    this.lastValue = lastValue;
+    this.position = position;
+  }
+
+  /**
+   * @return value of the last occurrence returned - local millis for a
+   *         floating seed
+   */
+  long getLastValue() {
+    return lastValue;
+  }
+
+  /**
+   * @return the period the last occurrence came from
+   */
+  ExpansionCursor.Position getPosition() {
+    return position;
+  }
+
+  /**
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @return url safe string form
+   */
+  String encode(final Recur recur,
+                final Occurrence seed) {
+    final ByteBuffer buf = ByteBuffer.allocate(length);
+
+    buf.put(version);
+    buf.putLong(recur.getFingerprint());
+    buf.putLong(seed.getDate().getTime());
+    buf.putInt(zoneKey(seed));
+    buf.putLong(lastValue);
+    buf.putLong(position.getPeriodIndex());
+    buf.putInt(position.getOrdinal());
+    buf.putLong(position.getLast());
+
+    return Base64.getUrlEncoder().withoutPadding()
+                 .encodeToString(buf.array());
+  }
+
+  /**
+   * @param token from {@link #encode(Recur, Occurrence)}
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @return the decoded token
+   * @throws IllegalArgumentException if the token is malformed or was
+   *         not produced for this rule and seed
+   */
+  static PageToken decode(final String token,
+                          final Recur recur,
+                          final Occurrence seed) {
+    final byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(token);
+    } catch (final IllegalArgumentException iae) {
+      throw new IllegalArgumentException("Invalid page token: " + token);
+    }
+
+    if ((bytes.length != length) || (bytes[0] != version)) {
+      throw new IllegalArgumentException("Invalid page token: " + token);
+    }
+
+    final ByteBuffer buf = ByteBuffer.wrap(bytes, 1, length - 1);
+    if ((buf.getLong() != recur.getFingerprint()) ||
+            (buf.getLong() != seed.getDate().getTime()) ||
+            (buf.getInt() != zoneKey(seed))) {
+      throw new IllegalArgumentException(
+              "Page token is for another rule or seed: " + token);
+    }
+
+    final long lastValue = buf.getLong();
+    final long periodIndex = buf.getLong();
+    final int ordinal = buf.getInt();
+    final long last = buf.getLong();
+
+    if ((periodIndex < 0) || (ordinal < 0)) {
+      throw new IllegalArgumentException("Invalid page token: " + token);
+    }
+
+    return new PageToken(lastValue,
+                         new ExpansionCursor.Position(periodIndex,
+                                                      ordinal, last));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* The timezone the seed is expanded in */
+  private static int zoneKey(final Occurrence seed) {
+    final String zone;
+    if (seed.isFloating()) {
+      zone = "floating:" + TimeZone.getDefault().getID();
+    } else if (seed.getUtc() || (seed.getTimeZone() == null)) {
+      zone = "UTC";
+    } else {
+      zone = seed.getTimeZone().getID();
+    }
+
+    return zone.hashCode();
+  }
+}
@@ -32,6 +32,15 @@
 package net.fortuna.recur;
 
 import com.ibm.icu.util.Calendar;
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.DayFeasibility;
+import net.fortuna.recur.engine.DescendingCursor;
+import net.fortuna.recur.engine.ExpansionCursor;
+import net.fortuna.recur.engine.Gregorian;
+import net.fortuna.recur.engine.LocalRule;
+import net.fortuna.recur.engine.OccurrenceCounter;
+import net.fortuna.recur.engine.ZoneConverter;
 import net.fortuna.recur.transform.ByDayRule;
 import net.fortuna.recur.transform.ByHourRule;
 import net.fortuna.recur.transform.ByMinuteRule;
@@ -42,24 +51,27 @@ import net.fortuna.recur.transform.BySetPosRule;
 import net.fortuna.recur.transform.ByWeekNoRule;
 import net.fortuna.recur.transform.ByYearDayRule;
 import net.fortuna.recur.transform.Transformer;
+import net.fortuna.recur.util.CalendarPool;
 import net.fortuna.recur.util.MapTimeZoneCache;
 import net.fortuna.recur.util.TimeZoneCache;
+import net.fortuna.recur.util.TimeZones;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static net.fortuna.recur.Recur.RecurStatus.InvalidRecurrenceRulePart;
 import static net.fortuna.recur.Recur.RecurStatus.Ok;
@@ -113,13 +125,51 @@ public class Recur implements Serializable {
      * this property defines the maximum number of attempt to find a matching date by
      * incrementing the seed.
      * <p>The default value is 1000. A value of -1 corresponds to no maximum.</p>
+     * <p>This applies to every expansion. Limits for a single expansion
+     * are set with {@link ExpansionOptions}.</p>
      */
-    private static int maxIncrementCount = 1000;
+    private static volatile int maxIncrementCount = 1000;
 
     public static void setMaxIncrementCount(final int val) {
         maxIncrementCount = val;
     }
 
+    public static int getMaxIncrementCount() {
+        return maxIncrementCount;
+    }
+
+    /**
+     * When greater than zero, rules with a COUNT record the number of
+     * occurrences generated before every n'th period for each seed they
+     * are expanded with. Later expansions of windows far from the seed
+     * resume from the nearest recorded period rather than from the seed.
+     * <p>The default value is 0 which disables the index.</p>
+     */
+    private static volatile int countCheckpointInterval;
+
+    public static void setCountCheckpointInterval(final int val) {
+        countCheckpointInterval = val;
+    }
+
+    /**
+     * When not null, {@link #fromIcalendar(String, boolean)} returns
+     * cached results for rule strings it has seen before.
+     * <p>The default value is null which parses every time.</p>
+     */
+    private static volatile RecurParseCache parseCache;
+
+    public static void setParseCache(final RecurParseCache val) {
+        parseCache = val;
+    }
+
+    public static RecurParseCache getParseCache() {
+        return parseCache;
+    }
+
+    private transient CountCheckpoints countCheckpoints;
+
+    private transient volatile LocalRule localRule;
+
     private final transient Logger log =
             LoggerFactory.getLogger(Recur.class);
 
@@ -166,7 +216,7 @@ public class Recur implements Serializable {
 
     private NumberList setPosList;
 
-    private Map<String, Transformer> transformers;
+    private ExpansionPlan plan;
 
     private final WeekDay.Day weekStartDay;
 
@@ -175,16 +225,43 @@ public class Recur implements Serializable {
     // Calendar field we increment based on frequency.
     private int calIncField;
 
+    // Length of calIncField in millis for sub-daily frequencies, else 0.
+    private long calIncMillis;
+
+    private static final Comparator<WeekDay> canonicalDayOrder =
+            Comparator.comparing((WeekDay wd) -> wd.getDay())
+                      .thenComparingInt(WeekDay::getOffset);
+
+    // Computed on first use.
+    private transient volatile String canonicalForm;
+
     public enum RecurStatus {
         Ok,
 
-        InvalidRecurrenceRulePart
+        InvalidRecurrenceRulePart,
+
+        // A part has a malformed or out of range value
+        InvalidRecurrenceRuleValue,
+
+        // The parts are inconsistent or incomplete
+        InvalidRecurrenceRule
     }
     public static class RecurResult {
         private Recur recur;
         private RecurStatus status;
         private String message;
 
+        public RecurResult() {
+        }
+
+        RecurResult(final Recur recur,
+                    final RecurStatus status,
+                    final String message) {
+            this.recur = recur;
+            this.status = status;
+            this.message = message;
+        }
+
         public Recur getRecur() {
             return recur;
         }
@@ -200,137 +277,35 @@ public class Recur implements Serializable {
 
     /**
      * Constructs a new instance from the specified icalendar string value.
+     * If a parse cache is set (see {@link #setParseCache(RecurParseCache)})
+     * the result may be a copy of one parsed for another caller.
+     * <p>Use {@link RecurParser} to have all problems reported in the
+     * result instead.</p>
      *
      * @param rule an iCalendar (RFC5545) string representation of a recurrence.
-     * @throws IllegalArgumentException where the recurrence string contains an unrecognised token
+     * @throws IllegalArgumentException where the recurrence string has an invalid value or is incomplete
      */
     public static RecurResult fromIcalendar(final String rule,
                                             final boolean relaxed) {
-        final RecurResult res = new RecurResult();
-        final Builder builder = new Builder();
-
-        final Iterator<String> tokens =
-                Arrays.asList(rule.split("[;=]")).iterator();
-
-        while (tokens.hasNext()) {
-            final String token = tokens.next();
-
-            switch (token) {
-                case FREQ:
-                    builder.frequency(
-                            Frequency.valueOf(nextToken(tokens,
-                                                            token)));
-                    break;
-
-                case UNTIL:
-                    final String untilString = nextToken(tokens,
-                                                         token);
-
-                    if (untilString != null) {
-                        final DateFormat df;
-
-                        if (untilString.contains("T")) {
-                            if (untilString.endsWith("Z")) {
-                                df = new SimpleDateFormat(
-                                        "yyyyMMdd'T'HHmmss'Z'");
-                            } else {
-                                df = new SimpleDateFormat(
-                                        "yyyyMMdd'T'HHmmss");
-                            }
-                        } else {
-                            df = new SimpleDateFormat("yyyyMMdd");
-                        }
-
-                        builder.until(
-                                untilFromString(df, untilString));
-                    }
-                    break;
-
-                case COUNT:
-                    builder.count(Integer.parseInt(
-                            nextToken(tokens, token)));
-                    break;
-
-                case INTERVAL:
-                    builder.interval(Integer.parseInt(
-                            nextToken(tokens, token)));
-                    break;
-
-                case BYSECOND:
-                    builder.secondList(new NumberList(
-                            nextToken(tokens, token), 0, 59, false));
-                    break;
-
-                case BYMINUTE:
-                    builder.minuteList(new NumberList(
-                            nextToken(tokens, token), 0, 59, false));
-                    break;
-
-                case BYHOUR:
-                    builder.hourList(new NumberList(
-                            nextToken(tokens, token), 0, 23, false));
-                    break;
-
-                case BYDAY:
-                    builder.dayList(new WeekDayList(
-                            nextToken(tokens, token)));
-                    break;
-
-                case BYMONTHDAY:
-                    builder.monthDayList(new NumberList(
-                            nextToken(tokens, token), 1, 31, true));
-                    break;
-
-                case BYYEARDAY:
-                    builder.yearDayList(new NumberList(
-                            nextToken(tokens, token), 1, 366, true));
-                    break;
-
-                case BYWEEKNO:
-                    builder.weekNoList(new NumberList(
-                            nextToken(tokens, token), 1, 53, true));
-                    break;
-
-                case BYMONTH:
-                    builder.monthList(new NumberList(
-                            nextToken(tokens, token), 1, 12, false));
-                    break;
-
-                case BYSETPOS:
-                    builder.setPosList(new NumberList(
-                            nextToken(tokens, token), 1, 366, true));
-                    break;
-
-                case WKST:
-                    builder.weekStartDay(WeekDay.Day
-                            .valueOf(nextToken(tokens, token)));
-                    break;
-                default:
-                    if (!relaxed) {
-                        res.status = InvalidRecurrenceRulePart;
-                        res.message =
-                                String.format(
-                                        "Invalid recurrence rule part: %s=%s",
-                                        token,
-                                        nextToken(tokens, token));
-                        return res;
-                    }
-            }
+        final RecurParseCache cache = parseCache;
+        final RecurResult res;
+        if (cache != null) {
+            res = cache.get(rule, relaxed);
+        } else {
+            res = parse(rule, relaxed);
         }
 
-        res.recur = builder.build();
-        res.status = Ok;
+        if ((res.getStatus() != Ok) &&
+                (res.getStatus() != InvalidRecurrenceRulePart)) {
+            throw new IllegalArgumentException(res.getMessage());
+        }
 
         return res;
     }
 
-    private static String nextToken(final Iterator<String> tokens,
-                                    final String lastToken) {
-        try {
-            return tokens.next();
-        } catch (final NoSuchElementException e) {
-            throw new IllegalArgumentException("Missing expected token, last token: " + lastToken);
-        }
+    static RecurResult parse(final String rule,
+                             final boolean relaxed) {
+        return RecurParser.parse(rule, relaxed);
     }
 
     /**
@@ -390,86 +365,174 @@ public class Recur implements Serializable {
         initTransformers();
     }
 
+    /* Copies the lists and until of another rule. The compiled state is
+       built from the lists of that rule and is shared. */
+    private Recur(final Recur that) {
+        frequency = that.frequency;
+        count = that.count;
+        interval = that.interval;
+        if (that.until == null) {
+            until = null;
+        } else {
+            until = (Date)that.until.clone();
+        }
+        secondList = (NumberList)that.secondList.clone();
+        minuteList = (NumberList)that.minuteList.clone();
+        hourList = (NumberList)that.hourList.clone();
+        dayList = (WeekDayList)that.dayList.clone();
+        monthDayList = (NumberList)that.monthDayList.clone();
+        yearDayList = (NumberList)that.yearDayList.clone();
+        weekNoList = (NumberList)that.weekNoList.clone();
+        monthList = (NumberList)that.monthList.clone();
+        setPosList = (NumberList)that.setPosList.clone();
+        weekStartDay = that.weekStartDay;
+        calendarWeekStartDay = that.calendarWeekStartDay;
+        calIncField = that.calIncField;
+        calIncMillis = that.calIncMillis;
+        plan = that.plan;
+        localRule = that.getLocalRule();
+        canonicalForm = that.getCanonicalForm();
+
+        synchronized (that) {
+            countCheckpoints = that.countCheckpoints;
+        }
+    }
+
+    /**
+     * @return a rule equal to this one with its own lists and until,
+     *         so changes to them do not affect this one
+     */
+    Recur copy() {
+        return new Recur(this);
+    }
+
     private void initTransformers() {
-        transformers = new HashMap<>();
+        final Transformer bySecond;
+        final Transformer byMinute;
+        final Transformer byHour;
+        final Transformer byMonthDay;
+        final Transformer byYearDay;
+        final Transformer byWeekNo;
+        final Transformer byMonth;
+        final Transformer byDay;
+        final Transformer bySetPos;
 
         if (secondList != null) {
-            transformers.put(BYSECOND,
-                             new BySecondRule(secondList,
-                                              frequency,
-                                              weekStartDay));
+            bySecond = new BySecondRule(secondList,
+                                        frequency,
+                                        weekStartDay);
         } else {
+            bySecond = null;
             secondList = new NumberList(0, 59, false);
         }
 
         if (minuteList != null) {
-            transformers.put(BYMINUTE,
-                             new ByMinuteRule(minuteList,
-                                              frequency,
-                                              weekStartDay));
+            byMinute = new ByMinuteRule(minuteList,
+                                        frequency,
+                                        weekStartDay);
         } else {
+            byMinute = null;
             minuteList = new NumberList(0, 59, false);
         }
 
         if (hourList != null) {
-            transformers.put(BYHOUR,
-                             new ByHourRule(hourList,
-                                            frequency,
-                                            weekStartDay));
+            byHour = new ByHourRule(hourList,
+                                    frequency,
+                                    weekStartDay);
         } else {
+            byHour = null;
             hourList = new NumberList(0, 23, false);
         }
 
         if (monthDayList != null) {
-            transformers.put(BYMONTHDAY,
-                             new ByMonthDayRule(monthDayList,
-                                                frequency,
-                                                weekStartDay));
+            byMonthDay = new ByMonthDayRule(monthDayList,
+                                            frequency,
+                                            weekStartDay);
         } else {
+            byMonthDay = null;
             monthDayList = new NumberList(1, 31, true);
         }
 
         if (yearDayList != null) {
-            transformers.put(BYYEARDAY,
-                             new ByYearDayRule(yearDayList,
-                                               frequency,
-                                               weekStartDay));
+            byYearDay = new ByYearDayRule(yearDayList,
+                                          frequency,
+                                          weekStartDay);
         } else {
+            byYearDay = null;
             yearDayList = new NumberList(1, 366, true);
         }
 
         if (weekNoList != null) {
-            transformers.put(BYWEEKNO,
-                             new ByWeekNoRule(weekNoList,
-                                              frequency,
-                                              weekStartDay));
+            byWeekNo = new ByWeekNoRule(weekNoList,
+                                        frequency,
+                                        weekStartDay);
         } else {
+            byWeekNo = null;
             weekNoList = new NumberList(1, 53, true);
         }
 
         if (monthList != null) {
-            transformers.put(BYMONTH,
-                             new ByMonthRule(monthList,
-                                             frequency,
-                                             weekStartDay));
+            byMonth = new ByMonthRule(monthList,
+                                      frequency,
+                                      weekStartDay);
         } else {
+            byMonth = null;
             monthList = new NumberList(1, 12, false);
         }
 
         if (dayList != null) {
-            transformers.put(BYDAY,
-                             new ByDayRule(dayList,
-                                           deriveFilterType(),
-                                           weekStartDay));
+            byDay = new ByDayRule(dayList,
+                                  deriveFilterType(),
+                                  weekStartDay);
         } else {
+            byDay = null;
             dayList = new WeekDayList();
         }
 
         if (setPosList != null) {
-            transformers.put(BYSETPOS, new BySetPosRule(setPosList));
+            bySetPos = new BySetPosRule(setPosList);
         } else {
+            bySetPos = null;
             setPosList = new NumberList(1, 366, true);
         }
+
+        // Resolve the stages in the order defined by RFC5545
+        final List<ExpansionPlan.Stage> stages = new ArrayList<>();
+
+        addStage(stages, BYMONTH, byMonth);
+        addStage(stages, BYWEEKNO, byWeekNo);
+        addStage(stages, BYYEARDAY, byYearDay);
+
+        if (byMonthDay != null) {
+            addStage(stages, BYMONTHDAY, byMonthDay);
+        } else if ((frequency == Frequency.MONTHLY && dayList.isEmpty()) ||
+                (frequency == Frequency.YEARLY && yearDayList.isEmpty() && weekNoList.isEmpty() && dayList.isEmpty())) {
+            stages.add(new ExpansionPlan.ImplicitMonthDayStage(frequency,
+                                                               weekStartDay));
+        }
+
+        if (byDay != null) {
+            addStage(stages, BYDAY, byDay);
+        } else if (frequency == Frequency.WEEKLY || (frequency == Frequency.YEARLY && yearDayList.isEmpty()
+                && !weekNoList.isEmpty() && monthDayList.isEmpty())) {
+            stages.add(new ExpansionPlan.ImplicitDayStage(deriveFilterType(),
+                                                          weekStartDay));
+        }
+
+        addStage(stages, BYHOUR, byHour);
+        addStage(stages, BYMINUTE, byMinute);
+        addStage(stages, BYSECOND, bySecond);
+        addStage(stages, BYSETPOS, bySetPos);
+
+        plan = new ExpansionPlan(stages);
+    }
+
+    private static void addStage(final List<ExpansionPlan.Stage> stages,
+                                 final String name,
+                                 final Transformer transformer) {
+        if (transformer != null) {
+            stages.add(new ExpansionPlan.RuleStage(name, transformer));
+        }
     }
 
     private Frequency deriveFilterType() {
@@ -708,6 +771,154 @@ public class Recur implements Serializable {
         return b.toString();
     }
 
+    /**
+     * Returns the rule in a normalized form: the parts in a fixed order,
+     * BY lists sorted with duplicates removed, UNTIL as a UTC date-time
+     * and INTERVAL=1 and WKST omitted where they make no difference.
+     * Rules which differ only in the way they are written have the same
+     * canonical form, which is the basis of {@link #equals(Object)} and
+     * {@link #getFingerprint()}.
+     *
+     * @return the canonical form of the rule
+     */
+    public final String getCanonicalForm() {
+        String res = canonicalForm;
+        if (res == null) {
+            res = buildCanonicalForm();
+            canonicalForm = res;
+        }
+
+        return res;
+    }
+
+    /**
+     * A 64-bit hash of the canonical form. The value depends only on the
+     * rule so may be stored and compared across processes.
+     *
+     * @return the fingerprint
+     */
+    public final long getFingerprint() {
+        // FNV-1a over the UTF-8 bytes
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b: getCanonicalForm().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Recur)) {
+            return false;
+        }
+
+        return getCanonicalForm().equals(((Recur)o).getCanonicalForm());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final int hashCode() {
+        return getCanonicalForm().hashCode();
+    }
+
+    private String buildCanonicalForm() {
+        final StringBuilder b = new StringBuilder();
+        b.append(FREQ);
+        b.append('=');
+        b.append(frequency);
+        if ((weekStartDay != null) && (weekStartDay != WeekDay.Day.MO) &&
+                isWeekStartSignificant()) {
+            b.append(';');
+            b.append(WKST);
+            b.append('=');
+            b.append(weekStartDay);
+        }
+        if (until != null) {
+            final DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            df.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+
+            b.append(';');
+            b.append(UNTIL);
+            b.append('=');
+            b.append(df.format(until));
+        }
+        if (count != null) {
+            b.append(';');
+            b.append(COUNT);
+            b.append('=');
+            b.append(count);
+        }
+        if ((interval != null) && (interval > 1)) {
+            b.append(';');
+            b.append(INTERVAL);
+            b.append('=');
+            b.append(interval);
+        }
+        appendCanonical(b, BYMONTH, monthList);
+        appendCanonical(b, BYWEEKNO, weekNoList);
+        appendCanonical(b, BYYEARDAY, yearDayList);
+        appendCanonical(b, BYMONTHDAY, monthDayList);
+        if (!dayList.isEmpty()) {
+            b.append(';');
+            b.append(BYDAY);
+            b.append('=');
+            b.append(dayList.stream()
+                            .distinct()
+                            .sorted(canonicalDayOrder)
+                            .map(WeekDay::toString)
+                            .collect(Collectors.joining(",")));
+        }
+        appendCanonical(b, BYHOUR, hourList);
+        appendCanonical(b, BYMINUTE, minuteList);
+        appendCanonical(b, BYSECOND, secondList);
+        appendCanonical(b, BYSETPOS, setPosList);
+        return b.toString();
+    }
+
+    private static void appendCanonical(final StringBuilder b,
+                                        final String name,
+                                        final NumberList list) {
+        if (list.isEmpty()) {
+            return;
+        }
+
+        b.append(';');
+        b.append(name);
+        b.append('=');
+        b.append(list.stream()
+                     .distinct()
+                     .sorted()
+                     .map(Object::toString)
+                     .collect(Collectors.joining(",")));
+    }
+
+    /* The week start only changes the occurrences when weeks are
+       numbered or when a WEEKLY period is limited by month or position
+       or holds days spanning more than one week. */
+    private boolean isWeekStartSignificant() {
+        if (!weekNoList.isEmpty()) {
+            return true;
+        }
+
+        if (frequency != Frequency.WEEKLY) {
+            return false;
+        }
+
+        return !monthList.isEmpty() || !setPosList.isEmpty() ||
+                ((getInterval() > 1) && !dayList.isEmpty());
+    }
+
     /**
      * Returns a list of start dates in the specified period represented by this recur. Any date fields not specified by
      * this recur are retained from the period start, and as such you should ensure the period start is initialised
@@ -752,8 +963,8 @@ public class Recur implements Serializable {
      * @param seed        the start date of this Recurrence's first instance
      * @param periodStart the start of the period
      * @param periodEnd   the end of the period
-     * @param maxCount    limits the number of instances returned. Up to one years
-     *                    worth extra may be returned. Less than 0 means no limit
+     * @param maxCount    the maximum number of instances returned - no more
+     *                    than maxCount are ever returned. Less than 0 means no limit
      * @return a list of dates represented by this recur instance
      */
     public final OccurrenceList getDates(final Occurrence seed,
@@ -771,82 +982,243 @@ public class Recur implements Serializable {
             }
         }
 
-        final Calendar cal =
-                getCalendarInstance(seed,
-                                    calendarWeekStartDay, true);
-        final Calendar rootSeed = (Calendar)cal.clone();
-        
-        // optimize the start time for selecting candidates
-        // (only applicable where a COUNT is not specified)
-        if (count == null) {
-            final Calendar seededCal = (Calendar) cal.clone();
-            while (seededCal.getTime().before(periodStart.getDate())) {
-                cal.setTime(seededCal.getTime());
-                increment(seededCal);
+        final OccurrenceIterator it = iterator(seed, periodStart);
+
+        while (((maxCount < 0) || (dates.size() < maxCount)) &&
+                it.hasNext()) {
+            final Occurrence candidate = it.next();
+
+            // candidates exclusive of periodEnd..
+            if ((periodEnd != null) && candidate.after(periodEnd)) {
+                break;
             }
+
+            dates.add(candidate);
         }
 
-        final HashSet<Occurrence> invalidCandidates = new HashSet<>();
+        // sort final list..
+        Collections.sort(dates);
+        return dates;
+    }
 
-        int noCandidateIncrementCount = 0;
-        Occurrence candidate = null;
-        while ((maxCount < 0) || (dates.size() < maxCount)) {
-            final Occurrence candidateSeed =
-                    Occurrence.getInstanceLike(cal.getTime(),
-                                               seed);
+    /**
+     * Returns the dates in the specified period as
+     * {@link #getDates(Occurrence, Occurrence, Occurrence)} does, but
+     * stops when a limit of the options is reached. The dates found so
+     * far are returned with the reason the expansion stopped.
+     *
+     * @param seed        the start date of this Recurrence's first instance
+     * @param periodStart the start of the period
+     * @param periodEnd   the end of the period - null for no end
+     * @param options     limits on the expansion
+     * @return the dates and why they may be incomplete
+     */
+    public final ExpansionResult getDates(final Occurrence seed,
+                                          final Occurrence periodStart,
+                                          final Occurrence periodEnd,
+                                          final ExpansionOptions options) {
+        final boolean dateOnly = seed.getDateOnly();
+        final OccurrenceList dates =
+                new OccurrenceList(dateOnly);
+        if (!dateOnly) {
+            if (seed.getUtc()) {
+                dates.setUtc(true);
+            } else {
+                dates.setTimeZone(seed.getTimeZone());
+            }
+        }
+
+        final OccurrenceIterator it = iterator(seed, periodStart);
+        it.setBudget(new ExpansionBudget(options));
+
+        final Date horizon = getHorizon(options);
+        final int maxOccurrences = options.getMaxOccurrences();
+        ExpansionResult.Truncation truncation = null;
 
-            if (getUntil() != null && candidate != null
-                    && candidate.getDate().after(getUntil())) {
+        while (true) {
+            final Occurrence candidate = it.peek();
+
+            if (candidate == null) {
+                truncation = it.getTruncation();
                 break;
             }
-            if (periodEnd != null && candidate != null
-                    && candidate.after(periodEnd)) {
+
+            // candidates exclusive of periodEnd..
+            if ((periodEnd != null) && candidate.after(periodEnd)) {
                 break;
             }
-            if (getCount() >= 1
-                    && (dates.size() + invalidCandidates.size()) >= getCount()) {
+
+            if ((horizon != null) && candidate.getDate().after(horizon)) {
+                truncation = ExpansionResult.Truncation.Horizon;
                 break;
             }
 
-            // rootSeed = date used for the seed for the RRule at the
-            //            start of the first period.
-            // candidateSeed = date used for the start of 
-            //                 the current period.
-            final OccurrenceList candidates =
-                    getCandidates(rootSeed, candidateSeed, dateOnly);
-            if (!candidates.isEmpty()) {
-                noCandidateIncrementCount = 0;
-                // sort candidates for identifying when UNTIL date is exceeded..
-                Collections.sort(candidates);
-                for (final Occurrence candidate1: candidates) {
-                    candidate = candidate1;
-                    // don't count candidates that occur before the seed date..
-                    if (!candidate.before(seed)) {
-                        // candidates exclusive of periodEnd..
-                        if (candidate.before(periodStart)
-                                || candidate.after(periodEnd)) {
-                            invalidCandidates.add(candidate);
-                        } else if (getCount() >= 1
-                                && (dates.size() + invalidCandidates.size()) >= getCount()) {
-                            break;
-                        } else if (!candidate.before(periodStart) && !candidate.after(periodEnd)
-                            && (getUntil() == null || !candidate.after(getUntil()))) {
-
-                            dates.add(candidate);
-                        }
-                    }
-                }
-            } else {
-                noCandidateIncrementCount++;
-                if ((maxIncrementCount > 0) && (noCandidateIncrementCount > maxIncrementCount)) {
-                    break;
-                }
+            if ((maxOccurrences >= 0) && (dates.size() >= maxOccurrences)) {
+                truncation = ExpansionResult.Truncation.MaxOccurrences;
+                break;
             }
-            increment(cal);
+
+            dates.add(it.next());
         }
+
         // sort final list..
         Collections.sort(dates);
-        return dates;
+        return new ExpansionResult(dates, truncation);
+    }
+
+    /**
+     * Returns the dates in the specified period as
+     * {@link #getDates(Occurrence, Occurrence, Occurrence)} does, along
+     * with the state of the expansion at the end of the period so the
+     * window can later be extended without repeating the work.
+     *
+     * @param seed        the start date of this Recurrence's first instance
+     * @param periodStart the start of the period
+     * @param periodEnd   the end of the period
+     * @return the dates and the state to extend them
+     * @see Expansion#extend(Occurrence)
+     */
+    public final Expansion expand(final Occurrence seed,
+                                  final Occurrence periodStart,
+                                  final Occurrence periodEnd) {
+        final boolean dateOnly = seed.getDateOnly();
+        final OccurrenceList like = new OccurrenceList(dateOnly);
+        if (!dateOnly) {
+            if (seed.getUtc()) {
+                like.setUtc(true);
+            } else {
+                like.setTimeZone(seed.getTimeZone());
+            }
+        }
+
+        return Expansion.expand(iterator(seed, periodStart), like,
+                                periodEnd);
+    }
+
+    /**
+     * Returns the first page of the dates of this recurrence on or after
+     * a given date, with a token for the next page if there are more.
+     *
+     * @param seed        the start date of this Recurrence's first instance
+     * @param periodStart the first date returned is on or after this
+     * @param pageSize    maximum number of dates returned
+     * @return the dates and the token for the next page
+     * @see #getPage(Occurrence, String, int)
+     */
+    public final OccurrencePage getPage(final Occurrence seed,
+                                        final Occurrence periodStart,
+                                        final int pageSize) {
+        return getPage(seed, iterator(seed, periodStart), pageSize);
+    }
+
+    /**
+     * Returns the page of dates following the one the token was returned
+     * with. The expansion resumes in the period the previous page ended
+     * in rather than starting again from the seed.
+     *
+     * @param seed      the start date of this Recurrence's first instance
+     * @param pageToken from {@link OccurrencePage#getNextPageToken()}
+     * @param pageSize  maximum number of dates returned
+     * @return the dates and the token for the next page
+     * @throws IllegalArgumentException if the token is invalid or was
+     *         not returned for this rule and seed
+     */
+    public final OccurrencePage getPage(final Occurrence seed,
+                                        final String pageToken,
+                                        final int pageSize) {
+        final PageToken token = PageToken.decode(pageToken, this, seed);
+
+        return getPage(seed,
+                       new OccurrenceIterator(this, seed,
+                                              new Date(token.getLastValue()),
+                                              false, token.getPosition()),
+                       pageSize);
+    }
+
+    /**
+     * Counts the dates in the specified period. The result is always
+     * the size of the list {@link #getDates(Occurrence, Occurrence,
+     * Occurrence)} would return.
+     *
+     * <p>The dates are counted without being created when they come
+     * from the primitive engine: for floating seeds, which are counted
+     * in wall-clock time, for SECONDLY, MINUTELY and HOURLY rules, and
+     * for seeds in a zone whose offset does not change around the
+     * period. Otherwise - for date-only seeds, and near a DST change
+     * where the calendars can resolve a local time differently - the
+     * dates are counted as they are iterated.</p>
+     *
+     * @param seed        the start date of this Recurrence's first instance
+     * @param periodStart the start of the period
+     * @param periodEnd   the end of the period
+     * @return the number of dates - Long.MAX_VALUE if unlimited
+     * @see #count(long, TimeZone, long, long)
+     */
+    public final long count(final Occurrence seed,
+                            final Occurrence periodStart,
+                            final Occurrence periodEnd) {
+        final long seedTime = seed.getDate().getTime();
+        final long from = periodStart.getDate().getTime();
+        final long to = periodEnd.getDate().getTime();
+
+        if (seed.getDateOnly()) {
+            return countIterated(seed, periodStart, periodEnd);
+        }
+
+        if (!seed.isFloating()) {
+            // As the calendars - a UTC seed without a zone is in the default
+            final TimeZone tz;
+            if (seed.getTimeZone() == null) {
+                tz = TimeZone.getDefault();
+            } else {
+                tz = seed.getTimeZone();
+            }
+
+            if (!OccurrenceIterator.steps(this, seed) &&
+                    !OccurrenceIterator.sameOffset(this, seed, tz, from, to)) {
+                return countIterated(seed, periodStart, periodEnd);
+            }
+
+            return count(seedTime, tz, from, to);
+        }
+
+        if (OccurrenceIterator.steps(this, seed)) {
+            return count(seedTime, TimeZone.getDefault(), from, to);
+        }
+
+        final ZoneConverter floatingZone =
+                CalendarBackend.getDefault()
+                               .getZoneConverter(TimeZone.getDefault());
+
+        final long seedLocal = floatingZone.toLocal(seedTime);
+        final long localFrom = floatingZone.toLocal(from);
+        final long localTo = floatingZone.toLocal(to);
+        final long num = count(seedLocal, null, localFrom, localTo);
+        if (num == Long.MAX_VALUE) {
+            return num;
+        }
+
+        return num - gapRepeats(floatingZone, seedLocal,
+                                Math.max(from, seedTime),
+                                localFrom, localTo);
+    }
+
+    /* As getDates(seed, periodStart, periodEnd).size() */
+    private long countIterated(final Occurrence seed,
+                               final Occurrence periodStart,
+                               final Occurrence periodEnd) {
+        final OccurrenceIterator it = iterator(seed, periodStart);
+        long num = 0;
+
+        while (it.hasNext()) {
+            if (it.next().after(periodEnd)) {
+                break;
+            }
+
+            num++;
+        }
+
+        return num;
     }
 
     /**
@@ -862,197 +1234,605 @@ public class Recur implements Serializable {
      */
     public final Occurrence getNextDate(final Occurrence seed,
                                         final Occurrence startDate) {
+        final OccurrenceIterator it =
+                new OccurrenceIterator(this, seed,
+                                       startDate.getDate(), false);
 
-        final Calendar cal = getCalendarInstance(seed,
-                                                 calendarWeekStartDay,
-                                                 true);
-        final Calendar rootSeed = (Calendar)cal.clone();
-
-        // optimize the start time for selecting candidates
-        // (only applicable where a COUNT is not specified)
-        if (count == null) {
-            final Calendar seededCal = (Calendar) cal.clone();
-            while (seededCal.getTime().before(startDate.getDate())) {
-                cal.setTime(seededCal.getTime());
-                increment(seededCal);
-            }
+        if (!it.hasNext()) {
+            return null;
         }
 
-        int invalidCandidateCount = 0;
-        int noCandidateIncrementCount = 0;
-        Occurrence candidate = null;
+        return it.next();
+    }
+
+    /**
+     * Returns the the next date of this recurrence after a start date
+     * as {@link #getNextDate(Occurrence, Occurrence)} does, but stops
+     * when a limit of the options is reached.
+     *
+     * @param seed      the start date of this Recurrence's first instance
+     * @param startDate the date to start the search
+     * @param options   limits on the search
+     * @return the next date, if found, and why the search stopped if
+     *         it did not complete
+     */
+    public final ExpansionResult getNextDate(final Occurrence seed,
+                                             final Occurrence startDate,
+                                             final ExpansionOptions options) {
+        final OccurrenceIterator it =
+                new OccurrenceIterator(this, seed,
+                                       startDate.getDate(), false);
+        it.setBudget(new ExpansionBudget(options));
 
         final boolean dateOnly = seed.getDateOnly();
+        final OccurrenceList dates = new OccurrenceList(dateOnly);
+        if (!dateOnly) {
+            if (seed.getUtc()) {
+                dates.setUtc(true);
+            } else {
+                dates.setTimeZone(seed.getTimeZone());
+            }
+        }
 
-        while (true) {
-            final Occurrence candidateSeed =
-                    Occurrence.getInstanceLike(cal.getTime(),
-                                               seed);
+        final Occurrence next = it.peek();
+        final Date horizon = getHorizon(options);
 
-            if (getUntil() != null &&
-                    candidate != null &&
-                    candidate.after(getUntil())) {
-                break;
-            }
+        if (next == null) {
+            return new ExpansionResult(dates, it.getTruncation());
+        }
+
+        if ((horizon != null) && next.getDate().after(horizon)) {
+            return new ExpansionResult(dates,
+                                       ExpansionResult.Truncation.Horizon);
+        }
+
+        if (options.getMaxOccurrences() == 0) {
+            return new ExpansionResult(
+                    dates, ExpansionResult.Truncation.MaxOccurrences);
+        }
+
+        dates.add(next);
+        return new ExpansionResult(dates, null);
+    }
+
+    /**
+     * Returns an iterator over the occurrences of this recurrence on
+     * or after a given date. The occurrences are generated lazily, one
+     * period at a time, so this is the preferred way of obtaining the
+     * first few occurrences of an unbounded rule.
+     *
+     * @param seed the start date of this Recurrence's first instance
+     * @param from the first occurrence returned is on or after this
+     * @return an iterator over the occurrences in date order
+     */
+    public final OccurrenceIterator iterator(final Occurrence seed,
+                                             final Occurrence from) {
+        return new OccurrenceIterator(this, seed, from.getDate(), true);
+    }
+
+    /**
+     * Returns the the last date of this recurrence before a given
+     * date. The cost depends on how far back the previous occurrence
+     * is rather than on how long ago the seed is, except for rules
+     * with a COUNT. Returns null if there is no occurrence before the
+     * date.
+     *
+     * @param seed   the start date of this Recurrence's first instance
+     * @param before the date to search back from
+     * @return the previous date in the recurrence series before before
+     */
+    public final Occurrence getPreviousDate(final Occurrence seed,
+                                            final Occurrence before) {
+        final ReverseOccurrenceIterator it =
+                new ReverseOccurrenceIterator(this, seed,
+                                              before.getDate(), false);
+
+        if (!it.hasNext()) {
+            return null;
+        }
+
+        return it.next();
+    }
+
+    /**
+     * Returns an iterator over the occurrences of this recurrence on
+     * or before a given date in reverse date order.
+     *
+     * @param seed   the start date of this Recurrence's first instance
+     * @param before the first occurrence returned is on or before this
+     * @return an iterator over the occurrences in reverse date order
+     */
+    public final ReverseOccurrenceIterator descendingIterator(
+            final Occurrence seed,
+            final Occurrence before) {
+        return new ReverseOccurrenceIterator(this, seed, before.getDate(),
+                                             true);
+    }
+
+    /**
+     * Returns a stream of the occurrences of this recurrence in a
+     * window. The stream is sequential - call parallel() to have parts
+     * of the window expanded concurrently. Rules with a COUNT are
+     * always expanded sequentially.
+     *
+     * @param seed        the start date of this Recurrence's first instance
+     * @param periodStart the start of the window
+     * @param periodEnd   the end of the window (inclusive) - null for no end
+     * @return an ordered stream of occurrences
+     */
+    public final Stream<Occurrence> stream(final Occurrence seed,
+                                           final Occurrence periodStart,
+                                           final Occurrence periodEnd) {
+        final long to;
+        if ((periodEnd == null) ||
+                (periodEnd.getDate().getTime() == Long.MAX_VALUE)) {
+            to = Long.MAX_VALUE;
+        } else {
+            to = periodEnd.getDate().getTime() + 1;
+        }
+
+        return StreamSupport.stream(
+                new OccurrenceSpliterator(this, seed,
+                                          periodStart.getDate().getTime(),
+                                          to),
+                false);
+    }
 
-            if (getCount() > 0 &&
-                    invalidCandidateCount >= getCount()) {
+    /**
+     * Expands this recurrence into epoch millisecond values without
+     * creating an object per occurrence. The values are passed to the
+     * consumer in ascending order.
+     *
+     * @param seed     start of the first instance as epoch millis
+     * @param tz       timezone the rule is evaluated in. Null for
+     *                 floating time in which case seed, from, to and
+     *                 the results are local times expressed as UTC.
+     * @param from     the first occurrence is on or after this
+     * @param to       the last occurrence is on or before this
+     * @param consumer receives each occurrence
+     * @return the number of occurrences
+     */
+    public final int expandInto(final long seed,
+                                final TimeZone tz,
+                                final long from,
+                                final long to,
+                                final LongConsumer consumer) {
+        final ExpansionCursor cursor = cursor(seed, tz, from);
+        int num = 0;
+
+        while (cursor.hasNext()) {
+            final long val = cursor.nextLong();
+            if (val > to) {
                 break;
             }
 
-            final OccurrenceList candidates =
-                    getCandidates(rootSeed, candidateSeed, dateOnly);
-
-            if (!candidates.isEmpty()) {
-                noCandidateIncrementCount = 0;
-                // sort candidates for identifying when UNTIL date is exceeded..
-                Collections.sort(candidates);
-
-                for (final Occurrence candidate1: candidates) {
-                    candidate = candidate1;
-                    // don't count candidates that occur before the seed date..
-
-                    if (!candidate.before(seed)) {
-                        // Candidate must be after startDate because
-                        // we want the NEXT occurrence
-                        if (!candidate.after(startDate)) {
-                            invalidCandidateCount++;
-                        } else if (getCount() > 0
-                                && invalidCandidateCount >= getCount()) {
-                            break;
-                        } else if (!(getUntil() != null
-                                && candidate.after(getUntil()))) {
-                            return candidate;
-                        }
-                    }
-                }
-            } else {
-                noCandidateIncrementCount++;
-                if ((maxIncrementCount > 0) &&
-                        (noCandidateIncrementCount > maxIncrementCount)) {
-                    break;
-                }
-            }
-            increment(cal);
+            consumer.accept(val);
+            num++;
         }
-        return null;
+
+        return num;
     }
 
     /**
-     * Increments the specified calendar according to the frequency and interval specified in this recurrence rule.
+     * Expands this recurrence into an array of epoch millisecond values
+     * in ascending order. Expansion stops when the array is full.
      *
-     * @param cal a java.util.Calendar to increment
+     * @param seed   start of the first instance as epoch millis
+     * @param tz     timezone the rule is evaluated in - null for
+     *               floating time
+     * @param from   the first occurrence is on or after this
+     * @param to     the last occurrence is on or before this
+     * @param buffer receives the occurrences from index 0
+     * @return the number of values stored in buffer
      */
-    private void increment(final Calendar cal) {
-        // initialise interval..
-        if (getInterval() >= 1) {
-            cal.add(calIncField, getInterval());
-        } else {
-            cal.add(calIncField, 1);
+    public final int expandInto(final long seed,
+                                final TimeZone tz,
+                                final long from,
+                                final long to,
+                                final long[] buffer) {
+        return cursor(seed, tz, from).fill(buffer, 0, to);
+    }
+
+    /**
+     * Returns a cursor over the occurrences of this recurrence as epoch
+     * millis on or after a given time.
+     *
+     * @param seed start of the first instance as epoch millis
+     * @param tz   timezone the rule is evaluated in - null for floating
+     *             time
+     * @param from the first occurrence is on or after this
+     * @return a cursor over the occurrences in ascending order
+     */
+    public final ExpansionCursor cursor(final long seed,
+                                        final TimeZone tz,
+                                        final long from) {
+        return cursor(seed, tz, from, CalendarBackend.getDefault());
+    }
+
+    /**
+     * As {@link #cursor(long, TimeZone, long)} with the timezone
+     * arithmetic supplied by the given backend.
+     *
+     * @param seed    start of the first instance as epoch millis
+     * @param tz      timezone the rule is evaluated in - null for
+     *                floating time
+     * @param from    the first occurrence is on or after this
+     * @param backend e.g. {@link CalendarBackend#JAVA_TIME}
+     * @return a cursor over the occurrences in ascending order
+     */
+    public final ExpansionCursor cursor(final long seed,
+                                        final TimeZone tz,
+                                        final long from,
+                                        final CalendarBackend backend) {
+        return new ExpansionCursor(getLocalRule(), tz, seed, from, true,
+                                   backend);
+    }
+
+    /**
+     * Counts the occurrences of this recurrence in a window without
+     * creating them. The result is the number of values
+     * {@link #expandInto(long, TimeZone, long, long, long[])} would
+     * produce. For rules with the same number of occurrences in every
+     * period, such as WEEKLY;BYDAY=MO,WE,FR or DAILY with only time of
+     * day parts, the cost does not depend on the size of the window.
+     *
+     * @param seed start of the first instance as epoch millis
+     * @param tz   timezone the rule is evaluated in - null for floating
+     *             time
+     * @param from the first occurrence counted is on or after this
+     * @param to   the last occurrence counted is on or before this
+     * @return the number of occurrences - Long.MAX_VALUE if unlimited
+     */
+    public final long count(final long seed,
+                            final TimeZone tz,
+                            final long from,
+                            final long to) {
+        return OccurrenceCounter.count(getLocalRule(), tz, seed, from, to,
+                                       CalendarBackend.getDefault());
+    }
+
+    /**
+     * Returns a cursor over the occurrences of this recurrence as epoch
+     * millis on or before a given time in descending order.
+     *
+     * @param seed   start of the first instance as epoch millis
+     * @param tz     timezone the rule is evaluated in - null for
+     *               floating time
+     * @param before the first occurrence is on or before this
+     * @return a cursor over the occurrences in descending order
+     */
+    public final DescendingCursor descendingCursor(final long seed,
+                                                   final TimeZone tz,
+                                                   final long before) {
+        return new DescendingCursor(getLocalRule(), tz, seed, before, true,
+                                    CalendarBackend.getDefault());
+    }
+
+    /**
+     * Works out from the BY parts of this rule which days it can occur
+     * on. A rule such as FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=30 can never
+     * occur and expansions of it end at once. One which can occur only
+     * on a few days, such as February 29, skips the periods between
+     * them rather than examining each in turn.
+     *
+     * @return the days this rule can occur on
+     */
+    public final DayFeasibility getFeasibility() {
+        return getLocalRule().getFeasibility();
+    }
+
+    /**
+     * @return this rule compiled for the primitive expansion engine
+     */
+    LocalRule getLocalRule() {
+        LocalRule rule = localRule;
+
+        if (rule == null) {
+            rule = new LocalRule(this);
+            localRule = rule;
         }
+
+        return rule;
     }
 
     /**
-     * Returns a list of possible dates generated from the applicable BY* rules, using the specified date as a seed.
+     * BYDAY of a SECONDLY, MINUTELY or HOURLY rule with BYMONTH or
+     * BYWEEKNO, but not BYMONTHDAY or BYYEARDAY, is expanded over the
+     * month or week of each period. The candidates of a period may
+     * then be on other days, so periods cannot be skipped by their day.
      *
-     * @param date  the seed date
-     * @param dateOnly the type of list to return
-     * @return a DateList
+     * @return true if candidates may fall outside the day of the period
      */
-    private OccurrenceList getCandidates(final Calendar rootSeed,
-                                         final Occurrence date,
-                                         final boolean dateOnly) {
-        OccurrenceList dates = new OccurrenceList(dateOnly);
-        dates.add(date); // If first will set utc/timezone
+    boolean expandsDaysOfSubDaily() {
+        if ((frequency.compareTo(Frequency.DAILY) >= 0) ||
+                dayList.isEmpty()) {
+            return false;
+        }
 
-        if (transformers.get(BYMONTH) != null) {
-            dates = transformers.get(BYMONTH).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYMONTH processing: " + dates);
-            }
+        final Frequency filterType = deriveFilterType();
+        return (filterType == Frequency.WEEKLY) ||
+                (filterType == Frequency.MONTHLY);
+    }
+
+    /**
+     * BYWEEKNO moves each date to a week of its year, so the candidates
+     * of different periods may be the same or out of order. So may
+     * those of the rules of {@link #expandsDaysOfSubDaily()}.
+     *
+     * @return true if candidates may fall outside their period
+     */
+    boolean leavesPeriods() {
+        return !weekNoList.isEmpty() || expandsDaysOfSubDaily();
+    }
+
+    /**
+     * A rule without BY parts has exactly one occurrence in each period,
+     * at its start, provided the day of the seed exists in every period.
+     * The n'th occurrence is then the start of period n and can be
+     * computed directly.
+     *
+     * @param rootSeed the start of the first period
+     * @return true if the occurrences are the period starts
+     */
+    boolean isArithmetic(final Calendar rootSeed) {
+        if (!secondList.isEmpty() || !minuteList.isEmpty() ||
+                !hourList.isEmpty() || !dayList.isEmpty() ||
+                !monthDayList.isEmpty() || !yearDayList.isEmpty() ||
+                !weekNoList.isEmpty() || !monthList.isEmpty() ||
+                !setPosList.isEmpty()) {
+            return false;
         }
 
-        if (transformers.get(BYWEEKNO) != null) {
-            dates = transformers.get(BYWEEKNO).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYWEEKNO processing: " + dates);
-            }
+        final int day = rootSeed.get(Calendar.DAY_OF_MONTH);
+        switch (frequency) {
+            case MONTHLY:
+                return day <= 28;
+            case YEARLY:
+                return (day <= 28) ||
+                        (rootSeed.get(Calendar.MONTH) != Calendar.FEBRUARY);
+            default:
+                return true;
         }
+    }
 
-        if (transformers.get(BYYEARDAY) != null) {
-            dates = transformers.get(BYYEARDAY).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYYEARDAY processing: " + dates);
-            }
+    /**
+     * Sets the calendar to the start of a period. The start of period n
+     * is always computed from the root seed rather than by repeatedly
+     * incrementing, so no drift accumulates from clamped month days.
+     *
+     * @param rootSeed the start of the first period
+     * @param index    the index of the period - 0 for the first
+     * @param cal      set to the start of the period
+     */
+    void periodStart(final Calendar rootSeed,
+                     final long index,
+                     final Calendar cal) {
+        final long increments = index * getIncrement();
+
+        if (calIncMillis > 0) {
+            // These fields are added as elapsed time anyway
+            cal.setTimeInMillis(rootSeed.getTimeInMillis() +
+                                        increments * calIncMillis);
+            return;
         }
 
-        if (transformers.get(BYMONTHDAY) != null) {
-            dates = transformers.get(BYMONTHDAY).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYMONTHDAY processing: " + dates);
-            }
-        } else if ((frequency == Frequency.MONTHLY && dayList.isEmpty()) ||
-                (frequency == Frequency.YEARLY && yearDayList.isEmpty() && weekNoList.isEmpty() && dayList.isEmpty())) {
+        cal.setTimeInMillis(rootSeed.getTimeInMillis());
+        cal.add(calIncField, Math.toIntExact(increments));
+    }
+
+    /**
+     * Finds the last period which starts before the given date. The
+     * index is computed from the difference in the frequency fields
+     * so the cost does not depend upon how far the date is from the
+     * root seed.
+     *
+     * @param rootSeed the start of the first period
+     * @param date     the target date
+     * @param cal      used for calculation - contents are overwritten
+     * @return index of the last period starting before date or 0 if
+     *         the first period does not start before it.
+     */
+    long periodIndexBefore(final Calendar rootSeed,
+                           final Date date,
+                           final Calendar cal) {
+        final long rootTime = rootSeed.getTimeInMillis();
+        final long target = date.getTime();
 
-            final NumberList implicitMonthDayList = new NumberList();
-            implicitMonthDayList.add(rootSeed.get(Calendar.DAY_OF_MONTH));
-            final ByMonthDayRule implicitRule =
-                    new ByMonthDayRule(implicitMonthDayList,
-                                       frequency,
-                                       weekStartDay);
-            dates = implicitRule.transform(dates);
+        if (target <= rootTime) {
+            return 0;
         }
 
-        if (transformers.get(BYDAY) != null) {
-            dates = transformers.get(BYDAY).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYDAY processing: " + dates);
-            }
-        } else if (frequency == Frequency.WEEKLY || (frequency == Frequency.YEARLY && yearDayList.isEmpty()
-                && !weekNoList.isEmpty() && monthDayList.isEmpty())) {
+        final int inc = getIncrement();
 
-            final ByDayRule implicitRule = new ByDayRule(new WeekDayList(WeekDay.getWeekDay(rootSeed)),
-                    deriveFilterType(),  weekStartDay);
-            dates = implicitRule.transform(dates);
+        if (calIncMillis > 0) {
+            return (target - rootTime - 1) / (inc * calIncMillis);
         }
 
-        if (transformers.get(BYHOUR) != null) {
-            dates = transformers.get(BYHOUR).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYHOUR processing: " + dates);
-            }
+        cal.setTime(date);
+
+        final long fieldDiff;
+        switch (frequency) {
+            case DAILY:
+                fieldDiff = cal.get(Calendar.JULIAN_DAY) -
+                        rootSeed.get(Calendar.JULIAN_DAY);
+                break;
+            case WEEKLY:
+                fieldDiff = (cal.get(Calendar.JULIAN_DAY) -
+                        rootSeed.get(Calendar.JULIAN_DAY)) / 7;
+                break;
+            case MONTHLY:
+                fieldDiff = (cal.get(Calendar.EXTENDED_YEAR) -
+                        rootSeed.get(Calendar.EXTENDED_YEAR)) * 12L +
+                        cal.get(Calendar.MONTH) -
+                        rootSeed.get(Calendar.MONTH);
+                break;
+            default: // YEARLY
+                fieldDiff = cal.get(Calendar.EXTENDED_YEAR) -
+                        rootSeed.get(Calendar.EXTENDED_YEAR);
+        }
+
+        long index = Math.max(0, fieldDiff / inc);
+
+        // The estimate is off by at most one either way
+        periodStart(rootSeed, index, cal);
+        while ((index > 0) && (cal.getTimeInMillis() >= target)) {
+            index--;
+            periodStart(rootSeed, index, cal);
         }
 
-        if (transformers.get(BYMINUTE) != null) {
-            dates = transformers.get(BYMINUTE).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYMINUTE processing: " + dates);
+        while (true) {
+            periodStart(rootSeed, index + 1, cal);
+            if (cal.getTimeInMillis() >= target) {
+                return index;
             }
+            index++;
         }
+    }
+
+    /**
+     * Wall-clock times in a DST gap convert to the same instants as the
+     * times just after it, which the iterator drops if they repeat or
+     * precede one already returned. Only the times from the start of a
+     * gap to its length after its end can be dropped, so just those are
+     * expanded.
+     *
+     * @param zone      the default timezone
+     * @param seedLocal the seed as local millis
+     * @param start     epoch millis of the first time counted
+     * @param localFrom the first time counted
+     * @param localTo   the last time counted
+     * @return number of times counted which the iterator drops
+     */
+    private long gapRepeats(final ZoneConverter zone,
+                            final long seedLocal,
+                            final long start,
+                            final long localFrom,
+                            final long localTo) {
+        long num = 0;
+        long transition =
+                zone.nextTransition(start - Gregorian.MILLIS_PER_DAY);
+
+        while ((transition != Long.MIN_VALUE) &&
+                (transition != Long.MAX_VALUE)) {
+            final int before = zone.getOffset(transition - 1);
+            final int after = zone.getOffset(transition);
+            final long gapStart = transition + before;
+            if (gapStart > localTo) {
+                break;
+            }
+
+            final long end = Math.min(gapStart + 2L * (after - before),
+                                      localTo + 1);
+            final long from = Math.max(gapStart, localFrom);
 
-        if (transformers.get(BYSECOND) != null) {
-            dates = transformers.get(BYSECOND).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after BYSECOND processing: " + dates);
+            if ((after > before) && (from < end)) {
+                final ExpansionCursor cursor =
+                        new ExpansionCursor(getLocalRule(), null,
+                                            seedLocal, from, true);
+                if (!cursor.hasNext()) {
+                    // The COUNT or UNTIL has been reached
+                    break;
+                }
+
+                long last = Long.MIN_VALUE;
+                while (cursor.hasNext()) {
+                    final long val = cursor.nextLong();
+                    if (val >= end) {
+                        break;
+                    }
+
+                    final long epoch = zone.toEpoch(val);
+                    if (epoch <= last) {
+                        num++;
+                    } else {
+                        last = epoch;
+                    }
+                }
             }
+
+            transition = zone.nextTransition(transition);
         }
 
-        if (transformers.get(BYSETPOS) != null) {
-            dates = transformers.get(BYSETPOS).transform(dates);
-            // debugging..
-            if (log.isDebugEnabled()) {
-                log.debug("Dates after SETPOS processing: " + dates);
+        return num;
+    }
+
+    /**
+     * @return up to pageSize dates from the iterator and a token if
+     *         there are more
+     */
+    private OccurrencePage getPage(final Occurrence seed,
+                                   final OccurrenceIterator it,
+                                   final int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive: " +
+                                                       pageSize);
+        }
+
+        final boolean dateOnly = seed.getDateOnly();
+        final OccurrenceList dates = new OccurrenceList(dateOnly);
+        if (!dateOnly) {
+            if (seed.getUtc()) {
+                dates.setUtc(true);
+            } else {
+                dates.setTimeZone(seed.getTimeZone());
             }
         }
-        return dates;
+
+        while ((dates.size() < pageSize) && it.hasNext()) {
+            dates.add(it.next());
+        }
+
+        if (dates.size() < pageSize) {
+            return new OccurrencePage(dates, null);
+        }
+
+        // Taken before looking ahead which may move to a later period
+        final PageToken token = new PageToken(it.getLastValue(),
+                                              it.getPosition());
+        if (!it.hasNext()) {
+            return new OccurrencePage(dates, null);
+        }
+
+        return new OccurrencePage(dates, token.encode(this, seed));
+    }
+
+    /**
+     * @return the horizon of the options if this rule has neither a
+     *         COUNT nor an UNTIL
+     */
+    private Date getHorizon(final ExpansionOptions options) {
+        if ((getCount() >= 1) || (getUntil() != null)) {
+            return null;
+        }
+
+        return options.getHorizon();
+    }
+
+    /**
+     * @return number of frequency units between the start of periods
+     */
+    private int getIncrement() {
+        if (getInterval() >= 1) {
+            return getInterval();
+        }
+
+        return 1;
+    }
+
+    /**
+     * Returns a list of possible dates generated from the applicable BY* rules, using the specified date as a seed.
+     *
+     * @param date  the seed date
+     * @param dateOnly the type of list to return
+     * @return a DateList
+     */
+    OccurrenceList getCandidates(final Calendar rootSeed,
+                                 final Occurrence date,
+                                 final boolean dateOnly) {
+        final OccurrenceList dates = new OccurrenceList(dateOnly);
+        dates.add(date); // If first will set utc/timezone
+
+        return plan.apply(rootSeed, dates, log);
     }
 
     private void validate() {
@@ -1063,12 +1843,15 @@ public class Recur implements Serializable {
         switch (frequency) {
             case SECONDLY:
                 calIncField = Calendar.SECOND;
+                calIncMillis = 1000;
                 break;
             case MINUTELY:
                 calIncField = Calendar.MINUTE;
+                calIncMillis = 60 * 1000;
                 break;
             case HOURLY:
                 calIncField = Calendar.HOUR_OF_DAY;
+                calIncMillis = 60 * 60 * 1000;
                 break;
             case DAILY:
                 calIncField = Calendar.DAY_OF_YEAR;
@@ -1102,6 +1885,34 @@ public class Recur implements Serializable {
         }
     }
 
+    /**
+     * @return the checkpoint index for COUNT rules or null if disabled
+     */
+    synchronized CountCheckpoints getCountCheckpoints() {
+        final int interval = countCheckpointInterval;
+
+        if (interval <= 0) {
+            return null;
+        }
+
+        if ((countCheckpoints == null) ||
+                (countCheckpoints.getInterval() != interval)) {
+            countCheckpoints = new CountCheckpoints(interval);
+        }
+
+        return countCheckpoints;
+    }
+
+    /**
+     * Construct a Calendar object for this rule and sets the time.
+     *
+     * @param date Occurence for the date
+     * @return an ICU Calendar
+     */
+    Calendar getCalendarInstance(final Occurrence date) {
+        return getCalendarInstance(date, calendarWeekStartDay, true);
+    }
+
     /**
      * Construct a Calendar object and sets the time.
      *
@@ -1114,18 +1925,9 @@ public class Recur implements Serializable {
             final Occurrence date,
             final int calendarWeekStartDay,
             final boolean lenient) {
-        final Calendar cal;
-
-        if (date.getTimeZone() != null) {
-            cal = Calendar.getInstance(date.getTimeZone());
-        } else {
-            cal = Calendar.getInstance();
-        }
-
-        // A week should have at least 4 days to be considered as such per RFC5545
-        cal.setMinimalDaysInFirstWeek(4);
-        cal.setFirstDayOfWeek(calendarWeekStartDay);
-        cal.setLenient(lenient);
+        final Calendar cal = CalendarPool.acquire(date.getTimeZone(),
+                                                  calendarWeekStartDay,
+                                                  lenient);
         date.setCalendarTime(cal);
 
         return cal;
@@ -1251,13 +2053,4 @@ public class Recur implements Serializable {
                              weekStartDay);
         }
     }
-
-    private static Date untilFromString(final DateFormat df,
-                                        final String val) {
-        try {
-            return df.parse(val);
-        } catch (final ParseException pe) {
-            throw new IllegalArgumentException(pe);
-        }
-    }
 }
@@ -0,0 +1,256 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the results of
+ * {@link Recur#fromIcalendar(String, boolean)} keyed by the rule string
+ * and the relaxed flag.
+ *
+ * <p>Install an instance with {@link Recur#setParseCache(RecurParseCache)}.
+ * Repeated parses of the same string then reuse the first result. Each
+ * caller gets its own copy of the {@link Recur}, with its own lists and
+ * until, so changes one caller makes to them are not seen by others.
+ * The copies share the compiled form of the rule, so a copy costs far
+ * less than a parse. Results reporting problems are cached too.</p>
+ *
+ * <p>The entries are spread over a number of segments, each of which
+ * drops its least recently used entry when full, so lookups on
+ * different segments do not contend.</p>
+ *
+ * <p>Instances may be shared between threads.</p>
+ */
+public class RecurParseCache {
+  private static final int maxSegments = 16;
+
+  /* A power of 2 */
+  private final Segment[] segments;
+
+  private final int maxSize;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  private static final class Key {
+    private final String rule;
+
+    private final boolean relaxed;
+
+    Key(final String rule,
+        final boolean relaxed) {
+      this.rule = rule;
+      this.relaxed = relaxed;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      final Key that = (Key)o;
+      return (relaxed == that.relaxed) && rule.equals(that.rule);
+    }
+
+    @Override
+    public int hashCode() {
+      return rule.hashCode() * 31 + (relaxed ? 1 : 0);
+    }
+  }
+
+  private final class Segment
+          extends LinkedHashMap<Key, Recur.RecurResult> {
+    private static final long serialVersionUID = 4839240196357710862L;
+
+    private final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(
+            final Map.Entry<Key, Recur.RecurResult> eldest) {
+      if (size() <= capacity) {
+        return false;
+      }
+
+      evictions.increment();
+      return true;
+    }
+  }
+
+  /**
+   * @param maxSize maximum number of rules retained
+   */
+  public RecurParseCache(final int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be positive: " +
+                                                 maxSize);
+    }
+
+    this.maxSize = maxSize;
+
+    int num = 1;
+    while ((num < maxSegments) && (num * 2 <= maxSize)) {
+      num *= 2;
+    }
+
+    // Round down so the total is at most maxSize
+    segments = new Segment[num];
+    for (int i = 0; i < num; i++) {
+      segments[i] = new Segment(maxSize / num);
+    }
+  }
+
+  /**
+   * Returns the cached result for the rule or parses and caches it.
+   *
+   * @param rule an iCalendar (RFC5545) string representation of a recurrence
+   * @param relaxed true to ignore unrecognised parts
+   * @return the result of {@link RecurParser#parse(CharSequence, boolean)}
+   *         with a copy of the cached rule
+   */
+  public Recur.RecurResult get(final String rule,
+                               final boolean relaxed) {
+    final Key key = new Key(rule, relaxed);
+    final Segment segment = segmentFor(key);
+
+    synchronized (segment) {
+      final Recur.RecurResult res = segment.get(key);
+      if (res != null) {
+        hits.increment();
+        return copy(res);
+      }
+    }
+
+    misses.increment();
+
+    /* Parse outside the lock. Two threads may both parse a new rule -
+       the first result stored wins so all callers get copies of it. */
+    final Recur.RecurResult res = Recur.parse(rule, relaxed);
+
+    synchronized (segment) {
+      final Recur.RecurResult prev = segment.putIfAbsent(key, res);
+      if (prev != null) {
+        return copy(prev);
+      }
+    }
+
+    return copy(res);
+  }
+
+  /**
+   * @return maximum number of rules retained
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of rules currently retained
+   */
+  public int size() {
+    int num = 0;
+    for (final Segment segment: segments) {
+      synchronized (segment) {
+        num += segment.size();
+      }
+    }
+
+    return num;
+  }
+
+  /**
+   * Removes all the rules. The statistics are unchanged.
+   */
+  public void clear() {
+    for (final Segment segment: segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return number of lookups satisfied from the cache
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of lookups which parsed the rule
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return number of rules dropped to stay within the maximum size
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return fraction of lookups satisfied from the cache - 0 if none
+   */
+  public double getHitRate() {
+    final long h = hits.sum();
+    final long total = h + misses.sum();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    return (double)h / total;
+  }
+
+  /**
+   * Zeroes the hit, miss and eviction counts.
+   */
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "RecurParseCache{size=" + size() +
+            ", maxSize=" + maxSize +
+            ", hits=" + getHits() +
+            ", misses=" + getMisses() +
+            ", evictions=" + getEvictions() +
+            "}";
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* The cached result is never handed out so it cannot be changed */
+  private static Recur.RecurResult copy(final Recur.RecurResult res) {
+    if (res.getRecur() == null) {
+      return res;
+    }
+
+    return new Recur.RecurResult(res.getRecur().copy(),
+                                 res.getStatus(), res.getMessage());
+  }
+
+  private Segment segmentFor(final Key key) {
+    final int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+  }
+}
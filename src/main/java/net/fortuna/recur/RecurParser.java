@@ -0,0 +1,589 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.Recur.Frequency;
+import net.fortuna.recur.Recur.RecurResult;
+import net.fortuna.recur.Recur.RecurStatus;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.Gregorian;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Date;
+
+/**
+ * Parses the iCalendar (RFC5545) form of a recurrence rule in a single
+ * pass over the characters.
+ *
+ * <p>Numbers and days are read in place, without creating substrings
+ * or a DateFormat, and nothing is thrown for bad input. Every problem
+ * found is described in the message of the result, whose status is
+ * that of the first problem. The rule is only built if there are no
+ * problems.</p>
+ *
+ * <p>Part names and values are case sensitive. A part which appears
+ * more than once takes its last value. Unknown parts are skipped when
+ * relaxed and are otherwise reported with the status
+ * {@link RecurStatus#InvalidRecurrenceRulePart}.</p>
+ *
+ * <p>An UNTIL ending in Z is in UTC. Other UNTIL values are in the
+ * default timezone.</p>
+ */
+public final class RecurParser {
+  private static final String[] partNames = {
+          "FREQ", "UNTIL", "COUNT", "INTERVAL",
+          "BYSECOND", "BYMINUTE", "BYHOUR", "BYDAY",
+          "BYMONTHDAY", "BYYEARDAY", "BYWEEKNO", "BYMONTH",
+          "BYSETPOS", "WKST"
+  };
+
+  private static final int freq = 0;
+  private static final int until = 1;
+  private static final int count = 2;
+  private static final int interval = 3;
+  private static final int bySecond = 4;
+  private static final int byMinute = 5;
+  private static final int byHour = 6;
+  private static final int byDay = 7;
+  private static final int byMonthDay = 8;
+  private static final int byYearDay = 9;
+  private static final int byWeekNo = 10;
+  private static final int byMonth = 11;
+  private static final int bySetPos = 12;
+  private static final int wkst = 13;
+
+  private static final Frequency[] frequencies = Frequency.values();
+
+  private static final WeekDay.Day[] days = WeekDay.Day.values();
+
+  /* Returned by parseInt for a bad number */
+  private static final long badNumber = Long.MIN_VALUE;
+
+  private final CharSequence rule;
+
+  private final boolean relaxed;
+
+  private final Recur.Builder builder = new Recur.Builder();
+
+  private boolean hasFrequency;
+
+  private boolean hasUntil;
+
+  private boolean hasCount;
+
+  private RecurStatus status;
+
+  private StringBuilder message;
+
+  private RecurParser(final CharSequence rule,
+                      final boolean relaxed) {
+    this.rule = rule;
+    this.relaxed = relaxed;
+  }
+
+  /**
+   * @param rule an iCalendar (RFC5545) string representation of a recurrence
+   * @param relaxed true to skip unknown parts
+   * @return the rule or the problems found
+   */
+  public static RecurResult parse(final CharSequence rule,
+                                  final boolean relaxed) {
+    return new RecurParser(rule, relaxed).parse();
+  }
+
+  /**
+   * @param rule holds the characters of the rule
+   * @param offset of the first character
+   * @param length number of characters
+   * @param relaxed true to skip unknown parts
+   * @return the rule or the problems found
+   */
+  public static RecurResult parse(final char[] rule,
+                                  final int offset,
+                                  final int length,
+                                  final boolean relaxed) {
+    return parse(CharBuffer.wrap(rule, offset, length), relaxed);
+  }
+
+  /**
+   * Parses the remaining bytes of the buffer as US-ASCII. The position
+   * of the buffer is not changed.
+   *
+   * @param rule holds the bytes of the rule
+   * @param relaxed true to skip unknown parts
+   * @return the rule or the problems found
+   */
+  public static RecurResult parse(final ByteBuffer rule,
+                                  final boolean relaxed) {
+    return parse(new AsciiSequence(rule, rule.position(),
+                                   rule.limit()),
+                 relaxed);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private RecurResult parse() {
+    final int len = rule.length();
+    int pos = 0;
+
+    while (pos < len) {
+      int end = pos;
+      while ((end < len) && (rule.charAt(end) != ';')) {
+        end++;
+      }
+
+      if (end > pos) {
+        parsePart(pos, end);
+      }
+
+      pos = end + 1;
+    }
+
+    if (!hasFrequency) {
+      problem(RecurStatus.InvalidRecurrenceRule,
+              "A recurrence MUST have a frequency.");
+    }
+
+    if (hasCount && hasUntil) {
+      problem(RecurStatus.InvalidRecurrenceRule,
+              "Cannot have both UNTIL and COUNT in a recurrence rule");
+    }
+
+    if (status != null) {
+      return new RecurResult(null, status, message.toString());
+    }
+
+    return new RecurResult(builder.build(), RecurStatus.Ok, null);
+  }
+
+  private void parsePart(final int start,
+                         final int end) {
+    int eq = start;
+    while ((eq < end) && (rule.charAt(eq) != '=')) {
+      eq++;
+    }
+
+    if (eq == end) {
+      problem(RecurStatus.InvalidRecurrenceRule,
+              "Missing value for " + rule.subSequence(start, end));
+      return;
+    }
+
+    final int name = partIndex(start, eq);
+    final int vstart = eq + 1;
+
+    switch (name) {
+      case freq:
+        final Frequency f = parseFrequency(vstart, end);
+        if (f != null) {
+          builder.frequency(f);
+          hasFrequency = true;
+        }
+        break;
+
+      case until:
+        final Date u = parseUntil(vstart, end);
+        if (u != null) {
+          builder.until(u);
+          hasUntil = true;
+        }
+        break;
+
+      case count:
+        final int c = parsePositive(name, vstart, end);
+        if (c > 0) {
+          builder.count(c);
+          hasCount = true;
+        }
+        break;
+
+      case interval:
+        final int i = parsePositive(name, vstart, end);
+        if (i > 0) {
+          builder.interval(i);
+        }
+        break;
+
+      case bySecond:
+        builder.secondList(parseNumbers(name, vstart, end, 0, 59, false));
+        break;
+
+      case byMinute:
+        builder.minuteList(parseNumbers(name, vstart, end, 0, 59, false));
+        break;
+
+      case byHour:
+        builder.hourList(parseNumbers(name, vstart, end, 0, 23, false));
+        break;
+
+      case byDay:
+        builder.dayList(parseDays(vstart, end));
+        break;
+
+      case byMonthDay:
+        builder.monthDayList(parseNumbers(name, vstart, end, 1, 31, true));
+        break;
+
+      case byYearDay:
+        builder.yearDayList(parseNumbers(name, vstart, end, 1, 366, true));
+        break;
+
+      case byWeekNo:
+        builder.weekNoList(parseNumbers(name, vstart, end, 1, 53, true));
+        break;
+
+      case byMonth:
+        builder.monthList(parseNumbers(name, vstart, end, 1, 12, false));
+        break;
+
+      case bySetPos:
+        builder.setPosList(parseNumbers(name, vstart, end, 1, 366, true));
+        break;
+
+      case wkst:
+        final WeekDay.Day d = parseDay(vstart, end);
+        if (d == null) {
+          badValue(name, vstart, end);
+        } else {
+          builder.weekStartDay(d);
+        }
+        break;
+
+      default:
+        if (!relaxed) {
+          problem(RecurStatus.InvalidRecurrenceRulePart,
+                  "Invalid recurrence rule part: " +
+                          rule.subSequence(start, end));
+        }
+    }
+  }
+
+  /**
+   * @return index into partNames or -1 if not known
+   */
+  private int partIndex(final int start,
+                        final int end) {
+    for (int i = 0; i < partNames.length; i++) {
+      if (matches(start, end, partNames[i])) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private boolean matches(final int start,
+                          final int end,
+                          final String val) {
+    final int len = end - start;
+    if (len != val.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < len; i++) {
+      if (rule.charAt(start + i) != val.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private Frequency parseFrequency(final int start,
+                                   final int end) {
+    for (final Frequency f: frequencies) {
+      if (matches(start, end, f.name())) {
+        return f;
+      }
+    }
+
+    badValue(freq, start, end);
+    return null;
+  }
+
+  private WeekDay.Day parseDay(final int start,
+                               final int end) {
+    for (final WeekDay.Day d: days) {
+      if (matches(start, end, d.name())) {
+        return d;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the value or -1 after reporting a problem
+   */
+  private int parsePositive(final int name,
+                            final int start,
+                            final int end) {
+    final long val = parseInt(start, end);
+    if ((val < 1) || (val > Integer.MAX_VALUE)) {
+      badValue(name, start, end);
+      return -1;
+    }
+
+    return (int)val;
+  }
+
+  private NumberList parseNumbers(final int name,
+                                  final int start,
+                                  final int end,
+                                  final int min,
+                                  final int max,
+                                  final boolean allowsNegativeValues) {
+    final NumberList res = new NumberList(min, max, allowsNegativeValues);
+    boolean ok = true;
+    int pos = start;
+
+    while (pos <= end) {
+      int next = pos;
+      while ((next < end) && (rule.charAt(next) != ',')) {
+        next++;
+      }
+
+      final long val = parseInt(pos, next);
+      final long abs = Math.abs(val);
+      if ((val == badNumber) ||
+              ((val < 0) && !allowsNegativeValues) ||
+              (abs < min) || (abs > max)) {
+        badValue(name, pos, next);
+        ok = false;
+      } else if (ok) {
+        res.add((int)val);
+      }
+
+      pos = next + 1;
+    }
+
+    if (!ok) {
+      return null;
+    }
+
+    return res;
+  }
+
+  private WeekDayList parseDays(final int start,
+                                final int end) {
+    final WeekDayList res = new WeekDayList();
+    boolean ok = true;
+    int pos = start;
+
+    while (pos <= end) {
+      int next = pos;
+      while ((next < end) && (rule.charAt(next) != ',')) {
+        next++;
+      }
+
+      // The day is the last 2 characters, preceded by any offset
+      final WeekDay.Day day;
+      final long offset;
+      if (next - pos < 2) {
+        day = null;
+        offset = 0;
+      } else {
+        day = parseDay(next - 2, next);
+        if (next - pos == 2) {
+          offset = 0;
+        } else {
+          offset = parseInt(pos, next - 2);
+        }
+      }
+
+      if ((day == null) || (offset == badNumber) ||
+              (Math.abs(offset) > 53) ||
+              ((offset == 0) && (next - pos > 2))) {
+        badValue(byDay, pos, next);
+        ok = false;
+      } else if (ok) {
+        if (offset == 0) {
+          res.add(WeekDay.getWeekDay(day));
+        } else {
+          res.add(new WeekDay(WeekDay.getWeekDay(day), (int)offset));
+        }
+      }
+
+      pos = next + 1;
+    }
+
+    if (!ok) {
+      return null;
+    }
+
+    return res;
+  }
+
+  /**
+   * @return the date or null after reporting a problem
+   */
+  private Date parseUntil(final int start,
+                          final int end) {
+    final int len = end - start;
+    final boolean utc = (len == 16) && (rule.charAt(end - 1) == 'Z');
+
+    if ((len != 8) && (len != 15) && !utc) {
+      badValue(until, start, end);
+      return null;
+    }
+
+    final int year = digits(start, 4);
+    final int month = digits(start + 4, 2);
+    final int day = digits(start + 6, 2);
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+
+    if (len > 8) {
+      if (rule.charAt(start + 8) != 'T') {
+        badValue(until, start, end);
+        return null;
+      }
+
+      hour = digits(start + 9, 2);
+      minute = digits(start + 11, 2);
+      second = digits(start + 13, 2);
+    }
+
+    if ((year < 0) || (month < 1) || (month > 12) ||
+            (day < 1) ||
+            (day > Gregorian.lengthOfMonth(year, month)) ||
+            (hour < 0) || (hour > 23) ||
+            (minute < 0) || (minute > 59) ||
+            (second < 0) || (second > 60)) {
+      badValue(until, start, end);
+      return null;
+    }
+
+    final long local =
+            Gregorian.epochDay(year, month, day) * Gregorian.MILLIS_PER_DAY +
+                    hour * Gregorian.MILLIS_PER_HOUR +
+                    minute * Gregorian.MILLIS_PER_MINUTE +
+                    second * Gregorian.MILLIS_PER_SECOND;
+
+    if (utc) {
+      return new Date(local);
+    }
+
+    return new Date(CalendarBackend.getDefault()
+                                   .getZoneConverter(TimeZone.getDefault())
+                                   .toEpoch(local));
+  }
+
+  /**
+   * @return the value of the digits or -1 if any is not a digit
+   */
+  private int digits(final int start,
+                     final int num) {
+    int val = 0;
+    for (int i = start; i < start + num; i++) {
+      final char ch = rule.charAt(i);
+      if ((ch < '0') || (ch > '9')) {
+        return -1;
+      }
+
+      val = val * 10 + (ch - '0');
+    }
+
+    return val;
+  }
+
+  /**
+   * @return an optionally signed integer of at most 9 digits or
+   *         badNumber
+   */
+  private long parseInt(final int start,
+                        final int end) {
+    int pos = start;
+    boolean negative = false;
+
+    if (pos < end) {
+      final char ch = rule.charAt(pos);
+      if ((ch == '+') || (ch == '-')) {
+        negative = ch == '-';
+        pos++;
+      }
+    }
+
+    if ((pos == end) || (end - pos > 9)) {
+      return badNumber;
+    }
+
+    final int val = digits(pos, end - pos);
+    if (val < 0) {
+      return badNumber;
+    }
+
+    if (negative) {
+      return -val;
+    }
+
+    return val;
+  }
+
+  private void badValue(final int name,
+                        final int start,
+                        final int end) {
+    problem(RecurStatus.InvalidRecurrenceRuleValue,
+            "Invalid value for " + partNames[name] + ": " +
+                    rule.subSequence(start, end));
+  }
+
+  private void problem(final RecurStatus val,
+                       final String msg) {
+    if (status == null) {
+      status = val;
+      message = new StringBuilder(msg);
+    } else {
+      message.append("; ").append(msg);
+    }
+  }
+
+  /* A view of US-ASCII bytes as characters */
+  private static final class AsciiSequence implements CharSequence {
+    private final ByteBuffer bytes;
+
+    private final int start;
+
+    private final int end;
+
+    AsciiSequence(final ByteBuffer bytes,
+                  final int start,
+                  final int end) {
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(final int index) {
+      return (char)(bytes.get(start + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(final int from,
+                                    final int to) {
+      return new AsciiSequence(bytes, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+      final char[] chars = new char[length()];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = charAt(i);
+      }
+
+      return new String(chars);
+    }
+  }
+}
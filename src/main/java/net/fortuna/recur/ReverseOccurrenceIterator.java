@@ -0,0 +1,385 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur;
+
+import com.ibm.icu.util.Calendar;
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.DayFeasibility;
+import net.fortuna.recur.engine.DescendingCursor;
+import net.fortuna.recur.engine.Gregorian;
+import net.fortuna.recur.engine.ZoneConverter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the occurrences of a recurrence in reverse date
+ * order, starting before a given date.
+ *
+ * <p>Without a COUNT the periods are walked backwards from the one
+ * containing the start date, so the cost depends on how far back the
+ * iteration goes rather than on the age of the series. The iteration
+ * ends at the seed or when too many consecutive periods produce no
+ * candidates (see {@link Recur#setMaxIncrementCount(int)}). Periods
+ * with no day the rule can occur on are passed over. With a
+ * COUNT the occurrences before the start date are first found going
+ * forwards as their ordinals have to be known - there are at most
+ * COUNT of them.</p>
+ *
+ * <p>As with {@link OccurrenceIterator} a floating seed of a DAILY or
+ * coarser rule is expanded in wall-clock time and a SECONDLY, MINUTELY
+ * or HOURLY rule is stepped through by a {@link DescendingCursor} in
+ * the zone of the seed - the default timezone if it is floating.</p>
+ *
+ * <p>Instances are obtained from
+ * {@link Recur#descendingIterator(Occurrence, Occurrence)}.</p>
+ */
+public class ReverseOccurrenceIterator implements Iterator<Occurrence> {
+  private final Recur recur;
+
+  private final Occurrence seed;
+
+  private final long seedTime;
+
+  /* Largest value which may be returned */
+  private final long limit;
+
+  private final Calendar rootSeed;
+
+  /* Start of the current period */
+  private final Calendar period;
+
+  /* Finds the periods passed over - created when first needed */
+  private Calendar skipCal;
+
+  /* true if periods with no possible day are passed over */
+  private final boolean skippable;
+
+  private long periodIndex;
+
+  /* Candidates for the current period - ascending, no duplicates.
+     For a COUNT rule all the values up to the limit. */
+  private long[] candidates = new long[16];
+
+  /* Next candidate to look at - moves down */
+  private int pos = -1;
+
+  /* Last value returned - for a floating seed expanded in wall-clock
+     time the instant it converted to */
+  private long last = Long.MAX_VALUE;
+
+  /* true for a COUNT rule - candidates holds everything */
+  private final boolean counted;
+
+  private boolean done;
+
+  private Occurrence next;
+
+  /* Expands a floating seed in wall-clock time or a sub-daily rule in
+     the zone of the seed - null otherwise */
+  private final DescendingCursor cursor;
+
+  /* Zone of the dates of floating occurrences - null otherwise */
+  private final ZoneConverter floatingZone;
+
+  /**
+   * @param recur the rule
+   * @param seed the start date of the first instance
+   * @param before occurrences after this are skipped
+   * @param inclusive true if an occurrence at before is returned
+   */
+  ReverseOccurrenceIterator(final Recur recur,
+                            final Occurrence seed,
+                            final Date before,
+                            final boolean inclusive) {
+    this.recur = recur;
+    this.seed = seed;
+
+    seedTime = seed.getDate().getTime();
+    counted = recur.getCount() >= 1;
+
+    if (seed.isFloating() && !seed.getDateOnly() &&
+            !OccurrenceIterator.steps(recur, seed)) {
+      floatingZone = CalendarBackend.getDefault()
+                                    .getZoneConverter(TimeZone.getDefault());
+
+      final long seedLocal = floatingZone.toLocal(seedTime);
+
+      cursor = new DescendingCursor(recur.getLocalRule(), null,
+                                    seedLocal,
+                                    floatingZone.toLocal(before.getTime()),
+                                    inclusive,
+                                    CalendarBackend.getDefault());
+      limit = Long.MIN_VALUE;
+      period = null;
+      rootSeed = null;
+      skippable = false;
+      return;
+    }
+
+    floatingZone = null;
+
+    if (OccurrenceIterator.steps(recur, seed)) {
+      cursor = new DescendingCursor(recur.getLocalRule(),
+                                    recur.getCalendarInstance(seed)
+                                         .getTimeZone(),
+                                    seedTime, before.getTime(), inclusive,
+                                    CalendarBackend.getDefault());
+      limit = Long.MIN_VALUE;
+      period = null;
+      rootSeed = null;
+      skippable = false;
+      return;
+    }
+
+    cursor = null;
+
+    long bound = before.getTime();
+    if (!inclusive) {
+      bound--;
+    }
+
+    final Date until = recur.getUntil();
+    if (until != null) {
+      bound = Math.min(bound, until.getTime());
+    }
+    limit = bound;
+
+    period = recur.getCalendarInstance(seed);
+    rootSeed = (Calendar)period.clone();
+    skippable = (recur.getLocalRule().getTimeLimits() == null) &&
+            recur.getFeasibility().canSkip();
+
+    if (counted) {
+      collectCounted();
+      return;
+    }
+
+    if ((limit < seedTime) || recur.getFeasibility().isEmpty()) {
+      done = true;
+      return;
+    }
+
+    /* Candidates of the following period may precede its start -
+       BYWEEKNO weeks which cross the year end for example */
+    periodIndex = recur.periodIndexBefore(rootSeed, new Date(limit),
+                                          period) + 1;
+    setCandidates(periodIndex);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if ((next == null) && !done) {
+      next = advance();
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public Occurrence next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    final Occurrence res = next;
+    next = null;
+
+    return res;
+  }
+
+  private Occurrence advance() {
+    if (cursor != null) {
+      while (cursor.hasNext()) {
+        if (floatingZone == null) {
+          return Occurrence.getInstanceLike(new Date(cursor.nextLong()),
+                                            seed);
+        }
+
+        // Wall-clock times in a DST gap may repeat or reorder instants
+        final long epoch = floatingZone.toEpoch(cursor.nextLong());
+        if (epoch >= last) {
+          continue;
+        }
+
+        last = epoch;
+        return Occurrence.getInstanceLike(new Date(epoch), seed);
+      }
+
+      done = true;
+      return null;
+    }
+
+    if (counted) {
+      if (pos < 0) {
+        done = true;
+        return null;
+      }
+
+      return Occurrence.getInstanceLike(new Date(candidates[pos--]),
+                                        seed);
+    }
+
+    while (true) {
+      while (pos >= 0) {
+        final long candidate = candidates[pos];
+        pos--;
+
+        if ((candidate > limit) || (candidate >= last)) {
+          continue;
+        }
+
+        if (candidate < seedTime) {
+          // Everything else in this and earlier periods is too
+          break;
+        }
+
+        last = candidate;
+        return Occurrence.getInstanceLike(new Date(candidate), seed);
+      }
+
+      if (!previousPeriod()) {
+        done = true;
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Moves to the previous period which has candidates.
+   *
+   * @return false if no more periods are to be searched
+   */
+  private boolean previousPeriod() {
+    int noCandidateIncrementCount = 0;
+    final int maxIncrementCount = Recur.getMaxIncrementCount();
+
+    while (periodIndex > 0) {
+      periodIndex = previousPeriodIndex(periodIndex);
+      if (periodIndex < 0) {
+        return false;
+      }
+
+      if (setCandidates(periodIndex)) {
+        return candidates[pos] >= seedTime;
+      }
+
+      noCandidateIncrementCount++;
+      if ((maxIncrementCount > 0) &&
+              (noCandidateIncrementCount > maxIncrementCount)) {
+        return false;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Passes over the periods before the given one which have no day the
+   * rule can occur on. See {@link OccurrenceIterator} which does the
+   * same going forwards.
+   *
+   * @param index of the period just examined
+   * @return index of the next period to examine - at most index - 1 and
+   *         negative if no earlier period can have candidates
+   */
+  private long previousPeriodIndex(final long index) {
+    if (!skippable) {
+      return index - 1;
+    }
+
+    if (skipCal == null) {
+      skipCal = (Calendar)period.clone();
+    }
+
+    recur.periodStart(rootSeed, index, skipCal);
+
+    final int year = skipCal.get(Calendar.EXTENDED_YEAR);
+    if (year < 1583) {
+      // Dates before the Gregorian change are Julian
+      return index - 1;
+    }
+
+    // The candidates of earlier periods fall before the start of this one
+    final long startDay = Gregorian.epochDay(
+            year,
+            skipCal.get(Calendar.MONTH) + 1,
+            skipCal.get(Calendar.DAY_OF_MONTH));
+    final long day = recur.getFeasibility().previousDay(startDay - 1);
+
+    if (day == Long.MIN_VALUE) {
+      return -1;
+    }
+
+    if (day >= startDay - 1) {
+      return index - 1;
+    }
+
+    final int civil = Gregorian.civil(
+            DayFeasibility.periodStartBefore(recur.getFrequency(), day));
+    skipCal.clear();
+    skipCal.set(Gregorian.year(civil), Gregorian.month(civil) - 1,
+                Gregorian.day(civil));
+
+    // Periods from this one on start after the day
+    return Math.min(recur.periodIndexBefore(rootSeed, skipCal.getTime(),
+                                            skipCal),
+                    index - 1);
+  }
+
+  /**
+   * Collects the occurrences up to the limit going forwards.
+   */
+  private void collectCounted() {
+    final OccurrenceIterator it =
+            new OccurrenceIterator(recur, seed, seed.getDate(), true);
+    int num = 0;
+
+    while (it.hasNext()) {
+      final long val = it.next().getDate().getTime();
+      if (val > limit) {
+        break;
+      }
+
+      if (num == candidates.length) {
+        candidates = Arrays.copyOf(candidates, num * 2);
+      }
+      candidates[num] = val;
+      num++;
+    }
+
+    pos = num - 1;
+  }
+
+  /**
+   * @param index of the period
+   * @return true if the period has candidates
+   */
+  private boolean setCandidates(final long index) {
+    recur.periodStart(rootSeed, index, period);
+
+    final OccurrenceList periodCandidates =
+            recur.getCandidates(rootSeed,
+                                Occurrence.getInstanceLike(
+                                        period.getTime(), seed),
+                                seed.getDateOnly());
+
+    final int size = periodCandidates.size();
+    if (candidates.length < size) {
+      candidates = new long[Math.max(size, candidates.length * 2)];
+    }
+
+    for (int i = 0; i < size; i++) {
+      candidates[i] = periodCandidates.get(i).getDate().getTime();
+    }
+
+    Arrays.sort(candidates, 0, size);
+    pos = size - 1;
+
+    return size > 0;
+  }
+}
@@ -0,0 +1,112 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.RuleBasedTimeZone;
+import com.ibm.icu.util.SimpleTimeZone;
+import com.ibm.icu.util.TimeZone;
+import com.ibm.icu.util.VTimeZone;
+
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+
+/**
+ * Supplies the timezone arithmetic used by the expansion engine. The
+ * civil date arithmetic of the engine is proleptic Gregorian (see
+ * {@link Gregorian}) so a backend only has to map between UTC and
+ * local time in a zone.
+ *
+ * <p>Two backends are provided: {@link #ICU}, which evaluates the ICU
+ * timezone directly, and {@link #JAVA_TIME}, which uses the
+ * {@link ZoneRules} for the zone id and remembers the transitions
+ * either side of the last instant evaluated. Zones unknown to
+ * java.time and zones with their own rules, for example those built
+ * from a VTIMEZONE, fall back to ICU.</p>
+ *
+ * <p>The backend used when none is given is set with
+ * {@link #setDefault(CalendarBackend)}.</p>
+ */
+public abstract class CalendarBackend {
+  /** Evaluates the ICU timezone */
+  public static final CalendarBackend ICU = new IcuBackend();
+
+  /** Uses java.time zone rules */
+  public static final CalendarBackend JAVA_TIME = new JavaTimeBackend();
+
+  private static volatile CalendarBackend defaultBackend = ICU;
+
+  /**
+   * @return the backend used when none is specified
+   */
+  public static CalendarBackend getDefault() {
+    return defaultBackend;
+  }
+
+  /**
+   * @param val the backend used when none is specified - null for ICU
+   */
+  public static void setDefault(final CalendarBackend val) {
+    if (val == null) {
+      defaultBackend = ICU;
+    } else {
+      defaultBackend = val;
+    }
+  }
+
+  /**
+   * @return a name for logging
+   */
+  public abstract String getName();
+
+  /**
+   * @param tz the timezone - not null
+   * @return a converter for the zone owned by the caller
+   */
+  public abstract ZoneConverter getZoneConverter(TimeZone tz);
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+  private static class IcuBackend extends CalendarBackend {
+    @Override
+    public String getName() {
+      return "icu";
+    }
+
+    @Override
+    public ZoneConverter getZoneConverter(final TimeZone tz) {
+      return new IcuZoneConverter(tz);
+    }
+  }
+
+  private static class JavaTimeBackend extends CalendarBackend {
+    @Override
+    public String getName() {
+      return "java.time";
+    }
+
+    @Override
+    public ZoneConverter getZoneConverter(final TimeZone tz) {
+      if ((tz instanceof VTimeZone) ||
+              (tz instanceof RuleBasedTimeZone) ||
+              (tz instanceof SimpleTimeZone)) {
+        // The id need not match the rules
+        return new IcuZoneConverter(tz);
+      }
+
+      final ZoneRules rules;
+
+      try {
+        rules = ZoneId.of(tz.getID()).getRules();
+      } catch (final DateTimeException dte) {
+        return new IcuZoneConverter(tz);
+      }
+
+      return new JavaTimeZoneConverter(tz, rules);
+    }
+  }
+}
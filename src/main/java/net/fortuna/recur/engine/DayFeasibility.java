@@ -0,0 +1,461 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import net.fortuna.recur.Recur.Frequency;
+
+import java.util.Arrays;
+
+import static net.fortuna.recur.engine.Gregorian.civil;
+import static net.fortuna.recur.engine.Gregorian.dayOfWeek;
+import static net.fortuna.recur.engine.Gregorian.epochDay;
+import static net.fortuna.recur.engine.Gregorian.lengthOfMonth;
+import static net.fortuna.recur.engine.Gregorian.lengthOfYear;
+import static net.fortuna.recur.engine.Gregorian.month;
+import static net.fortuna.recur.engine.Gregorian.year;
+
+/**
+ * The days on which a rule can have an occurrence, worked out from its
+ * BYMONTH, BYYEARDAY, BYMONTHDAY and BYDAY parts alone.
+ *
+ * <p>A day can have an occurrence only if it is in one of the months,
+ * is one of the days of the year and of the month (counting from
+ * either end) and falls on one of the days of the week. A part only
+ * restricts the days if no later part can move a date out of it: a
+ * YEARLY BYYEARDAY moves dates out of the BYMONTH months, a MONTHLY or
+ * YEARLY BYMONTHDAY expands each date over its month so out of the
+ * BYYEARDAY days, and a WEEKLY BYDAY expands each date over its week so
+ * out of the BYMONTH months. The BYDAY offsets, BYSETPOS, the days
+ * implied by the seed and the interval are ignored, so a day found
+ * possible may still have no occurrence, but a day found impossible
+ * never has one. Rules with BYWEEKNO are not analysed.</p>
+ *
+ * <p>The Gregorian calendar repeats every 400 years - 146097 days, a
+ * whole number of weeks - so the days are found by examining one such
+ * cycle. Which days of a year are possible depends only on whether it
+ * is a leap year and the day of the week of January 1, so each of the
+ * 14 shapes of year is examined once and the cycle built from them.</p>
+ *
+ * <p>A rule with no possible day, such as February 30, never occurs.
+ * For one which cannot occur on every day, such as February 29, Friday
+ * the 13th or June, the possible days of each shape of year are kept
+ * so an expansion can step straight over the periods between them.</p>
+ *
+ * <p>Instances are immutable.</p>
+ */
+public final class DayFeasibility {
+  /* Days in the 400 year cycle */
+  private static final int cycleDays = 146097;
+
+  /* The cycle is taken to start on 2000-01-01 */
+  private static final long cycleStart = epochDay(2000, 1, 1);
+
+  /* Offset in the cycle of January 1 of each year - and of the end */
+  private static final int[] yearStarts = new int[401];
+
+  /* Shape of each year of the cycle - see shapeOf */
+  private static final int[] yearShapes = new int[400];
+
+  static {
+    int offset = 0;
+    int jan1 = dayOfWeek(cycleStart);
+
+    for (int i = 0; i < 400; i++) {
+      final int yearLength = lengthOfYear(2000 + i);
+
+      yearStarts[i] = offset;
+      yearShapes[i] = shapeOf(yearLength, jan1);
+
+      offset += yearLength;
+      jan1 = ((jan1 - 1 + yearLength) % 7) + 1;
+    }
+
+    yearStarts[400] = offset;
+  }
+
+  /**
+   * No restriction on the day.
+   */
+  public static final DayFeasibility any =
+          new DayFeasibility(false, 0, null);
+
+  private final boolean empty;
+
+  private final int maxGap;
+
+  /* The possible days of the year - 0 based and ascending - for each
+     shape of year. null if every day is possible */
+  private final int[][] shapes;
+
+  private DayFeasibility(final boolean empty,
+                         final int maxGap,
+                         final int[][] shapes) {
+    this.empty = empty;
+    this.maxGap = maxGap;
+    this.shapes = shapes;
+  }
+
+  /**
+   * @param frequency of the rule
+   * @param months BYMONTH values or null
+   * @param weekNos BYWEEKNO values or null
+   * @param yearDays BYYEARDAY values or null
+   * @param monthDays BYMONTHDAY values or null
+   * @param days BYDAY days of the week as Calendar.SUNDAY to
+   *             Calendar.SATURDAY or null
+   * @return the days a rule with those parts can occur on
+   */
+  public static DayFeasibility analyse(final Frequency frequency,
+                                       final int[] months,
+                                       final int[] weekNos,
+                                       final int[] yearDays,
+                                       final int[] monthDays,
+                                       final int[] days) {
+    if (weekNos != null) {
+      return any;
+    }
+
+    final boolean[] monthOk;
+    if (((frequency == Frequency.YEARLY) && (yearDays != null)) ||
+            ((frequency == Frequency.WEEKLY) && (days != null) &&
+                     (yearDays == null) && (monthDays == null))) {
+      monthOk = null;
+    } else {
+      monthOk = allowed(months, 1, 12, false);
+    }
+
+    final boolean[] yearDayOk;
+    if (((frequency == Frequency.YEARLY) ||
+                 (frequency == Frequency.MONTHLY)) &&
+            (monthDays != null)) {
+      yearDayOk = null;
+    } else {
+      yearDayOk = allowed(yearDays, 1, 366, true);
+    }
+
+    final boolean[] monthDayOk = allowed(monthDays, 1, 31, true);
+    final boolean[] dayOk = allowed(days, 1, 7, false);
+
+    if ((monthOk == null) && (yearDayOk == null) &&
+            (monthDayOk == null) && (dayOk == null)) {
+      return any;
+    }
+
+    /* The possible days of the year - 0 based - for each shape of
+       year: leap or not and the day of the week of January 1 */
+    final int[][] shapes = new int[14][];
+    final int[] innerGaps = new int[14];
+
+    for (int leap = 0; leap <= 1; leap++) {
+      // Only the lengths of the months of these years are used
+      final int year = (leap == 0) ? 2001 : 2004;
+      final int yearLength = lengthOfYear(year);
+
+      for (int jan1 = 1; jan1 <= 7; jan1++) {
+        final int[] found = new int[yearLength];
+        int num = 0;
+        int dayOfYear = 1;
+        int dow = jan1;
+
+        for (int month = 1; month <= 12; month++) {
+          final int monthLength = lengthOfMonth(year, month);
+
+          for (int day = 1; day <= monthLength; day++) {
+            if (matches(monthOk, month) &&
+                    matches(dayOk, dow) &&
+                    matches(yearDayOk, dayOfYear,
+                            dayOfYear - yearLength - 1) &&
+                    matches(monthDayOk, day, day - monthLength - 1)) {
+              found[num] = dayOfYear - 1;
+              num++;
+            }
+
+            dayOfYear++;
+            dow = (dow % 7) + 1;
+          }
+        }
+
+        final int shape = shapeOf(yearLength, jan1);
+        shapes[shape] = Arrays.copyOf(found, num);
+        for (int i = 1; i < num; i++) {
+          innerGaps[shape] = Math.max(innerGaps[shape],
+                                      found[i] - found[i - 1] - 1);
+        }
+      }
+    }
+
+    // Join the years of the cycle
+    int first = -1;
+    int last = -1;
+    int maxGap = 0;
+
+    for (int i = 0; i < 400; i++) {
+      final int shape = yearShapes[i];
+      final int[] found = shapes[shape];
+
+      if (found.length == 0) {
+        continue;
+      }
+
+      if (first < 0) {
+        first = yearStarts[i] + found[0];
+      } else {
+        maxGap = Math.max(maxGap, yearStarts[i] + found[0] - last - 1);
+      }
+
+      maxGap = Math.max(maxGap, innerGaps[shape]);
+      last = yearStarts[i] + found[found.length - 1];
+    }
+
+    if (first < 0) {
+      return new DayFeasibility(true, cycleDays, null);
+    }
+
+    // The gap after the last day runs on into the next cycle
+    maxGap = Math.max(maxGap, first + cycleDays - last - 1);
+
+    if (maxGap == 0) {
+      return any;
+    }
+
+    return new DayFeasibility(false, maxGap, shapes);
+  }
+
+  /**
+   * @return true if the rule can never occur
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * @return the most consecutive days which cannot have an occurrence
+   *         - 0 if every day can
+   */
+  public int getMaxGap() {
+    return maxGap;
+  }
+
+  /**
+   * @return true if {@link #nextDay(long)} can skip days
+   */
+  public boolean canSkip() {
+    return shapes != null;
+  }
+
+  /**
+   * @param epochDay a day
+   * @return the first day on or after the given one which may have an
+   *         occurrence. The day itself if that is not known and
+   *         Long.MAX_VALUE if there is none
+   */
+  public long nextDay(final long epochDay) {
+    if (empty) {
+      return Long.MAX_VALUE;
+    }
+
+    if (shapes == null) {
+      return epochDay;
+    }
+
+    final int pos = (int)Math.floorMod(epochDay - cycleStart,
+                                       (long)cycleDays);
+    long cycle = epochDay - pos;
+
+    int year = Arrays.binarySearch(yearStarts, pos);
+    if (year < 0) {
+      year = -year - 2;
+    }
+
+    int dayOfYear = pos - yearStarts[year];
+
+    // A possible day occurs at least once in every cycle
+    while (true) {
+      final int[] found = shapes[yearShapes[year]];
+      int i = Arrays.binarySearch(found, dayOfYear);
+      if (i < 0) {
+        i = -i - 1;
+      }
+
+      if (i < found.length) {
+        return cycle + yearStarts[year] + found[i];
+      }
+
+      year++;
+      dayOfYear = 0;
+      if (year == 400) {
+        year = 0;
+        cycle += cycleDays;
+      }
+    }
+  }
+
+  /**
+   * @param epochDay a day
+   * @return the last day on or before the given one which may have an
+   *         occurrence. The day itself if that is not known and
+   *         Long.MIN_VALUE if there is none
+   */
+  public long previousDay(final long epochDay) {
+    if (empty) {
+      return Long.MIN_VALUE;
+    }
+
+    if (shapes == null) {
+      return epochDay;
+    }
+
+    final int pos = (int)Math.floorMod(epochDay - cycleStart,
+                                       (long)cycleDays);
+    long cycle = epochDay - pos;
+
+    int year = Arrays.binarySearch(yearStarts, pos);
+    if (year < 0) {
+      year = -year - 2;
+    }
+
+    int dayOfYear = pos - yearStarts[year];
+
+    // A possible day occurs at least once in every cycle
+    while (true) {
+      final int[] found = shapes[yearShapes[year]];
+      int i = Arrays.binarySearch(found, dayOfYear);
+      if (i < 0) {
+        i = -i - 2;
+      }
+
+      if (i >= 0) {
+        return cycle + yearStarts[year] + found[i];
+      }
+
+      year--;
+      dayOfYear = Integer.MAX_VALUE;
+      if (year < 0) {
+        year = 399;
+        cycle -= cycleDays;
+      }
+    }
+  }
+
+  /**
+   * The candidates of a period all fall within the calendar unit of
+   * the frequency - hour, day, week, month or year - containing its
+   * start, which may begin before the start.
+   *
+   * @param frequency of the rule
+   * @param epochDay the day a period starts on
+   * @return a day on or before the first the period can have a
+   *         candidate on
+   */
+  public static long periodFirstDay(final Frequency frequency,
+                                    final long epochDay) {
+    switch (frequency) {
+      case WEEKLY:
+        return epochDay - 6;
+      case MONTHLY: {
+        final int civil = civil(epochDay);
+        return epochDay(year(civil), month(civil), 1);
+      }
+      case YEARLY:
+        return epochDay(year(civil(epochDay)), 1, 1);
+      default:
+        return epochDay;
+    }
+  }
+
+  /**
+   * As {@link #periodFirstDay(Frequency, long)} for a walk backwards.
+   *
+   * @param frequency of the rule - DAILY or coarser
+   * @param epochDay a day a candidate may fall on
+   * @return a day which every period that can have a candidate on the
+   *         given day starts before
+   */
+  public static long periodStartBefore(final Frequency frequency,
+                                       final long epochDay) {
+    switch (frequency) {
+      case WEEKLY:
+        return epochDay + 7;
+      case MONTHLY: {
+        final int civil = civil(epochDay);
+        if (month(civil) == 12) {
+          return epochDay(year(civil) + 1, 1, 1);
+        }
+        return epochDay(year(civil), month(civil) + 1, 1);
+      }
+      case YEARLY:
+        return epochDay(year(civil(epochDay)) + 1, 1, 1);
+      default:
+        return epochDay + 1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DayFeasibility{empty=" + empty +
+            ", maxGap=" + maxGap +
+            ", skip=" + canSkip() +
+            "}";
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /**
+   * @param yearLength 365 or 366
+   * @param jan1 day of the week of January 1
+   * @return index of the shape of the year - 0 to 13
+   */
+  private static int shapeOf(final int yearLength,
+                             final int jan1) {
+    return ((yearLength == 366) ? 7 : 0) + jan1 - 1;
+  }
+
+  /**
+   * @return flags indexed by value - null if vals is null or has a
+   *         value out of range, in which case the part is not used
+   */
+  private static boolean[] allowed(final int[] vals,
+                                   final int min,
+                                   final int max,
+                                   final boolean negatives) {
+    if (vals == null) {
+      return null;
+    }
+
+    // Negative values are held at max + 1 + |value|
+    final boolean[] res = new boolean[2 * max + 2];
+    for (final int val: vals) {
+      if ((val >= min) && (val <= max)) {
+        res[val] = true;
+      } else if (negatives && (val <= -min) && (val >= -max)) {
+        res[max + 1 - val] = true;
+      } else {
+        return null;
+      }
+    }
+
+    return res;
+  }
+
+  private static boolean matches(final boolean[] ok,
+                                 final int val) {
+    return (ok == null) || ok[val];
+  }
+
+  /**
+   * @param val counted from the start - positive
+   * @param fromEnd counted from the end - negative
+   */
+  private static boolean matches(final boolean[] ok,
+                                 final int val,
+                                 final int fromEnd) {
+    if (ok == null) {
+      return true;
+    }
+
+    return ok[val] || ok[(ok.length / 2) - fromEnd];
+  }
+}
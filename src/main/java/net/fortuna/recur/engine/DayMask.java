@@ -0,0 +1,253 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import net.fortuna.recur.Recur.Frequency;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_DAY;
+import static net.fortuna.recur.engine.Gregorian.civil;
+import static net.fortuna.recur.engine.Gregorian.day;
+import static net.fortuna.recur.engine.Gregorian.dayOfWeek;
+import static net.fortuna.recur.engine.Gregorian.epochDay;
+import static net.fortuna.recur.engine.Gregorian.epochDayOf;
+import static net.fortuna.recur.engine.Gregorian.month;
+import static net.fortuna.recur.engine.Gregorian.year;
+
+/**
+ * Holds the days of a MONTHLY or YEARLY period as a bit mask over
+ * the days of the year - bit n is day n + 1 of the year.
+ *
+ * <p>The days are those the day stages of the {@link LocalRule} select
+ * for the period, so they are exactly those of the transformers. Only
+ * the days are turned into times, and BYSETPOS can be applied by rank
+ * without turning the set into a list. A rule with BYWEEKNO may select
+ * days in the years either side, so is not masked.</p>
+ *
+ * <p>The days a rule selects depend only upon the shape of the period
+ * - whether the year is a leap year, the day of the week of January 1
+ * and the month for a MONTHLY rule - and on the day of the seed. So
+ * each mask is built once per shape and then copied from a table.</p>
+ *
+ * <p>Instances are thread safe. The masks are copied into a scratch
+ * array of {@link #SCRATCH_WORDS} longs supplied by the caller.</p>
+ */
+final class DayMask {
+  /* Words in a mask - 384 bits */
+  static final int WORDS = 6;
+
+  /* The mask and the number of days selected counting any repeats */
+  static final int SCRATCH_WORDS = WORDS + 1;
+
+  /* 7 days of the week for January 1 * leap or not, times 12 months */
+  private static final int SHAPES = 14 * 12;
+
+  private final LocalRule rule;
+
+  /* True if the month is part of the shape */
+  private final boolean monthShaped;
+
+  /* Masks for one seed, indexed by shape */
+  private volatile Templates templates;
+
+  private static final class Templates {
+    /* Month, day of the month and day of the week of the seed */
+    private final int seedKey;
+
+    private final AtomicReferenceArray<long[]> masks =
+            new AtomicReferenceArray<>(SHAPES);
+
+    Templates(final int seedKey) {
+      this.seedKey = seedKey;
+    }
+  }
+
+  /**
+   * @param rule selects the days - without BYWEEKNO
+   * @param frequency MONTHLY or YEARLY
+   */
+  DayMask(final LocalRule rule,
+          final Frequency frequency) {
+    this.rule = rule;
+
+    monthShaped = frequency == Frequency.MONTHLY;
+  }
+
+  /**
+   * Copies the mask of the days selected in a period into words
+   * 0 to WORDS - 1 of scratch, building it if this is the first
+   * period of its shape.
+   *
+   * @param periodStart local start of the period
+   * @param root local start of the first period
+   * @param scratch SCRATCH_WORDS longs
+   * @return the year the mask is for
+   */
+  int selectShaped(final long periodStart,
+                   final long root,
+                   final long[] scratch) {
+    final int c = civil(epochDayOf(periodStart));
+    final int year = year(c);
+
+    final long rootDay = epochDayOf(root);
+    final int rc = civil(rootDay);
+    final int seedKey = (((month(rc) << 5) | day(rc)) << 3) |
+            dayOfWeek(rootDay);
+
+    Templates t = templates;
+    if ((t == null) || (t.seedKey != seedKey)) {
+      t = new Templates(seedKey);
+      templates = t;
+    }
+
+    int shape = dayOfWeek(epochDay(year, 1, 1)) - 1;
+    if (Gregorian.isLeap(year)) {
+      shape += 7;
+    }
+    if (monthShaped) {
+      shape += 14 * (month(c) - 1);
+    }
+
+    final long[] mask = t.masks.get(shape);
+    if (mask != null) {
+      System.arraycopy(mask, 0, scratch, 0, SCRATCH_WORDS);
+      return year;
+    }
+
+    select(periodStart, root, scratch);
+    t.masks.set(shape, Arrays.copyOf(scratch, SCRATCH_WORDS));
+
+    return year;
+  }
+
+  /**
+   * Builds the mask of the days selected in a period into scratch.
+   *
+   * @param periodStart local start of the period
+   * @param root local start of the first period
+   * @param scratch SCRATCH_WORDS longs
+   * @return the year the mask is for
+   */
+  int select(final long periodStart,
+             final long root,
+             final long[] scratch) {
+    final long start = epochDayOf(periodStart);
+    final int year = year(civil(start));
+    final long jan1 = epochDay(year, 1, 1);
+
+    final LongList days = rule.days(start, root,
+                                    new LongList(), new LongList());
+
+    Arrays.fill(scratch, 0, SCRATCH_WORDS, 0);
+
+    for (int i = 0; i < days.size; i++) {
+      final int bit = (int)(epochDayOf(days.get(i)) - jan1);
+      scratch[bit >> 6] |= 1L << bit;
+    }
+    scratch[WORDS] = days.size;
+
+    return year;
+  }
+
+  /**
+   * @param scratch holding the mask
+   * @return true if the day stages selected a day more than once - a
+   *         position then counts each time
+   */
+  static boolean hasRepeats(final long[] scratch) {
+    int size = 0;
+    for (int w = 0; w < WORDS; w++) {
+      size += Long.bitCount(scratch[w]);
+    }
+
+    return size != scratch[WORDS];
+  }
+
+  /**
+   * Adds a local time for each day in the mask in ascending order.
+   *
+   * @param year from {@link #select(long, long, long[])}
+   * @param scratch holding the mask
+   * @param timeOfDay millis since the start of the day
+   * @param dst receives the times
+   */
+  static void addDays(final int year,
+                      final long[] scratch,
+                      final long timeOfDay,
+                      final LongList dst) {
+    final long base = epochDay(year, 1, 1) * MILLIS_PER_DAY + timeOfDay;
+
+    for (int w = 0; w < WORDS; w++) {
+      long word = scratch[w];
+
+      while (word != 0) {
+        final int bit = Long.numberOfTrailingZeros(word);
+        dst.add(base + ((w << 6) + bit) * MILLIS_PER_DAY);
+        word &= word - 1;
+      }
+    }
+  }
+
+  /**
+   * Adds a local time for each day in the mask selected by position.
+   * The mask must not have repeats.
+   *
+   * @param year from {@link #select(long, long, long[])}
+   * @param scratch holding the mask
+   * @param setPos 1 based positions - negative from the end
+   * @param timeOfDay millis since the start of the day
+   * @param dst receives the times - unsorted
+   */
+  static void addByPosition(final int year,
+                            final long[] scratch,
+                            final int[] setPos,
+                            final long timeOfDay,
+                            final LongList dst) {
+    final int size = (int)scratch[WORDS];
+
+    final long base = epochDay(year, 1, 1) * MILLIS_PER_DAY + timeOfDay;
+
+    for (final int pos: setPos) {
+      final int rank;
+      if ((pos > 0) && (pos <= size)) {
+        rank = pos - 1;
+      } else if ((pos < 0) && (pos >= -size)) {
+        rank = size + pos;
+      } else {
+        continue;
+      }
+
+      dst.add(base + bitOfRank(scratch, rank) * MILLIS_PER_DAY);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static int bitOfRank(final long[] scratch,
+                               final int rank) {
+    int remaining = rank;
+
+    for (int w = 0; w < WORDS; w++) {
+      final int n = Long.bitCount(scratch[w]);
+
+      if (remaining >= n) {
+        remaining -= n;
+        continue;
+      }
+
+      long word = scratch[w];
+      for (int i = 0; i < remaining; i++) {
+        word &= word - 1;
+      }
+
+      return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    throw new IllegalArgumentException("Rank out of range: " + rank);
+  }
+}
@@ -0,0 +1,210 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.Recur;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Iterates backwards over the occurrences of a {@link LocalRule} as
+ * epoch millis in descending order, starting before a given time.
+ *
+ * <p>Without a COUNT the periods are walked backwards from the one
+ * containing the start so the cost depends on the distance walked
+ * rather than on the age of the series. Periods which cannot have
+ * candidates are passed over as {@link ExpansionCursor} does going
+ * forwards. The walk ends at the first period or when too many
+ * consecutive periods produce no candidates (see
+ * {@link Recur#setMaxIncrementCount(int)}). With a COUNT the
+ * occurrences before the start are first found going forwards, as
+ * their ordinals have to be known - there are at most COUNT of
+ * them.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ */
+public class DescendingCursor implements PrimitiveIterator.OfLong {
+  private final ExpansionCursor forward;
+
+  private final long seed;
+
+  /* Largest value which may be returned */
+  private final long limit;
+
+  private long periodIndex;
+
+  /* Candidates for the current period - ascending */
+  private LongList candidates;
+
+  /* Values before limit for a COUNT rule - ascending */
+  private LongList counted;
+
+  /* Next candidate to look at - moves down */
+  private int pos = -1;
+
+  /* Last value returned */
+  private long last = Long.MAX_VALUE;
+
+  private boolean done;
+
+  private boolean hasNext;
+
+  private long next;
+
+  /**
+   * @param rule the compiled rule
+   * @param tz timezone the rule is evaluated in - null for floating
+   *           time in which case all values are local millis
+   * @param seed start of the first instance as epoch millis
+   * @param before occurrences after this are skipped
+   * @param inclusive true if an occurrence at before is returned
+   * @param backend supplies the timezone arithmetic
+   */
+  public DescendingCursor(final LocalRule rule,
+                          final TimeZone tz,
+                          final long seed,
+                          final long before,
+                          final boolean inclusive,
+                          final CalendarBackend backend) {
+    this.seed = seed;
+    forward = new ExpansionCursor(rule, tz, seed, seed, true, backend);
+
+    final long bound;
+    if (inclusive) {
+      bound = before;
+    } else {
+      bound = before - 1;
+    }
+
+    limit = Math.min(bound, forward.getUntil());
+
+    if (rule.getCount() >= 1) {
+      counted = new LongList();
+      while (forward.hasNext()) {
+        final long val = forward.nextLong();
+        if (val > limit) {
+          break;
+        }
+        counted.add(val);
+      }
+
+      pos = counted.size - 1;
+      return;
+    }
+
+    if ((limit < seed) || rule.getFeasibility().isEmpty()) {
+      done = true;
+      return;
+    }
+
+    /* Candidates of the following period may precede its start -
+       BYWEEKNO weeks which cross the year end for example */
+    if (limit == Long.MAX_VALUE) {
+      periodIndex = forward.periodIndexBefore(limit) + 1;
+    } else {
+      periodIndex = forward.periodIndexBefore(limit + 1) + 1;
+    }
+    candidates = forward.periodCandidates(periodIndex);
+    pos = candidates.size - 1;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (!hasNext && !done) {
+      hasNext = advance();
+    }
+
+    return hasNext;
+  }
+
+  @Override
+  public long nextLong() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    hasNext = false;
+    return next;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private boolean advance() {
+    if (counted != null) {
+      if (pos < 0) {
+        done = true;
+        return false;
+      }
+
+      next = counted.get(pos);
+      pos--;
+      return true;
+    }
+
+    while (true) {
+      while (pos >= 0) {
+        final long candidate = candidates.get(pos);
+        pos--;
+
+        if ((candidate > limit) || (candidate >= last)) {
+          continue;
+        }
+
+        if (candidate < seed) {
+          // Everything else in this and earlier periods is too
+          break;
+        }
+
+        last = candidate;
+        next = candidate;
+        return true;
+      }
+
+      if (!previousPeriod()) {
+        done = true;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Moves to the previous period which has candidates.
+   *
+   * @return false if no more periods are to be searched
+   */
+  private boolean previousPeriod() {
+    int noCandidateIncrementCount = 0;
+    final int maxIncrementCount = Recur.getMaxIncrementCount();
+
+    while (periodIndex > 0) {
+      periodIndex = forward.previousPeriodIndex(periodIndex);
+      if (periodIndex < 0) {
+        return false;
+      }
+
+      candidates = forward.periodCandidates(periodIndex);
+      if (candidates.size > 0) {
+        pos = candidates.size - 1;
+
+        if (candidates.get(pos) < seed) {
+          return false;
+        }
+
+        return true;
+      }
+
+      noCandidateIncrementCount++;
+      if ((maxIncrementCount > 0) &&
+              (noCandidateIncrementCount > maxIncrementCount)) {
+        return false;
+      }
+    }
+
+    return false;
+  }
+}
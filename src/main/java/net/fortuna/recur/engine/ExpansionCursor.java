@@ -0,0 +1,788 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.TimeZone;
+import net.fortuna.recur.Recur;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Iterates over the occurrences of a {@link LocalRule} as epoch millis
+ * in ascending order without creating an object per occurrence.
+ *
+ * <p>This follows the same rules as the
+ * {@link net.fortuna.recur.OccurrenceIterator}: candidates before the
+ * seed are not counted, the iteration ends at the COUNT or UNTIL of the
+ * rule or when too many consecutive periods produce no candidates
+ * (see {@link Recur#setMaxIncrementCount(int)}). A check may be set to
+ * stop the iteration before any period.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ */
+public class ExpansionCursor implements PrimitiveIterator.OfLong {
+  private final LocalRule rule;
+
+  /* null for floating time - local and epoch millis are the same */
+  private final ZoneConverter zone;
+
+  private final long seed;
+
+  /* Local start of the first period */
+  private final long root;
+
+  private final long from;
+
+  /* true if an occurrence at from is returned */
+  private final boolean inclusive;
+
+  private final long periodMillis;
+
+  /* true if the candidates are the period starts */
+  private final boolean arithmetic;
+
+  private final DayFeasibility feasibility;
+
+  /* The times a sub-daily rule can occur in - otherwise null */
+  private final TimeLimits timeLimits;
+
+  /* true if periods which cannot have candidates can be skipped */
+  private final boolean skippable;
+
+  /* Generates sub-daily candidates - null for the general stages */
+  private final SubDailyStepper stepper;
+
+  /* The offset of the zone from stretchStart up to but not including
+     stretchEnd, so most conversions need not consult the zone */
+  private int stretchOffset;
+
+  private long stretchStart;
+
+  private long stretchEnd;
+
+  /* UNTIL of the rule - local millis for floating time */
+  private final long until;
+
+  private long periodIndex;
+
+  private final LongList a = new LongList();
+
+  private final LongList b = new LongList();
+
+  private final long[] scratch = new long[LocalRule.SCRATCH_WORDS];
+
+  /* Candidates for the current period as epoch millis - sorted and
+     no duplicates */
+  private LongList candidates;
+
+  private int pos;
+
+  /* True once candidates for the first period have been generated */
+  private boolean started;
+
+  /* Number of candidates on or after the seed seen so far */
+  private int ordinal;
+
+  /* Last candidate counted */
+  private long last = Long.MIN_VALUE;
+
+  /* ordinal and last when the current period started */
+  private int periodOrdinal;
+
+  private long periodLast = Long.MIN_VALUE;
+
+  /* null or false to stop before the next period */
+  private BooleanSupplier periodCheck;
+
+  /* true if stopped by too many periods without candidates */
+  private boolean abandoned;
+
+  private boolean done;
+
+  private boolean hasNext;
+
+  private long next;
+
+  /**
+   * The state of a cursor at the start of a period. A cursor created
+   * with a position generates that period again and continues from
+   * there, counting as the original did.
+   */
+  public static final class Position {
+    private final long periodIndex;
+
+    private final int ordinal;
+
+    private final long last;
+
+    /**
+     * @param periodIndex index of the period
+     * @param ordinal number of occurrences before the period
+     * @param last the last occurrence before the period
+     */
+    public Position(final long periodIndex,
+                    final int ordinal,
+                    final long last) {
+      this.periodIndex = periodIndex;
+      this.ordinal = ordinal;
+      this.last = last;
+    }
+
+    public long getPeriodIndex() {
+      return periodIndex;
+    }
+
+    public int getOrdinal() {
+      return ordinal;
+    }
+
+    /**
+     * @return the last occurrence before the period - Long.MIN_VALUE
+     *         if none or not known
+     */
+    public long getLast() {
+      return last;
+    }
+  }
+
+  /**
+   * @param rule the compiled rule
+   * @param tz timezone the rule is evaluated in - null for floating
+   *           time in which case all values are local millis
+   * @param seed start of the first instance as epoch millis
+   * @param from occurrences before this are skipped
+   * @param inclusive true if an occurrence at from is returned
+   */
+  public ExpansionCursor(final LocalRule rule,
+                         final TimeZone tz,
+                         final long seed,
+                         final long from,
+                         final boolean inclusive) {
+    this(rule, tz, seed, from, inclusive, CalendarBackend.getDefault());
+  }
+
+  /**
+   * @param rule the compiled rule
+   * @param tz timezone the rule is evaluated in - null for floating
+   *           time in which case all values are local millis
+   * @param seed start of the first instance as epoch millis
+   * @param from occurrences before this are skipped
+   * @param inclusive true if an occurrence at from is returned
+   * @param backend supplies the timezone arithmetic
+   */
+  public ExpansionCursor(final LocalRule rule,
+                         final TimeZone tz,
+                         final long seed,
+                         final long from,
+                         final boolean inclusive,
+                         final CalendarBackend backend) {
+    this.rule = rule;
+    this.seed = seed;
+    this.from = from;
+    this.inclusive = inclusive;
+
+    if (tz == null) {
+      zone = null;
+    } else {
+      zone = backend.getZoneConverter(tz);
+    }
+
+    root = toLocal(seed);
+    periodMillis = rule.getPeriodMillis();
+
+    final long ruleUntil = rule.getUntil();
+    if ((zone != null) || (ruleUntil == Long.MAX_VALUE)) {
+      until = ruleUntil;
+    } else {
+      /* A floating UNTIL is parsed as a time in the default zone -
+         compare its wall-clock time */
+      until = ruleUntil + TimeZone.getDefault().getOffset(ruleUntil);
+    }
+
+    arithmetic = rule.isArithmetic(root);
+    feasibility = rule.getFeasibility();
+    timeLimits = rule.getTimeLimits();
+    skippable = rule.canSkip();
+    done = feasibility.isEmpty();
+    stepper = rule.newStepper();
+
+    // With a COUNT every period from the seed has to be counted
+    if (rule.getCount() < 0) {
+      periodIndex = periodIndexBefore(from);
+    } else if (arithmetic) {
+      // ..unless there is one per period
+      periodIndex = periodIndexBefore(from);
+      ordinal = (int)Math.min(periodIndex, Integer.MAX_VALUE);
+    }
+    periodOrdinal = ordinal;
+  }
+
+  /**
+   * Resumes an expansion from a position obtained from
+   * {@link #getPosition()} of a cursor created with the same rule,
+   * timezone and seed.
+   *
+   * @param rule the compiled rule
+   * @param tz timezone the rule is evaluated in - null for floating
+   *           time in which case all values are local millis
+   * @param seed start of the first instance as epoch millis
+   * @param from occurrences before this are skipped
+   * @param inclusive true if an occurrence at from is returned
+   * @param backend supplies the timezone arithmetic
+   * @param position the period to start at
+   */
+  public ExpansionCursor(final LocalRule rule,
+                         final TimeZone tz,
+                         final long seed,
+                         final long from,
+                         final boolean inclusive,
+                         final CalendarBackend backend,
+                         final Position position) {
+    this(rule, tz, seed, from, inclusive, backend);
+
+    periodIndex = position.periodIndex;
+    ordinal = position.ordinal;
+    last = position.last;
+    periodOrdinal = ordinal;
+    periodLast = last;
+  }
+
+  /* Copies the state of another cursor */
+  private ExpansionCursor(final ExpansionCursor that) {
+    rule = that.rule;
+    zone = that.zone;
+    seed = that.seed;
+    root = that.root;
+    from = that.from;
+    inclusive = that.inclusive;
+    periodMillis = that.periodMillis;
+    arithmetic = that.arithmetic;
+    feasibility = that.feasibility;
+    timeLimits = that.timeLimits;
+    skippable = that.skippable;
+    stepper = rule.newStepper();
+    stretchOffset = that.stretchOffset;
+    stretchStart = that.stretchStart;
+    stretchEnd = that.stretchEnd;
+    until = that.until;
+    periodIndex = that.periodIndex;
+
+    if (that.candidates != null) {
+      for (int i = 0; i < that.candidates.size; i++) {
+        a.add(that.candidates.get(i));
+      }
+      candidates = a;
+    }
+
+    pos = that.pos;
+    started = that.started;
+    ordinal = that.ordinal;
+    last = that.last;
+    periodOrdinal = that.periodOrdinal;
+    periodLast = that.periodLast;
+    periodCheck = that.periodCheck;
+    abandoned = that.abandoned;
+    done = that.done;
+    hasNext = that.hasNext;
+    next = that.next;
+  }
+
+  /**
+   * Sets a check made before each period is examined. The iteration
+   * ends when it returns false.
+   *
+   * @param periodCheck null for no check
+   */
+  public void setPeriodCheck(final BooleanSupplier periodCheck) {
+    this.periodCheck = periodCheck;
+  }
+
+  /**
+   * @return true if the iteration ended because too many consecutive
+   *         periods had no candidates
+   */
+  public boolean isAbandoned() {
+    return abandoned;
+  }
+
+  /**
+   * @return the start of the period the last value returned came from
+   */
+  public Position getPosition() {
+    return new Position(periodIndex, periodOrdinal, periodLast);
+  }
+
+  /**
+   * @return a cursor which continues independently from the current
+   *         position of this one
+   */
+  public ExpansionCursor copy() {
+    return new ExpansionCursor(this);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (!hasNext && !done) {
+      hasNext = advance();
+    }
+
+    return hasNext;
+  }
+
+  @Override
+  public long nextLong() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    hasNext = false;
+    return next;
+  }
+
+  /**
+   * Stores the following values up to a limit in an array. The rest
+   * of a period which cannot reach the COUNT or UNTIL of the rule is
+   * copied at once rather than a value at a time.
+   *
+   * @param buffer receives the values
+   * @param offset index in buffer of the first value
+   * @param to values after this are left for the next call
+   * @return the number of values stored - fewer than there is room
+   *         for only at the end of the iteration or when the next
+   *         value is after to
+   */
+  public int fill(final long[] buffer,
+                  final int offset,
+                  final long to) {
+    final long end = Math.min(to, until);
+    int num = offset;
+
+    while ((num < buffer.length) && hasNext()) {
+      if (next > to) {
+        break;
+      }
+
+      buffer[num] = next;
+      num++;
+      hasNext = false;
+
+      if ((rule.getCount() >= 0) || (candidates == null)) {
+        continue;
+      }
+
+      /* The rest of the period is after the value just stored so is
+         after the seed, from and the last value counted */
+      int n = pos;
+      final int max = Math.min(candidates.size,
+                               pos + buffer.length - num);
+      while ((n < max) && (candidates.values[n] <= end)) {
+        n++;
+      }
+
+      final int copied = n - pos;
+      if (copied > 0) {
+        System.arraycopy(candidates.values, pos, buffer, num, copied);
+        num += copied;
+        ordinal += copied;
+        last = buffer[num - 1];
+        pos = n;
+      }
+    }
+
+    return num - offset;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private long toLocal(final long epochMillis) {
+    if (zone == null) {
+      return epochMillis;
+    }
+
+    if ((epochMillis < stretchStart) || (epochMillis >= stretchEnd)) {
+      stretchOffset = zone.getOffset(epochMillis);
+      stretchStart = epochMillis;
+      stretchEnd = zone.nextTransition(epochMillis);
+      if (stretchEnd == Long.MIN_VALUE) {
+        // Not known - nothing is taken from the stretch
+        stretchEnd = epochMillis;
+      }
+    }
+
+    return epochMillis + stretchOffset;
+  }
+
+  /**
+   * As {@link ZoneConverter#toEpoch(long, int)}. A value valid with the
+   * offset of the current stretch is converted directly - only those
+   * near a change of offset, in a gap or a repeated hour, consult the
+   * zone.
+   */
+  private long toEpoch(final long localMillis,
+                       final int offset) {
+    final long epochMillis = localMillis - offset;
+
+    if ((offset == stretchOffset) &&
+            (epochMillis >= stretchStart) && (epochMillis < stretchEnd)) {
+      return epochMillis;
+    }
+
+    return zone.toEpoch(localMillis, offset);
+  }
+
+  private long toEpoch(final long localMillis) {
+    if (zone == null) {
+      return localMillis;
+    }
+
+    return zone.toEpoch(localMillis);
+  }
+
+  private long periodStart(final long index) {
+    if (periodMillis > 0) {
+      // Sub-daily periods are elapsed time
+      return toLocal(seed + index * periodMillis);
+    }
+
+    return rule.periodStart(root, index);
+  }
+
+  /**
+   * @return start of the first instance
+   */
+  long getSeed() {
+    return seed;
+  }
+
+  /**
+   * @return the UNTIL of the rule - in local millis for floating time
+   */
+  long getUntil() {
+    return until;
+  }
+
+  /**
+   * @param index of the period
+   * @return start of the period as epoch millis
+   */
+  long periodStartEpoch(final long index) {
+    return toEpoch(periodStart(index));
+  }
+
+  /**
+   * @param epochMillis a time
+   * @return as {@link ZoneConverter#nextTransition(long)} - none for
+   *         floating time
+   */
+  long nextTransition(final long epochMillis) {
+    if (zone == null) {
+      return Long.MAX_VALUE;
+    }
+
+    return zone.nextTransition(epochMillis);
+  }
+
+  /**
+   * Finds the period a walk backwards continues at, passing over the
+   * earlier periods which cannot have candidates as a walk forwards
+   * does.
+   *
+   * @param index of the period just examined
+   * @return index of the next period to examine - at most index - 1 and
+   *         negative if no earlier period can have candidates
+   */
+  long previousPeriodIndex(final long index) {
+    if (!skippable || (index <= 0)) {
+      return index - 1;
+    }
+
+    if (timeLimits == null) {
+      return previousPossibleDay(index);
+    }
+
+    return previousIncludedTime(index);
+  }
+
+  /**
+   * @param date epoch millis
+   * @return index of the last period starting before date or 0 if
+   *         the first period does not start before it.
+   */
+  long periodIndexBefore(final long date) {
+    if (date <= seed) {
+      return 0;
+    }
+
+    if (periodMillis > 0) {
+      return (date - seed - 1) / periodMillis;
+    }
+
+    long index = rule.estimatePeriodIndex(root, toLocal(date));
+
+    // The estimate is off by at most one either way
+    while ((index > 0) && (toEpoch(periodStart(index)) >= date)) {
+      index--;
+    }
+
+    while (toEpoch(periodStart(index + 1)) < date) {
+      index++;
+    }
+
+    return index;
+  }
+
+  private boolean advance() {
+    final int count = rule.getCount();
+
+    while (true) {
+      while ((candidates != null) && (pos < candidates.size)) {
+        final long candidate = candidates.get(pos);
+        pos++;
+
+        // don't count candidates that occur before the seed date..
+        if (candidate < seed) {
+          continue;
+        }
+
+        /* A period may repeat or precede values from the one before -
+           BYWEEKNO weeks which cross the year end for example */
+        if (candidate <= last) {
+          continue;
+        }
+
+        if (candidate > until) {
+          done = true;
+          return false;
+        }
+
+        last = candidate;
+        ordinal++;
+        if ((count >= 1) && (ordinal > count)) {
+          done = true;
+          return false;
+        }
+
+        if ((candidate < from) || (!inclusive && (candidate == from))) {
+          continue;
+        }
+
+        next = candidate;
+        return true;
+      }
+
+      if (!nextPeriod()) {
+        done = true;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Generates the candidates for a period. The list returned is reused
+   * by the next call.
+   *
+   * @param index of the period
+   * @return the candidates as epoch millis - sorted and no duplicates
+   */
+  LongList periodCandidates(final long index) {
+    final long start = periodStart(index);
+    final LongList periodCandidates;
+
+    if (arithmetic) {
+      periodCandidates = a;
+      periodCandidates.clear();
+      periodCandidates.add(start);
+    } else if (stepper != null) {
+      periodCandidates = a;
+      periodCandidates.clear();
+      stepper.candidates(start, periodCandidates);
+    } else {
+      periodCandidates = rule.candidates(start, root, a, b, scratch);
+    }
+
+    if ((periodCandidates.size > 0) && (zone != null)) {
+      /* Ambiguous local times take the offset of the period start,
+         which for the coarser frequencies is that of the seed */
+      final int offset;
+      if (periodMillis > 0) {
+        offset = (int)(start - (seed + index * periodMillis));
+      } else {
+        offset = (int)(root - seed);
+      }
+
+      for (int i = 0; i < periodCandidates.size; i++) {
+        periodCandidates.values[i] =
+                toEpoch(periodCandidates.values[i], offset);
+      }
+    }
+
+    // Conversion may reorder or merge values around DST changes
+    periodCandidates.sortUnique();
+
+    return periodCandidates;
+  }
+
+  /**
+   * Moves to the next period which has candidates.
+   *
+   * @return false if no more periods are to be searched
+   */
+  private boolean nextPeriod() {
+    int noCandidateIncrementCount = 0;
+    final int maxIncrementCount = Recur.getMaxIncrementCount();
+
+    while (true) {
+      if ((periodCheck != null) && !periodCheck.getAsBoolean()) {
+        return false;
+      }
+
+      if (started) {
+        periodIndex++;
+      } else {
+        started = true;
+      }
+
+      final LongList periodCandidates = periodCandidates(periodIndex);
+
+      if (periodCandidates.size > 0) {
+        candidates = periodCandidates;
+        pos = 0;
+        periodOrdinal = ordinal;
+        periodLast = last;
+        return true;
+      }
+
+      if (skippable) {
+        if (timeLimits == null) {
+          skipImpossiblePeriods();
+        } else {
+          skipExcludedTimes();
+        }
+      }
+
+      noCandidateIncrementCount++;
+      if ((maxIncrementCount > 0) &&
+              (noCandidateIncrementCount > maxIncrementCount)) {
+        abandoned = true;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Moves past the periods following the current one which have no
+   * day the rule can occur on, so the next one examined is the first
+   * which may have candidates.
+   */
+  private void skipImpossiblePeriods() {
+    final long startDay = Gregorian.epochDayOf(periodStart(periodIndex + 1));
+    final long day = feasibility.nextDay(
+            DayFeasibility.periodFirstDay(rule.getFrequency(), startDay));
+
+    if (day <= startDay) {
+      return;
+    }
+
+    // Periods before this one end before the day
+    final long index =
+            periodIndexBefore(toEpoch(day * Gregorian.MILLIS_PER_DAY));
+    if (index > periodIndex + 1) {
+      periodIndex = index - 1;
+    }
+  }
+
+  /**
+   * Moves past the sub-daily periods following the current one which
+   * start in an hour, minute or second the rule cannot occur in.
+   *
+   * <p>The candidates of such a period all fall in the hour, minute or
+   * second its start is in. The periods are elapsed time so the local
+   * start of each is found from the offset of the first skipped, and
+   * the jump stops at the next change of offset.</p>
+   */
+  private void skipExcludedTimes() {
+    final long startEpoch = seed + (periodIndex + 1) * periodMillis;
+    final long start = toLocal(startEpoch);
+    final long unitStart = timeLimits.unitStart(start);
+    final long possible = timeLimits.next(unitStart, feasibility);
+
+    if ((possible <= unitStart) || (possible == Long.MAX_VALUE)) {
+      return;
+    }
+
+    final long transition = nextTransition(startEpoch);
+    if (transition == Long.MIN_VALUE) {
+      return;
+    }
+
+    // Periods starting before this are in excluded times
+    final long target = Math.min(possible - (start - startEpoch),
+                                 transition);
+    final long index = periodIndexBefore(target);
+    if (index > periodIndex) {
+      periodIndex = index;
+    }
+  }
+
+  /**
+   * As {@link #skipImpossiblePeriods()} going backwards. The candidates
+   * of the periods before the given one fall before its start.
+   */
+  private long previousPossibleDay(final long index) {
+    final long startDay = Gregorian.epochDayOf(periodStart(index));
+    final long day = feasibility.previousDay(startDay - 1);
+
+    if (day == Long.MIN_VALUE) {
+      return -1;
+    }
+
+    if (day >= startDay - 1) {
+      return index - 1;
+    }
+
+    // Periods from this one on start after the day
+    final long before = DayFeasibility.periodStartBefore(
+            rule.getFrequency(), day) * Gregorian.MILLIS_PER_DAY;
+    return Math.min(periodIndexBefore(toEpoch(before)), index - 1);
+  }
+
+  /**
+   * As {@link #skipExcludedTimes()} going backwards. The jump stops at
+   * the last change of offset before the period so the local start of
+   * each period skipped is found from the offset of the one given.
+   */
+  private long previousIncludedTime(final long index) {
+    final long startEpoch = seed + (index - 1) * periodMillis;
+    final long start = toLocal(startEpoch);
+    final long unitStart = timeLimits.unitStart(start);
+    final long possible = timeLimits.previous(unitStart, feasibility);
+
+    if (possible == Long.MIN_VALUE) {
+      return -1;
+    }
+
+    if (possible >= unitStart) {
+      return index - 1;
+    }
+
+    // Periods starting from this are in excluded times
+    long target = possible + timeLimits.getUnit() - (start - startEpoch);
+
+    long transition = nextTransition(target);
+    while (transition <= startEpoch) {
+      if (transition == Long.MIN_VALUE) {
+        return index - 1;
+      }
+
+      target = transition;
+      transition = nextTransition(transition);
+    }
+
+    return Math.min(periodIndexBefore(target), index - 1);
+  }
+}
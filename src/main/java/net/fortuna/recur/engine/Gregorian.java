@@ -0,0 +1,267 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.Calendar;
+
+/**
+ * Proleptic Gregorian calendar arithmetic on primitive values.
+ *
+ * <p>Dates are represented as epoch days - the number of days since
+ * 1970-01-01. Local date-times are represented as local millis - the
+ * wall clock time expressed as milliseconds since 1970-01-01T00:00 as
+ * if it were UTC.</p>
+ *
+ * <p>Year, month and day are returned together packed into an int
+ * (see {@link #civil(long)}) to avoid allocating. Months are 1 based
+ * and days of the week use the {@link Calendar} constants.</p>
+ *
+ * <p>Weeks follow RFC5545 - a week starts on the given first day of
+ * the week and the first week of a year is the first which has at
+ * least 4 days in that year.</p>
+ */
+public final class Gregorian {
+  public static final long MILLIS_PER_SECOND = 1000;
+
+  public static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+
+  public static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+  public static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+  /* Days from 0000-03-01 to 1970-01-01 */
+  private static final long DAYS_0000_TO_1970 = 719468;
+
+  private static final long DAYS_PER_ERA = 146097;
+
+  private Gregorian() {
+  }
+
+  /**
+   * @param year the year
+   * @param month 1 - 12
+   * @param day day of the month
+   * @return the epoch day
+   */
+  public static long epochDay(final int year,
+                              final int month,
+                              final int day) {
+    final long y = (month <= 2) ? year - 1 : year;
+    final long era = Math.floorDiv(y, 400);
+    final long yoe = y - era * 400;
+    final long doy = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 +
+            day - 1;
+    final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+    return era * DAYS_PER_ERA + doe - DAYS_0000_TO_1970;
+  }
+
+  /**
+   * @param localMillis a local date-time
+   * @return the epoch day of the date
+   */
+  public static long epochDayOf(final long localMillis) {
+    return Math.floorDiv(localMillis, MILLIS_PER_DAY);
+  }
+
+  /**
+   * @param localMillis a local date-time
+   * @return milliseconds since the start of the day
+   */
+  public static long millisOfDay(final long localMillis) {
+    return Math.floorMod(localMillis, MILLIS_PER_DAY);
+  }
+
+  /**
+   * @param localMillis a local date-time
+   * @return the hour of the day
+   */
+  public static int hourOf(final long localMillis) {
+    return (int)(millisOfDay(localMillis) / MILLIS_PER_HOUR);
+  }
+
+  /**
+   * @param localMillis a local date-time
+   * @return the minute of the hour
+   */
+  public static int minuteOf(final long localMillis) {
+    return (int)(millisOfDay(localMillis) / MILLIS_PER_MINUTE % 60);
+  }
+
+  /**
+   * @param localMillis a local date-time
+   * @return the second of the minute
+   */
+  public static int secondOf(final long localMillis) {
+    return (int)(millisOfDay(localMillis) / MILLIS_PER_SECOND % 60);
+  }
+
+  /**
+   * @param epochDay the epoch day
+   * @return year, month and day packed - see {@link #year(int)},
+   *         {@link #month(int)} and {@link #day(int)}
+   */
+  public static int civil(final long epochDay) {
+    final long z = epochDay + DAYS_0000_TO_1970;
+    final long era = Math.floorDiv(z, DAYS_PER_ERA);
+    final long doe = z - era * DAYS_PER_ERA;
+    final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final long mp = (5 * doy + 2) / 153;
+    final int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+    final int month = (int)((mp < 10) ? mp + 3 : mp - 9);
+    final int year = (int)(yoe + era * 400 + ((month <= 2) ? 1 : 0));
+
+    return (year << 9) | (month << 5) | day;
+  }
+
+  /**
+   * @param civil packed value from {@link #civil(long)}
+   * @return the year
+   */
+  public static int year(final int civil) {
+    return civil >> 9;
+  }
+
+  /**
+   * @param civil packed value from {@link #civil(long)}
+   * @return the month 1 - 12
+   */
+  public static int month(final int civil) {
+    return (civil >> 5) & 15;
+  }
+
+  /**
+   * @param civil packed value from {@link #civil(long)}
+   * @return the day of the month
+   */
+  public static int day(final int civil) {
+    return civil & 31;
+  }
+
+  public static boolean isLeap(final int year) {
+    return ((year & 3) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+  }
+
+  public static int lengthOfYear(final int year) {
+    return isLeap(year) ? 366 : 365;
+  }
+
+  /**
+   * @param year the year
+   * @param month 1 - 12
+   * @return number of days in the month
+   */
+  public static int lengthOfMonth(final int year,
+                                  final int month) {
+    switch (month) {
+      case 2:
+        return isLeap(year) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * @param epochDay the epoch day
+   * @return day of the week - Calendar.SUNDAY to Calendar.SATURDAY
+   */
+  public static int dayOfWeek(final long epochDay) {
+    // 1970-01-01 was a Thursday
+    return Math.floorMod(epochDay + 4, 7) + Calendar.SUNDAY;
+  }
+
+  /**
+   * @param epochDay the epoch day
+   * @return the day of the year - 1 based
+   */
+  public static int dayOfYear(final long epochDay) {
+    return (int)(epochDay - epochDay(year(civil(epochDay)), 1, 1)) + 1;
+  }
+
+  /**
+   * @param epochDay the epoch day
+   * @param firstDayOfWeek Calendar.SUNDAY to Calendar.SATURDAY
+   * @return the epoch day of the start of the week containing the day
+   */
+  public static long weekStart(final long epochDay,
+                               final int firstDayOfWeek) {
+    return epochDay - Math.floorMod(dayOfWeek(epochDay) - firstDayOfWeek,
+                                    7);
+  }
+
+  /**
+   * @param weekYear the year
+   * @param firstDayOfWeek Calendar.SUNDAY to Calendar.SATURDAY
+   * @return the epoch day of the start of week 1
+   */
+  public static long week1Start(final int weekYear,
+                                final int firstDayOfWeek) {
+    final long jan1 = epochDay(weekYear, 1, 1);
+    final int offset = Math.floorMod(dayOfWeek(jan1) - firstDayOfWeek, 7);
+
+    if (offset <= 3) {
+      // Week contains at least 4 days of the year
+      return jan1 - offset;
+    }
+
+    return jan1 + 7 - offset;
+  }
+
+  /**
+   * @param epochDay the epoch day
+   * @param firstDayOfWeek Calendar.SUNDAY to Calendar.SATURDAY
+   * @return the year the week containing the day is numbered in
+   */
+  public static int weekYear(final long epochDay,
+                             final int firstDayOfWeek) {
+    final int year = year(civil(epochDay));
+
+    if (epochDay < week1Start(year, firstDayOfWeek)) {
+      return year - 1;
+    }
+
+    if (epochDay >= week1Start(year + 1, firstDayOfWeek)) {
+      return year + 1;
+    }
+
+    return year;
+  }
+
+  /**
+   * @param weekYear the year
+   * @param firstDayOfWeek Calendar.SUNDAY to Calendar.SATURDAY
+   * @return 52 or 53
+   */
+  public static int weeksInYear(final int weekYear,
+                                final int firstDayOfWeek) {
+    return (int)((week1Start(weekYear + 1, firstDayOfWeek) -
+            week1Start(weekYear, firstDayOfWeek)) / 7);
+  }
+
+  /**
+   * Adds months to a local date-time. The day of the month is reduced
+   * to the last day of the resulting month where necessary.
+   *
+   * @param localMillis a local date-time
+   * @param months number of months to add
+   * @return the local date-time
+   */
+  public static long plusMonths(final long localMillis,
+                                final long months) {
+    final int civil = civil(epochDayOf(localMillis));
+    final long m = year(civil) * 12L + month(civil) - 1 + months;
+    final int year = (int)Math.floorDiv(m, 12);
+    final int month = Math.floorMod(m, 12) + 1;
+    final int day = Math.min(day(civil), lengthOfMonth(year, month));
+
+    return epochDay(year, month, day) * MILLIS_PER_DAY +
+            millisOfDay(localMillis);
+  }
+}
@@ -0,0 +1,40 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.BasicTimeZone;
+import com.ibm.icu.util.TimeZone;
+import com.ibm.icu.util.TimeZoneTransition;
+
+/**
+ * Takes offsets from an ICU timezone.
+ */
+class IcuZoneConverter extends ZoneConverter {
+  /**
+   * @param tz the timezone
+   */
+  IcuZoneConverter(final TimeZone tz) {
+    super(tz);
+  }
+
+  @Override
+  public int getOffset(final long epochMillis) {
+    return getTimeZone().getOffset(epochMillis);
+  }
+
+  @Override
+  public long nextTransition(final long epochMillis) {
+    if (!(getTimeZone() instanceof BasicTimeZone)) {
+      return Long.MIN_VALUE;
+    }
+
+    final TimeZoneTransition tzt = ((BasicTimeZone)getTimeZone())
+            .getNextTransition(epochMillis, false);
+    if (tzt == null) {
+      return Long.MAX_VALUE;
+    }
+
+    return tzt.getTime();
+  }
+}
@@ -0,0 +1,89 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.TimeZone;
+
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Takes offsets from java.time zone rules. The offset is constant
+ * between transitions so the interval containing the last instant
+ * evaluated is kept and lookups inside it need no further work.
+ * Successive occurrences are usually in the same interval.
+ */
+class JavaTimeZoneConverter extends ZoneConverter {
+  private final ZoneRules rules;
+
+  /* The offset applies from validFrom (inclusive) to validTo */
+  private long validFrom = Long.MAX_VALUE;
+
+  private long validTo = Long.MIN_VALUE;
+
+  private int offset;
+
+  /**
+   * @param tz the timezone
+   * @param rules java.time rules for the same zone
+   */
+  JavaTimeZoneConverter(final TimeZone tz,
+                        final ZoneRules rules) {
+    super(tz);
+    this.rules = rules;
+
+    if (rules.isFixedOffset()) {
+      offset = rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000;
+      validFrom = Long.MIN_VALUE;
+      validTo = Long.MAX_VALUE;
+    }
+  }
+
+  @Override
+  public int getOffset(final long epochMillis) {
+    if ((epochMillis >= validFrom) && (epochMillis < validTo)) {
+      return offset;
+    }
+
+    final Instant instant = Instant.ofEpochMilli(epochMillis);
+    offset = rules.getOffset(instant).getTotalSeconds() * 1000;
+
+    /* Transitions fall on whole seconds. Asking for the one before the
+       following millisecond includes a transition at this instant. */
+    final ZoneOffsetTransition prev =
+            rules.previousTransition(instant.plusMillis(1));
+    if (prev == null) {
+      validFrom = Long.MIN_VALUE;
+    } else {
+      validFrom = prev.toEpochSecond() * 1000;
+    }
+
+    final ZoneOffsetTransition next = rules.nextTransition(instant);
+    if (next == null) {
+      validTo = Long.MAX_VALUE;
+    } else {
+      validTo = next.toEpochSecond() * 1000;
+    }
+
+    if ((epochMillis < validFrom) || (epochMillis >= validTo)) {
+      // Not expected - don't cache
+      validFrom = Long.MAX_VALUE;
+      validTo = Long.MIN_VALUE;
+    }
+
+    return offset;
+  }
+
+  @Override
+  public long nextTransition(final long epochMillis) {
+    final ZoneOffsetTransition next =
+            rules.nextTransition(Instant.ofEpochMilli(epochMillis));
+    if (next == null) {
+      return Long.MAX_VALUE;
+    }
+
+    return next.toEpochSecond() * 1000;
+  }
+}
@@ -0,0 +1,999 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import net.fortuna.recur.NumberList;
+import net.fortuna.recur.Recur;
+import net.fortuna.recur.Recur.Frequency;
+import net.fortuna.recur.WeekDay;
+import net.fortuna.recur.WeekDayList;
+
+import java.util.Arrays;
+
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_DAY;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_HOUR;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_MINUTE;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_SECOND;
+import static net.fortuna.recur.engine.Gregorian.civil;
+import static net.fortuna.recur.engine.Gregorian.day;
+import static net.fortuna.recur.engine.Gregorian.dayOfWeek;
+import static net.fortuna.recur.engine.Gregorian.epochDay;
+import static net.fortuna.recur.engine.Gregorian.epochDayOf;
+import static net.fortuna.recur.engine.Gregorian.lengthOfMonth;
+import static net.fortuna.recur.engine.Gregorian.lengthOfYear;
+import static net.fortuna.recur.engine.Gregorian.millisOfDay;
+import static net.fortuna.recur.engine.Gregorian.month;
+import static net.fortuna.recur.engine.Gregorian.year;
+
+/**
+ * A recurrence rule compiled to arrays of primitives which expands a
+ * period into candidate local times.
+ *
+ * <p>The BY* parts are applied in the same order and with the same
+ * expand or limit behaviour as the transformers used by {@link Recur},
+ * but operate on local millis (see {@link Gregorian}) held in reusable
+ * buffers, so expanding a period does not allocate once the buffers
+ * have grown to size.</p>
+ *
+ * <p>The candidates are those of the transformers but for a local time
+ * which falls in a DST gap or is repeated at a DST change. Such a time is
+ * resolved afresh for each candidate, as RFC5545 requires - the gap
+ * moves it forward and a repeated time is the first instance - where the
+ * transformers may carry a time moved by a gap on to the following days
+ * and take the later instance of a repeated time.</p>
+ *
+ * <p>Instances may be shared between threads. The only state which
+ * changes is the table of day masks built for each shape of period
+ * (see {@link DayMask}).</p>
+ */
+public class LocalRule {
+  /* Size of the scratch array passed to candidates */
+  static final int SCRATCH_WORDS = DayMask.SCRATCH_WORDS;
+
+  /* Scope BYDAY is applied in */
+  private static final int dayLimit = 0;
+  private static final int dayWeekly = 1;
+  private static final int dayMonthly = 2;
+  private static final int dayYearly = 3;
+
+  /* Expansion stages */
+  private static final int stageMonth = 0;
+  private static final int stageWeekNo = 1;
+  private static final int stageYearDay = 2;
+  private static final int stageMonthDay = 3;
+  private static final int stageImplicitMonthDay = 4;
+  private static final int stageDay = 5;
+  private static final int stageImplicitDay = 6;
+  private static final int stageHour = 7;
+  private static final int stageMinute = 8;
+  private static final int stageSecond = 9;
+
+  /* {{0}, {1}, ... {31}} - implicit day lists without allocating */
+  static final int[][] singleValues = new int[32][];
+
+  static {
+    for (int i = 0; i < singleValues.length; i++) {
+      singleValues[i] = new int[]{i};
+    }
+  }
+
+  private final Frequency frequency;
+
+  private final int interval;
+
+  private final int count;
+
+  private final long until;
+
+  private final int firstDayOfWeek;
+
+  /* Each of these is null if the part is absent */
+  private final int[] months;
+
+  private final int[] weekNos;
+
+  private final int[] yearDays;
+
+  private final int[] monthDays;
+
+  private final int[] days;
+
+  private final int[] dayOffsets;
+
+  private final int[] hours;
+
+  private final int[] minutes;
+
+  private final int[] seconds;
+
+  private final int[] setPos;
+
+  private final int dayScope;
+
+  /* The stages applied to each period in order - BYSETPOS excluded */
+  private final int[] stages;
+
+  /* Holds the days of MONTHLY and YEARLY periods - otherwise null */
+  private final DayMask dayMask;
+
+  /* The time stages applied to the days selected by dayMask */
+  private final int[] timeStages;
+
+  /* Candidates in every period or -1 if that varies */
+  private final int periodCardinality;
+
+  /* The days the rule can occur on */
+  private final DayFeasibility feasibility;
+
+  /* The hours, minutes and seconds a sub-daily rule can occur in */
+  private final TimeLimits timeLimits;
+
+  /**
+   * @param recur the rule to compile
+   */
+  public LocalRule(final Recur recur) {
+    frequency = recur.getFrequency();
+    interval = Math.max(1, recur.getInterval());
+    count = recur.getCount();
+
+    if (recur.getUntil() == null) {
+      until = Long.MAX_VALUE;
+    } else {
+      until = recur.getUntil().getTime();
+    }
+
+    if (recur.getWeekStartDay() == null) {
+      // default week start is Monday per RFC5545
+      firstDayOfWeek = WeekDay.getCalendarDay(WeekDay.MO);
+    } else {
+      firstDayOfWeek = WeekDay.getCalendarDay(
+              WeekDay.getWeekDay(recur.getWeekStartDay()));
+    }
+
+    months = toArray(recur.getMonthList());
+    weekNos = toArray(recur.getWeekNoList());
+    yearDays = toArray(recur.getYearDayList());
+    monthDays = toArray(recur.getMonthDayList());
+    hours = toArray(recur.getHourList());
+    minutes = toArray(recur.getMinuteList());
+    seconds = toArray(recur.getSecondList());
+    setPos = toArray(recur.getSetPosList());
+
+    final WeekDayList dayList = recur.getDayList();
+    if (dayList.isEmpty()) {
+      days = null;
+      dayOffsets = null;
+    } else {
+      days = new int[dayList.size()];
+      dayOffsets = new int[dayList.size()];
+
+      for (int i = 0; i < days.length; i++) {
+        days[i] = WeekDay.getCalendarDay(dayList.get(i));
+        dayOffsets[i] = dayList.get(i).getOffset();
+      }
+    }
+
+    dayScope = deriveDayScope();
+
+    final boolean implicitMonthDay = (monthDays == null) &&
+            (((frequency == Frequency.MONTHLY) && (days == null)) ||
+                     ((frequency == Frequency.YEARLY) &&
+                              (yearDays == null) &&
+                              (weekNos == null) &&
+                              (days == null)));
+
+    final boolean implicitDay = (days == null) &&
+            ((frequency == Frequency.WEEKLY) ||
+                     ((frequency == Frequency.YEARLY) &&
+                              (yearDays == null) &&
+                              (weekNos != null) &&
+                              (monthDays == null)));
+
+    final int[] st = new int[stageSecond + 1];
+    int n = 0;
+
+    if (months != null) {
+      st[n++] = stageMonth;
+    }
+    if (weekNos != null) {
+      st[n++] = stageWeekNo;
+    }
+    if (yearDays != null) {
+      st[n++] = stageYearDay;
+    }
+    if (monthDays != null) {
+      st[n++] = stageMonthDay;
+    } else if (implicitMonthDay) {
+      st[n++] = stageImplicitMonthDay;
+    }
+    if (days != null) {
+      st[n++] = stageDay;
+    } else if (implicitDay) {
+      st[n++] = stageImplicitDay;
+    }
+    if (hours != null) {
+      st[n++] = stageHour;
+    }
+    if (minutes != null) {
+      st[n++] = stageMinute;
+    }
+    if (seconds != null) {
+      st[n++] = stageSecond;
+    }
+
+    stages = Arrays.copyOf(st, n);
+
+    if (((frequency == Frequency.MONTHLY) ||
+                 (frequency == Frequency.YEARLY)) &&
+            (weekNos == null)) {
+      dayMask = new DayMask(this, frequency);
+
+      int nt = 0;
+      for (final int stage: stages) {
+        if (stage >= stageHour) {
+          st[nt++] = stage;
+        }
+      }
+      timeStages = Arrays.copyOf(st, nt);
+    } else {
+      dayMask = null;
+      timeStages = null;
+    }
+
+    periodCardinality = derivePeriodCardinality();
+    feasibility = DayFeasibility.analyse(frequency, months, weekNos,
+                                         yearDays, monthDays, days);
+    timeLimits = TimeLimits.of(frequency, hours, minutes, seconds);
+  }
+
+  public Frequency getFrequency() {
+    return frequency;
+  }
+
+  /**
+   * @return the interval - at least 1
+   */
+  public int getInterval() {
+    return interval;
+  }
+
+  /**
+   * @return the count or -1 if the rule does not have a count
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return the until as epoch millis or Long.MAX_VALUE for none
+   */
+  public long getUntil() {
+    return until;
+  }
+
+  /**
+   * The number of candidates in every period when that is fixed by the
+   * rule: DAILY with only time of day parts, WEEKLY with those and
+   * plain BYDAY days, and the sub-daily frequencies with only the
+   * finer parts which expand them. The candidates of such a rule all
+   * fall within their own period.
+   *
+   * @return candidates per period or -1 if it varies
+   */
+  public int getPeriodCardinality() {
+    return periodCardinality;
+  }
+
+  /**
+   * @return the days the rule can occur on
+   */
+  public DayFeasibility getFeasibility() {
+    return feasibility;
+  }
+
+  /**
+   * @return the times a sub-daily rule can occur in - null for DAILY
+   *         and coarser frequencies
+   */
+  public TimeLimits getTimeLimits() {
+    return timeLimits;
+  }
+
+  /**
+   * A rule without BY parts has exactly one candidate in each period,
+   * the start of the period, provided the day of the root exists in
+   * every period.
+   *
+   * @param root local start of the first period
+   * @return true if the candidates are the period starts
+   */
+  public boolean isArithmetic(final long root) {
+    if ((stages.length > 1) || (setPos != null)) {
+      return false;
+    }
+
+    if ((stages.length == 1) &&
+            (stages[0] != stageImplicitMonthDay) &&
+            (stages[0] != stageImplicitDay)) {
+      return false;
+    }
+
+    final int civil = Gregorian.civil(Gregorian.epochDayOf(root));
+    switch (frequency) {
+      case MONTHLY:
+        return Gregorian.day(civil) <= 28;
+      case YEARLY:
+        return (Gregorian.day(civil) <= 28) ||
+                (Gregorian.month(civil) != 2);
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * @return length of a period in milliseconds for the sub-daily
+   *         frequencies, otherwise 0
+   */
+  public long getPeriodMillis() {
+    switch (frequency) {
+      case SECONDLY:
+        return interval * MILLIS_PER_SECOND;
+      case MINUTELY:
+        return interval * MILLIS_PER_MINUTE;
+      case HOURLY:
+        return interval * MILLIS_PER_HOUR;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * The local start of a period for the daily and coarser frequencies.
+   * Computed from the root so no drift accumulates from clamped days.
+   *
+   * @param root local start of the first period
+   * @param index index of the period - 0 for the first
+   * @return local start of the period
+   */
+  long periodStart(final long root,
+                          final long index) {
+    final long increments = index * interval;
+
+    switch (frequency) {
+      case DAILY:
+        return root + increments * MILLIS_PER_DAY;
+      case WEEKLY:
+        return root + increments * 7 * MILLIS_PER_DAY;
+      case MONTHLY:
+        return Gregorian.plusMonths(root, increments);
+      default: // YEARLY
+        return Gregorian.plusMonths(root, increments * 12);
+    }
+  }
+
+  /**
+   * An estimate of the index of the period containing a local time for
+   * the daily and coarser frequencies. It may be one too high or low.
+   *
+   * @param root local start of the first period
+   * @param local the local time
+   * @return estimated period index - never negative
+   */
+  long estimatePeriodIndex(final long root,
+                                  final long local) {
+    final long diff;
+    final long dayDiff = epochDayOf(local) - epochDayOf(root);
+
+    switch (frequency) {
+      case DAILY:
+        diff = dayDiff;
+        break;
+      case WEEKLY:
+        diff = dayDiff / 7;
+        break;
+      default:
+        final int rc = civil(epochDayOf(root));
+        final int lc = civil(epochDayOf(local));
+
+        if (frequency == Frequency.MONTHLY) {
+          diff = (year(lc) - year(rc)) * 12L + month(lc) - month(rc);
+        } else {
+          diff = year(lc) - year(rc);
+        }
+    }
+
+    return Math.max(0, diff / interval);
+  }
+
+  /**
+   * Periods may be skipped by their day, or their time for the
+   * sub-daily frequencies, unless BYDAY of a sub-daily rule is
+   * expanded over the week or month of the period.
+   *
+   * @return true if a cursor may skip periods without candidates
+   */
+  boolean canSkip() {
+    if (timeLimits == null) {
+      return feasibility.canSkip();
+    }
+
+    return ((days == null) || (dayScope == dayLimit)) &&
+            timeLimits.canSkip(feasibility);
+  }
+
+  /**
+   * @return a stepper for the periods of a cursor - null if the rule is
+   *         not sub-daily or needs the general stages
+   */
+  SubDailyStepper newStepper() {
+    // BYWEEKNO and an expanded BYDAY move periods into other days
+    if ((timeLimits == null) || !timeLimits.isExact() ||
+            (weekNos != null) || (setPos != null) ||
+            ((days != null) && (dayScope != dayLimit))) {
+      return null;
+    }
+
+    final int[] expandMinutes;
+    if (frequency == Frequency.HOURLY) {
+      expandMinutes = minutes;
+    } else {
+      expandMinutes = null;
+    }
+
+    final int[] expandSeconds;
+    if (frequency != Frequency.SECONDLY) {
+      expandSeconds = seconds;
+    } else {
+      expandSeconds = null;
+    }
+
+    return new SubDailyStepper(this, timeLimits,
+                               expandMinutes, expandSeconds);
+  }
+
+  /**
+   * Applies the parts which select days to a single day. For the
+   * sub-daily frequencies these all limit the periods.
+   *
+   * @param epochDay the day
+   * @param a a buffer
+   * @param b another buffer
+   * @return true if a sub-daily period may have candidates on the day
+   */
+  boolean matchesDay(final long epochDay,
+                     final LongList a,
+                     final LongList b) {
+    return days(epochDay, epochDay * MILLIS_PER_DAY, a, b).size > 0;
+  }
+
+  /**
+   * Applies the parts which select days to the start of a period.
+   *
+   * @param epochDay the day the period starts
+   * @param root local start of the first period
+   * @param a a buffer
+   * @param b another buffer
+   * @return the buffer holding the local midnight of each day selected
+   *         - unsorted and with any repeats
+   */
+  LongList days(final long epochDay,
+                final long root,
+                final LongList a,
+                final LongList b) {
+    LongList src = a;
+    LongList dst = b;
+
+    src.clear();
+    src.add(epochDay * MILLIS_PER_DAY);
+
+    for (final int stage: stages) {
+      if (stage >= stageHour) {
+        break;
+      }
+
+      dst.clear();
+      apply(stage, root, src, dst);
+
+      final LongList tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+
+    return src;
+  }
+
+  /**
+   * Expands one period into its candidates.
+   *
+   * @param periodStart local start of the period
+   * @param root local start of the first period - supplies the
+   *             implicit day of the month and day of the week
+   * @param a a buffer
+   * @param b another buffer
+   * @param scratch {@link #SCRATCH_WORDS} longs for the day masks
+   * @return the buffer holding the sorted, distinct candidates
+   */
+  LongList candidates(final long periodStart,
+                      final long root,
+                      final LongList a,
+                      final LongList b,
+                      final long[] scratch) {
+    LongList src = a;
+    LongList dst = b;
+    final int[] toApply;
+
+    src.clear();
+
+    final int year;
+    if (dayMask == null) {
+      year = 0;
+    } else {
+      year = dayMask.selectShaped(periodStart, root, scratch);
+    }
+
+    if ((dayMask == null) ||
+            ((setPos != null) && DayMask.hasRepeats(scratch))) {
+      // Positions count the repeats, which the mask does not hold
+      src.add(periodStart);
+      toApply = stages;
+    } else {
+      final long timeOfDay = millisOfDay(periodStart);
+
+      if ((setPos != null) && (timeStages.length == 0)) {
+        // Positions are ranks in the mask
+        DayMask.addByPosition(year, scratch, setPos, timeOfDay, src);
+        src.sortUnique();
+        return src;
+      }
+
+      DayMask.addDays(year, scratch, timeOfDay, src);
+      toApply = timeStages;
+    }
+
+    for (final int stage: toApply) {
+      dst.clear();
+      apply(stage, root, src, dst);
+
+      final LongList tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+
+    if (setPos != null) {
+      // Positions count any duplicates, as the transformers do
+      Arrays.sort(src.values, 0, src.size);
+      dst.clear();
+      bySetPos(src, dst);
+      dst.sortUnique();
+      return dst;
+    }
+
+    src.sortUnique();
+    return src;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void apply(final int stage,
+                     final long root,
+                     final LongList src,
+                     final LongList dst) {
+    switch (stage) {
+      case stageMonth:
+        byMonth(src, dst);
+        break;
+      case stageWeekNo:
+        byWeekNo(src, dst);
+        break;
+      case stageYearDay:
+        byYearDay(src, dst);
+        break;
+      case stageMonthDay:
+        byMonthDay(monthDays, src, dst);
+        break;
+      case stageImplicitMonthDay:
+        byMonthDay(singleValues[day(civil(epochDayOf(root)))], src, dst);
+        break;
+      case stageDay:
+        byDay(days, dayOffsets, src, dst);
+        break;
+      case stageImplicitDay:
+        byDay(singleValues[dayOfWeek(epochDayOf(root))], singleValues[0],
+              src, dst);
+        break;
+      case stageHour:
+        byTimeField(hours, MILLIS_PER_HOUR, 24,
+                    frequency.compareTo(Frequency.DAILY) >= 0,
+                    src, dst);
+        break;
+      case stageMinute:
+        byTimeField(minutes, MILLIS_PER_MINUTE, 60,
+                    frequency.compareTo(Frequency.HOURLY) >= 0,
+                    src, dst);
+        break;
+      default: // stageSecond
+        byTimeField(seconds, MILLIS_PER_SECOND, 60,
+                    frequency != Frequency.SECONDLY,
+                    src, dst);
+    }
+  }
+
+  private int derivePeriodCardinality() {
+    if ((months != null) || (weekNos != null) || (yearDays != null) ||
+            (monthDays != null) || (setPos != null)) {
+      return -1;
+    }
+
+    final int daysPerPeriod;
+    switch (frequency) {
+      case WEEKLY:
+        if (days == null) {
+          daysPerPeriod = 1;
+          break;
+        }
+
+        for (final int offset: dayOffsets) {
+          if (offset != 0) {
+            return -1;
+          }
+        }
+        daysPerPeriod = distinct(days);
+        break;
+      case DAILY:
+        if (days != null) {
+          return -1;
+        }
+        daysPerPeriod = 1;
+        break;
+      case HOURLY:
+        if ((days != null) || (hours != null)) {
+          return -1;
+        }
+        daysPerPeriod = 1;
+        break;
+      case MINUTELY:
+        if ((days != null) || (hours != null) || (minutes != null)) {
+          return -1;
+        }
+        daysPerPeriod = 1;
+        break;
+      case SECONDLY:
+        if ((days != null) || (hours != null) || (minutes != null) ||
+                (seconds != null)) {
+          return -1;
+        }
+        daysPerPeriod = 1;
+        break;
+      default:
+        return -1;
+    }
+
+    return daysPerPeriod * distinct(hours) * distinct(minutes) *
+            distinct(seconds);
+  }
+
+  /**
+   * @param vals small array of values or null
+   * @return number of different values - 1 for null
+   */
+  private static int distinct(final int[] vals) {
+    if (vals == null) {
+      return 1;
+    }
+
+    int num = 0;
+    for (int i = 0; i < vals.length; i++) {
+      boolean seen = false;
+      for (int j = 0; j < i; j++) {
+        if (vals[j] == vals[i]) {
+          seen = true;
+          break;
+        }
+      }
+
+      if (!seen) {
+        num++;
+      }
+    }
+
+    return num;
+  }
+
+  private static int[] toArray(final NumberList list) {
+    if ((list == null) || list.isEmpty()) {
+      return null;
+    }
+
+    final int[] res = new int[list.size()];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = list.get(i);
+    }
+
+    return res;
+  }
+
+  private static boolean contains(final int[] vals,
+                                  final int val) {
+    for (final int v: vals) {
+      if (v == val) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static long local(final long epochDay,
+                            final long time) {
+    return epochDay * MILLIS_PER_DAY + millisOfDay(time);
+  }
+
+  /* As Recur.deriveFilterType - a sub-daily rule with BYWEEKNO or
+     BYMONTH expands BYDAY over the week or month */
+  private int deriveDayScope() {
+    if ((frequency == Frequency.DAILY) ||
+            (yearDays != null) || (monthDays != null)) {
+      return dayLimit;
+    }
+
+    if ((frequency == Frequency.WEEKLY) || (weekNos != null)) {
+      return dayWeekly;
+    }
+
+    if ((frequency == Frequency.MONTHLY) || (months != null)) {
+      return dayMonthly;
+    }
+
+    if (frequency == Frequency.YEARLY) {
+      return dayYearly;
+    }
+
+    return dayLimit;
+  }
+
+  private void byMonth(final LongList src,
+                       final LongList dst) {
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final int c = civil(epochDayOf(t));
+
+      if (frequency != Frequency.YEARLY) {
+        if (contains(months, month(c))) {
+          dst.add(t);
+        }
+        continue;
+      }
+
+      // Each month is rolled from the last so the day stays clamped
+      int day = day(c);
+      for (final int m: months) {
+        if ((m < 1) || (m > 12)) {
+          continue;
+        }
+
+        day = Math.min(day, lengthOfMonth(year(c), m));
+        dst.add(local(epochDay(year(c), m, day), t));
+      }
+    }
+  }
+
+  private void byWeekNo(final LongList src,
+                        final LongList dst) {
+    if (src.size == 0) {
+      return;
+    }
+
+    /* As the transformers - the number of weeks is that of the week
+       year of the first date */
+    final int numWeeks = Gregorian.weeksInYear(
+            Gregorian.weekYear(epochDayOf(src.get(0)), firstDayOfWeek),
+            firstDayOfWeek);
+
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final long day = epochDayOf(t);
+      final int weekYear = Gregorian.weekYear(day, firstDayOfWeek);
+      final long week1 = Gregorian.week1Start(weekYear, firstDayOfWeek);
+      final long dayInWeek = day - Gregorian.weekStart(day, firstDayOfWeek);
+
+      for (final int w: weekNos) {
+        if ((w == 0) || (w < -53) || (w > 53)) {
+          continue;
+        }
+
+        final int week;
+        if (w > 0) {
+          if (numWeeks < w) {
+            continue;
+          }
+          week = w;
+        } else {
+          if (numWeeks < -w) {
+            continue;
+          }
+          week = numWeeks + w + 1;
+        }
+
+        dst.add(local(week1 + (week - 1) * 7L + dayInWeek, t));
+      }
+    }
+  }
+
+  private void byYearDay(final LongList src,
+                         final LongList dst) {
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final long day = epochDayOf(t);
+
+      if (frequency != Frequency.YEARLY) {
+        if (contains(yearDays, Gregorian.dayOfYear(day))) {
+          dst.add(t);
+        }
+        continue;
+      }
+
+      final int year = year(civil(day));
+      final long jan1 = epochDay(year, 1, 1);
+      final int numDays = lengthOfYear(year);
+
+      for (final int yd: yearDays) {
+        if ((yd == 0) || (yd < -366) || (yd > 366)) {
+          continue;
+        }
+
+        if (yd > 0) {
+          if (numDays >= yd) {
+            dst.add(local(jan1 + yd - 1, t));
+          }
+        } else if (numDays >= -yd) {
+          dst.add(local(jan1 + numDays + yd, t));
+        }
+      }
+    }
+  }
+
+  private void byMonthDay(final int[] vals,
+                          final LongList src,
+                          final LongList dst) {
+    final boolean expand = (frequency == Frequency.MONTHLY) ||
+            (frequency == Frequency.YEARLY);
+
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final int c = civil(epochDayOf(t));
+
+      if (!expand) {
+        if (contains(vals, day(c))) {
+          dst.add(t);
+        }
+        continue;
+      }
+
+      final long first = epochDay(year(c), month(c), 1);
+      final int numDays = lengthOfMonth(year(c), month(c));
+
+      for (final int md: vals) {
+        if ((md == 0) || (md < -31) || (md > 31)) {
+          continue;
+        }
+
+        if (md > 0) {
+          if (numDays >= md) {
+            dst.add(local(first + md - 1, t));
+          }
+        } else if (numDays >= -md) {
+          dst.add(local(first + numDays + md, t));
+        }
+      }
+    }
+  }
+
+  private void byDay(final int[] dows,
+                     final int[] offsets,
+                     final LongList src,
+                     final LongList dst) {
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final long day = epochDayOf(t);
+
+      if (dayScope == dayLimit) {
+        final int dow = dayOfWeek(day);
+        boolean matched = false;
+
+        for (int j = 0; j < dows.length; j++) {
+          if ((dows[j] == dow) && (offsets[j] == 0)) {
+            matched = true;
+            break;
+          }
+        }
+
+        if (!matched) {
+          continue;
+        }
+
+        for (int j = 0; j < dows.length; j++) {
+          if ((dows[j] == dow) && (Math.abs(offsets[j]) <= 1)) {
+            dst.add(t);
+          }
+        }
+        continue;
+      }
+
+      final long start;
+      final int numDays;
+
+      if (dayScope == dayWeekly) {
+        start = Gregorian.weekStart(day, firstDayOfWeek);
+        numDays = 7;
+      } else {
+        final int c = civil(day);
+
+        if (dayScope == dayMonthly) {
+          start = epochDay(year(c), month(c), 1);
+          numDays = lengthOfMonth(year(c), month(c));
+        } else {
+          start = epochDay(year(c), 1, 1);
+          numDays = lengthOfYear(year(c));
+        }
+      }
+
+      for (int j = 0; j < dows.length; j++) {
+        final long first = start +
+                Math.floorMod(dows[j] - dayOfWeek(start), 7);
+        final int n = (int)((start + numDays - 1 - first) / 7) + 1;
+        final int offset = offsets[j];
+
+        if (offset == 0) {
+          for (int k = 0; k < n; k++) {
+            dst.add(local(first + 7L * k, t));
+          }
+        } else if ((offset > 0) && (offset <= n)) {
+          dst.add(local(first + 7L * (offset - 1), t));
+        } else if ((offset < 0) && (offset >= -n)) {
+          dst.add(local(first + 7L * (n + offset), t));
+        }
+      }
+    }
+  }
+
+  /* Expand or limit by hour, minute or second */
+  private static void byTimeField(final int[] vals,
+                                  final long unit,
+                                  final int range,
+                                  final boolean expand,
+                                  final LongList src,
+                                  final LongList dst) {
+    for (int i = 0; i < src.size; i++) {
+      final long t = src.get(i);
+      final int cur = (int)(millisOfDay(t) / unit % range);
+
+      if (!expand) {
+        if (contains(vals, cur)) {
+          dst.add(t);
+        }
+        continue;
+      }
+
+      for (final int v: vals) {
+        // Out of range values are lenient - they move into the next unit
+        dst.add(t + (v - cur) * unit);
+      }
+    }
+  }
+
+  private void bySetPos(final LongList src,
+                        final LongList dst) {
+    final int size = src.size;
+
+    for (final int pos: setPos) {
+      if ((pos > 0) && (pos <= size)) {
+        dst.add(src.get(pos - 1));
+      } else if ((pos < 0) && (pos >= -size)) {
+        dst.add(src.get(size + pos));
+      }
+    }
+  }
+}
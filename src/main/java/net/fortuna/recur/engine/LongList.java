@@ -0,0 +1,58 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of long values which is reused rather than
+ * reallocated.
+ */
+final class LongList {
+  long[] values;
+
+  int size;
+
+  LongList() {
+    values = new long[16];
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  void add(final long val) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+
+    values[size] = val;
+    size++;
+  }
+
+  long get(final int i) {
+    return values[i];
+  }
+
+  /**
+   * Sorts the values and removes any duplicates.
+   */
+  void sortUnique() {
+    if (size < 2) {
+      return;
+    }
+
+    Arrays.sort(values, 0, size);
+
+    int n = 1;
+    for (int i = 1; i < size; i++) {
+      if (values[i] != values[n - 1]) {
+        values[n] = values[i];
+        n++;
+      }
+    }
+
+    size = n;
+  }
+}
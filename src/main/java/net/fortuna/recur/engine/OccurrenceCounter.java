@@ -0,0 +1,194 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.TimeZone;
+
+/**
+ * Counts the occurrences of a {@link LocalRule} in a window without
+ * producing them.
+ *
+ * <p>When every period of the rule has the same number of candidates
+ * (see {@link LocalRule#getPeriodCardinality()}) the periods between
+ * the ends of the window are counted by multiplication. Only the
+ * periods at the ends, and those next to a change of UTC offset where
+ * a time in a DST gap may merge with another, are expanded. Otherwise
+ * the occurrences are counted as an {@link ExpansionCursor} produces
+ * them.</p>
+ *
+ * <p>The result is the number of values {@link ExpansionCursor} would
+ * return in the window.</p>
+ */
+public final class OccurrenceCounter {
+  /* Below this many periods they are simply expanded */
+  private static final long minClosedFormPeriods = 8;
+
+  /* Largest distance of a candidate from the start of its period */
+  private static final long maxPeriodMillis = 7 * Gregorian.MILLIS_PER_DAY;
+
+  private OccurrenceCounter() {
+  }
+
+  /**
+   * @param rule the compiled rule
+   * @param tz timezone the rule is evaluated in - null for floating
+   *           time in which case all values are local millis
+   * @param seed start of the first instance as epoch millis
+   * @param from first time counted
+   * @param to last time counted
+   * @param backend supplies the timezone arithmetic
+   * @return number of occurrences from from to to inclusive -
+   *         Long.MAX_VALUE if unlimited
+   */
+  public static long count(final LocalRule rule,
+                           final TimeZone tz,
+                           final long seed,
+                           final long from,
+                           final long to,
+                           final CalendarBackend backend) {
+    if (to < from) {
+      return 0;
+    }
+
+    final int k = rule.getPeriodCardinality();
+    final ExpansionCursor periods =
+            new ExpansionCursor(rule, tz, seed, seed, true, backend);
+
+    if ((k <= 0) ||
+            (Math.min(to, periods.getUntil()) == Long.MAX_VALUE) ||
+            (periods.nextTransition(seed) == Long.MIN_VALUE)) {
+      return walk(rule, tz, seed, from, to, backend);
+    }
+
+    final long max;
+    if (rule.getCount() >= 1) {
+      max = rule.getCount();
+    } else {
+      max = Long.MAX_VALUE;
+    }
+
+    final long upTo = Math.min(upTo(periods, k, to), max);
+    if ((upTo == 0) || (from == Long.MIN_VALUE)) {
+      return upTo;
+    }
+
+    return upTo - Math.min(upTo(periods, k, from - 1), max);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static long walk(final LocalRule rule,
+                           final TimeZone tz,
+                           final long seed,
+                           final long from,
+                           final long to,
+                           final CalendarBackend backend) {
+    final ExpansionCursor cursor =
+            new ExpansionCursor(rule, tz, seed, from, true, backend);
+    long num = 0;
+
+    while (cursor.hasNext()) {
+      if (cursor.nextLong() > to) {
+        break;
+      }
+
+      num++;
+      if (num == Long.MAX_VALUE) {
+        break;
+      }
+    }
+
+    return num;
+  }
+
+  /**
+   * @param periods generates the candidates
+   * @param k candidates per period
+   * @param t a finite time
+   * @return number of occurrences on or before t ignoring any COUNT
+   */
+  private static long upTo(final ExpansionCursor periods,
+                           final int k,
+                           final long t) {
+    final long limit = Math.min(t, periods.getUntil());
+    if (limit < periods.getSeed()) {
+      return 0;
+    }
+
+    // Last period starting on or before the limit
+    final long last = periods.periodIndexBefore(limit + 1);
+
+    if (last < minClosedFormPeriods) {
+      return countPeriods(periods, 0, last + 1, limit);
+    }
+
+    // Periods 2 to last - 1 are complete
+    long num = countPeriods(periods, 0, 1, limit) +
+            (last - 2) * k +
+            countPeriods(periods, last, last + 1, limit);
+
+    /* A change of offset may merge candidates or move one between
+       periods. The periods either side of each are expanded. */
+    long covered = 1;
+    long transition = periods.nextTransition(
+            periods.periodStartEpoch(2) - maxPeriodMillis);
+    final long end = periods.periodStartEpoch(last) + maxPeriodMillis;
+
+    while (transition < end) {
+      final long q = periods.periodIndexBefore(transition + 1);
+      final long lo = Math.max(Math.max(2, q - 1), covered + 1);
+      final long hi = Math.min(last - 1, q + 1);
+
+      if (lo <= hi) {
+        num += countPeriods(periods, lo, hi, Long.MAX_VALUE) -
+                (hi - lo + 1) * k;
+        covered = hi;
+      }
+
+      transition = periods.nextTransition(transition);
+    }
+
+    return num;
+  }
+
+  /**
+   * Expands periods lo to hi inclusive.
+   *
+   * @return number of candidates from the seed up to limit which
+   *         follow those of the period before
+   */
+  private static long countPeriods(final ExpansionCursor periods,
+                                   final long lo,
+                                   final long hi,
+                                   final long limit) {
+    final long seed = periods.getSeed();
+    long last = Long.MIN_VALUE;
+
+    if (lo > 0) {
+      final LongList prev = periods.periodCandidates(lo - 1);
+      if (prev.size > 0) {
+        last = prev.get(prev.size - 1);
+      }
+    }
+
+    long num = 0;
+    for (long i = lo; i <= hi; i++) {
+      final LongList candidates = periods.periodCandidates(i);
+
+      for (int j = 0; j < candidates.size; j++) {
+        final long val = candidates.get(j);
+        if ((val < seed) || (val <= last) || (val > limit)) {
+          continue;
+        }
+
+        last = val;
+        num++;
+      }
+    }
+
+    return num;
+  }
+}
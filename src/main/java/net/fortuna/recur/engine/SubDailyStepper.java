@@ -0,0 +1,125 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import java.util.Arrays;
+
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_MINUTE;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_SECOND;
+import static net.fortuna.recur.engine.Gregorian.epochDayOf;
+import static net.fortuna.recur.engine.Gregorian.minuteOf;
+import static net.fortuna.recur.engine.Gregorian.secondOf;
+
+/**
+ * Generates the candidates of SECONDLY, MINUTELY and HOURLY periods
+ * from the local time each starts at, without the general stages of
+ * {@link LocalRule}.
+ *
+ * <p>For these frequencies the parts which select days and BYHOUR,
+ * and for the finer two BYMINUTE and for SECONDLY BYSECOND, only limit
+ * the periods. Whether a day is allowed is worked out once for each
+ * day and the time of day is looked up in the tables of
+ * {@link TimeLimits}, so a period which is not allowed costs a few
+ * divisions. The parts which expand a period - BYMINUTE and BYSECOND
+ * of HOURLY and BYSECOND of MINUTELY - give a fixed, sorted list of
+ * offsets from the start of its hour or minute.</p>
+ *
+ * <p>Rules with BYWEEKNO or BYSETPOS use the general stages. Instances
+ * are obtained from {@link LocalRule#newStepper()} and are not thread
+ * safe.</p>
+ */
+final class SubDailyStepper {
+  private final LocalRule rule;
+
+  private final TimeLimits limits;
+
+  /* true if the minute or second of the start is replaced */
+  private final boolean expandMinutes;
+
+  private final boolean expandSeconds;
+
+  /* Offsets of the candidates from the start less the replaced
+     fields - sorted and distinct */
+  private final long[] offsets;
+
+  private final LongList a = new LongList();
+
+  private final LongList b = new LongList();
+
+  /* The last day looked at and whether it is allowed */
+  private long day = Long.MIN_VALUE;
+
+  private boolean dayAllowed;
+
+  /**
+   * @param rule the rule
+   * @param limits its time limits - exact
+   * @param minutes BYMINUTE values if they expand the periods
+   * @param seconds BYSECOND values if they expand the periods
+   */
+  SubDailyStepper(final LocalRule rule,
+                  final TimeLimits limits,
+                  final int[] minutes,
+                  final int[] seconds) {
+    this.rule = rule;
+    this.limits = limits;
+    expandMinutes = minutes != null;
+    expandSeconds = seconds != null;
+
+    final int[] ms;
+    if (expandMinutes) {
+      ms = minutes;
+    } else {
+      ms = new int[]{0};
+    }
+
+    final int[] ss;
+    if (expandSeconds) {
+      ss = seconds;
+    } else {
+      ss = new int[]{0};
+    }
+
+    final LongList vals = new LongList();
+    for (final int m: ms) {
+      for (final int s: ss) {
+        // Out of range values are lenient as in the general stages
+        vals.add(m * MILLIS_PER_MINUTE + s * MILLIS_PER_SECOND);
+      }
+    }
+
+    vals.sortUnique();
+    offsets = Arrays.copyOf(vals.values, vals.size);
+  }
+
+  /**
+   * @param start local start of a period
+   * @param dst receives the candidates as local millis in ascending
+   *            order
+   */
+  void candidates(final long start,
+                  final LongList dst) {
+    final long startDay = epochDayOf(start);
+    if (startDay != day) {
+      day = startDay;
+      dayAllowed = rule.matchesDay(startDay, a, b);
+    }
+
+    if (!dayAllowed || !limits.allows(start)) {
+      return;
+    }
+
+    long base = start;
+    if (expandMinutes) {
+      base -= minuteOf(start) * MILLIS_PER_MINUTE;
+    }
+    if (expandSeconds) {
+      base -= secondOf(start) * MILLIS_PER_SECOND;
+    }
+
+    for (final long offset: offsets) {
+      dst.add(base + offset);
+    }
+  }
+}
@@ -0,0 +1,372 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import net.fortuna.recur.Recur.Frequency;
+
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_DAY;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_HOUR;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_MINUTE;
+import static net.fortuna.recur.engine.Gregorian.MILLIS_PER_SECOND;
+import static net.fortuna.recur.engine.Gregorian.epochDayOf;
+import static net.fortuna.recur.engine.Gregorian.hourOf;
+import static net.fortuna.recur.engine.Gregorian.minuteOf;
+import static net.fortuna.recur.engine.Gregorian.secondOf;
+
+/**
+ * Finds the next or previous hour, minute or second a SECONDLY,
+ * MINUTELY or HOURLY rule can have an occurrence in.
+ *
+ * <p>For these frequencies BYHOUR, and for the finer two BYMINUTE and
+ * for SECONDLY BYSECOND, limit the periods rather than expanding them,
+ * as do the parts which select days (see {@link DayFeasibility}). A
+ * period can only have candidates if it is in a possible day and its
+ * hour, minute and second are in the limiting parts, so the periods
+ * which are not can be stepped over without being expanded, going
+ * either way.</p>
+ *
+ * <p>All times are local millis. Instances are immutable.</p>
+ */
+public final class TimeLimits {
+  /* Length of the hour, minute or second a period expands within */
+  private final long unit;
+
+  /* Indexed by value - null if the part does not limit */
+  private final boolean[] hours;
+
+  private final boolean[] minutes;
+
+  private final boolean[] seconds;
+
+  /* false if a limiting part was not used */
+  private final boolean exact;
+
+  private TimeLimits(final long unit,
+                     final boolean[] hours,
+                     final boolean[] minutes,
+                     final boolean[] seconds,
+                     final boolean exact) {
+    this.unit = unit;
+    this.hours = hours;
+    this.minutes = minutes;
+    this.seconds = seconds;
+    this.exact = exact;
+  }
+
+  /**
+   * @param frequency of the rule
+   * @param hours BYHOUR values or null
+   * @param minutes BYMINUTE values or null
+   * @param seconds BYSECOND values or null
+   * @return the limits - null for DAILY and coarser frequencies
+   */
+  public static TimeLimits of(final Frequency frequency,
+                              final int[] hours,
+                              final int[] minutes,
+                              final int[] seconds) {
+    final boolean[] hourOk = allowed(hours, 23);
+    final boolean[] minuteOk = allowed(minutes, 59);
+    final boolean[] secondOk = allowed(seconds, 59);
+
+    switch (frequency) {
+      case HOURLY:
+        return new TimeLimits(MILLIS_PER_HOUR, hourOk, null, null,
+                              used(hours, hourOk));
+      case MINUTELY:
+        return new TimeLimits(MILLIS_PER_MINUTE, hourOk, minuteOk, null,
+                              used(hours, hourOk) &&
+                                      used(minutes, minuteOk));
+      case SECONDLY:
+        return new TimeLimits(MILLIS_PER_SECOND, hourOk, minuteOk,
+                              secondOk,
+                              used(hours, hourOk) &&
+                                      used(minutes, minuteOk) &&
+                                      used(seconds, secondOk));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @return true if every limiting part is used, so
+   *         {@link #allows(long)} is exact
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * @return length of the hour, minute or second a period expands
+   *         within
+   */
+  public long getUnit() {
+    return unit;
+  }
+
+  /**
+   * @param local a local time
+   * @return true if its hour, minute and second are allowed
+   */
+  public boolean allows(final long local) {
+    return matches(hours, hourOf(local)) &&
+            matches(minutes, minuteOf(local)) &&
+            matches(seconds, secondOf(local));
+  }
+
+  /**
+   * @param days the days the rule can occur on
+   * @return true if {@link #next(long, DayFeasibility)} can skip periods
+   */
+  public boolean canSkip(final DayFeasibility days) {
+    return (hours != null) || (minutes != null) || (seconds != null) ||
+            days.canSkip();
+  }
+
+  /**
+   * @param local a local time
+   * @return start of the hour, minute or second containing it - the
+   *         earliest a period starting at that time can have a
+   *         candidate
+   */
+  public long unitStart(final long local) {
+    return Math.floorDiv(local, unit) * unit;
+  }
+
+  /**
+   * @param from start of an hour, minute or second
+   * @param days the days the rule can occur on
+   * @return start of the first hour, minute or second at or after from
+   *         which can have candidates - Long.MAX_VALUE if none
+   */
+  public long next(final long from,
+                   final DayFeasibility days) {
+    long day = epochDayOf(from);
+    int hour = hourOf(from);
+    int minute = minuteOf(from);
+    int second = secondOf(from);
+
+    while (true) {
+      final long possible = days.nextDay(day);
+      if (possible == Long.MAX_VALUE) {
+        return Long.MAX_VALUE;
+      }
+
+      if (possible != day) {
+        day = possible;
+        hour = 0;
+        minute = 0;
+        second = 0;
+      }
+
+      /* Carry into the next minute, hour or day when nothing later in
+         the current one is possible */
+      final int h = nextAllowed(hours, hour);
+      if (h < 0) {
+        day++;
+        hour = 0;
+        minute = 0;
+        second = 0;
+        continue;
+      }
+
+      if (h != hour) {
+        hour = h;
+        minute = 0;
+        second = 0;
+      }
+
+      final int m = nextAllowed(minutes, minute);
+      if (m < 0) {
+        hour++;
+        minute = 0;
+        second = 0;
+        if (hour == 24) {
+          day++;
+          hour = 0;
+        }
+        continue;
+      }
+
+      if (m != minute) {
+        minute = m;
+        second = 0;
+      }
+
+      final int s = nextAllowed(seconds, second);
+      if (s < 0) {
+        minute++;
+        second = 0;
+        if (minute == 60) {
+          hour++;
+          minute = 0;
+          if (hour == 24) {
+            day++;
+            hour = 0;
+          }
+        }
+        continue;
+      }
+
+      return day * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR +
+              minute * MILLIS_PER_MINUTE + s * MILLIS_PER_SECOND;
+    }
+  }
+
+  /**
+   * As {@link #next(long, DayFeasibility)} for a walk backwards.
+   *
+   * @param from start of an hour, minute or second
+   * @param days the days the rule can occur on
+   * @return start of the last hour, minute or second at or before from
+   *         which can have candidates - Long.MIN_VALUE if none
+   */
+  public long previous(final long from,
+                       final DayFeasibility days) {
+    long day = epochDayOf(from);
+    int hour = hourOf(from);
+    int minute = minuteOf(from);
+    int second = secondOf(from);
+
+    while (true) {
+      final long possible = days.previousDay(day);
+      if (possible == Long.MIN_VALUE) {
+        return Long.MIN_VALUE;
+      }
+
+      if (possible != day) {
+        day = possible;
+        hour = 23;
+        minute = 59;
+        second = 59;
+      }
+
+      /* Borrow from the previous minute, hour or day when nothing
+         earlier in the current one is possible */
+      final int h = previousAllowed(hours, hour);
+      if (h < 0) {
+        day--;
+        hour = 23;
+        minute = 59;
+        second = 59;
+        continue;
+      }
+
+      if (h != hour) {
+        hour = h;
+        minute = 59;
+        second = 59;
+      }
+
+      final int m = previousAllowed(minutes, minute);
+      if (m < 0) {
+        hour--;
+        minute = 59;
+        second = 59;
+        if (hour < 0) {
+          day--;
+          hour = 23;
+        }
+        continue;
+      }
+
+      if (m != minute) {
+        minute = m;
+        second = 59;
+      }
+
+      final int s = previousAllowed(seconds, second);
+      if (s < 0) {
+        minute--;
+        second = 59;
+        if (minute < 0) {
+          hour--;
+          minute = 59;
+          if (hour < 0) {
+            day--;
+            hour = 23;
+          }
+        }
+        continue;
+      }
+
+      return unitStart(day * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR +
+                               minute * MILLIS_PER_MINUTE +
+                               s * MILLIS_PER_SECOND);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /**
+   * @return flags indexed by value - null if vals is null or has a
+   *         value out of range, in which case the part is not used
+   */
+  private static boolean[] allowed(final int[] vals,
+                                   final int max) {
+    if (vals == null) {
+      return null;
+    }
+
+    final boolean[] res = new boolean[max + 1];
+    for (final int val: vals) {
+      if ((val < 0) || (val > max)) {
+        return null;
+      }
+
+      res[val] = true;
+    }
+
+    return res;
+  }
+
+  private static boolean used(final int[] vals,
+                              final boolean[] ok) {
+    return (vals == null) || (ok != null);
+  }
+
+  private static boolean matches(final boolean[] ok,
+                                 final int val) {
+    return (ok == null) || ok[val];
+  }
+
+  /**
+   * @return the first value at or after from which is allowed - from
+   *         itself if the part does not limit and -1 if there is none
+   */
+  private static int nextAllowed(final boolean[] ok,
+                                 final int from) {
+    if (ok == null) {
+      return from;
+    }
+
+    for (int i = from; i < ok.length; i++) {
+      if (ok[i]) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return the last value at or before from which is allowed - from
+   *         itself if the part does not limit and -1 if there is none
+   */
+  private static int previousAllowed(final boolean[] ok,
+                                     final int from) {
+    if (ok == null) {
+      return from;
+    }
+
+    for (int i = from; i >= 0; i--) {
+      if (ok[i]) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,105 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.engine;
+
+import com.ibm.icu.util.TimeZone;
+
+/**
+ * Converts between epoch millis and local millis in a timezone without
+ * allocating. Implementations supply the offset of the zone at an
+ * instant and are obtained from a {@link CalendarBackend}. Instances
+ * are not thread safe.
+ *
+ * <p>As required by RFC5545, local times which occur twice refer to
+ * the first occurrence and local times which do not exist (in a DST
+ * gap) are interpreted using the offset before the gap, which moves
+ * them forward by the length of the gap.</p>
+ */
+public abstract class ZoneConverter {
+  private final TimeZone tz;
+
+  /* Further than any offset or run of transitions we care about */
+  private static final long window = 24 * 60 * 60 * 1000;
+
+  /**
+   * @param tz the timezone
+   */
+  protected ZoneConverter(final TimeZone tz) {
+    this.tz = tz;
+  }
+
+  public TimeZone getTimeZone() {
+    return tz;
+  }
+
+  /**
+   * @param epochMillis a UTC time
+   * @return the offset from UTC in millis at that time
+   */
+  public abstract int getOffset(long epochMillis);
+
+  /**
+   * @param epochMillis a UTC time
+   * @return the time of the first change of offset after epochMillis,
+   *         Long.MAX_VALUE if there is none or Long.MIN_VALUE if the
+   *         zone cannot tell
+   */
+  public abstract long nextTransition(long epochMillis);
+
+  /**
+   * @param epochMillis a UTC time
+   * @return the local time
+   */
+  public long toLocal(final long epochMillis) {
+    return epochMillis + getOffset(epochMillis);
+  }
+
+  /**
+   * @param localMillis a local time
+   * @return the UTC time
+   */
+  public long toEpoch(final long localMillis) {
+    final int before = getOffset(localMillis - window);
+    final int after = getOffset(localMillis + window);
+
+    if (before == after) {
+      return localMillis - before;
+    }
+
+    // A transition is near - the earlier offset wins if it is valid
+    final long early = localMillis - before;
+    if (getOffset(early) == before) {
+      return early;
+    }
+
+    final long late = localMillis - after;
+    if (getOffset(late) == after) {
+      return late;
+    }
+
+    // In the gap - the offset before moves it forward
+    return early;
+  }
+
+  /**
+   * As {@link #toEpoch(long)} but a local time which is valid with the
+   * given offset takes that offset. This keeps values which are a
+   * whole number of hours, minutes or seconds from a known time in the
+   * same half of a repeated hour.
+   *
+   * @param localMillis a local time
+   * @param offset the preferred offset in millis
+   * @return the UTC time
+   */
+  public long toEpoch(final long localMillis,
+                      final int offset) {
+    final long epochMillis = localMillis - offset;
+
+    if (getOffset(epochMillis) == offset) {
+      return epochMillis;
+    }
+
+    return toEpoch(localMillis);
+  }
+}
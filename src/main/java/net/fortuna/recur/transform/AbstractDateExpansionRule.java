@@ -5,6 +5,7 @@ import net.fortuna.recur.Occurrence;
 import net.fortuna.recur.Recur;
 import net.fortuna.recur.Recur.Frequency;
 import net.fortuna.recur.WeekDay;
+import net.fortuna.recur.util.CalendarPool;
 
 import java.io.Serializable;
 
@@ -125,6 +126,32 @@ public abstract class AbstractDateExpansionRule
                                          lenient);
     }
 
+    /**
+     * Returns a calendar obtained from getCalendarInstance to the pool.
+     * It must not be used afterwards.
+     *
+     * @param cal the calendar
+     */
+    protected static void release(final Calendar cal) {
+        CalendarPool.release(cal);
+    }
+
+    /**
+     * Get the value of a calendar field for a date.
+     *
+     * @param date
+     * @param field the Calendar field
+     * @return the value
+     */
+    protected int get(final Occurrence date,
+                      final int field) {
+        final Calendar cal = getCalendarInstance(date, true);
+        final int val = cal.get(field);
+        release(cal);
+
+        return val;
+    }
+
     /**
      * Get a date and time from cal.getTime().
      *
@@ -61,8 +61,7 @@ public class ByDayRule extends AbstractDateExpansionRule {
 
             dayList.forEach(day -> filtered.addAll(
                     getOffsetDates(transformed.stream().filter(
-                            d -> getCalendarInstance(d, true)
-                                    .get(Calendar.DAY_OF_WEEK) == WeekDay.getCalendarDay(day))
+                            d -> get(d, Calendar.DAY_OF_WEEK) == WeekDay.getCalendarDay(day))
                                               .collect(Collectors.toCollection(() -> OccurrenceList.getDateListInstance(weekDayDates))), day.getOffset())));
             weekDayDates.addAll(filtered);
         }
@@ -74,7 +73,9 @@ public class ByDayRule extends AbstractDateExpansionRule {
         @Override
         public List<Occurrence> apply(final Occurrence date) {
             final Calendar cal = getCalendarInstance(date, true);
-            if (dayList.contains(WeekDay.getWeekDay(cal))) {
+            final WeekDay weekDay = WeekDay.getWeekDay(cal);
+            release(cal);
+            if (dayList.contains(weekDay)) {
                 return Collections.singletonList(date);
             }
             return Collections.emptyList();
@@ -99,6 +100,7 @@ public class ByDayRule extends AbstractDateExpansionRule {
                 }
                 cal.add(Calendar.DAY_OF_WEEK, 1);
             }
+            release(cal);
             return retVal;
         }
     }
@@ -121,6 +123,7 @@ public class ByDayRule extends AbstractDateExpansionRule {
                 }
                 cal.add(Calendar.DAY_OF_MONTH, 1);
             }
+            release(cal);
             return retVal;
         }
     }
@@ -143,6 +146,7 @@ public class ByDayRule extends AbstractDateExpansionRule {
                 }
                 cal.add(Calendar.DAY_OF_YEAR, 1);
             }
+            release(cal);
             return retVal;
         }
     }
@@ -63,8 +63,7 @@ public class ByHourRule extends AbstractDateExpansionRule {
             Optional<Occurrence>> {
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
-            if (hourList.contains(cal.get(Calendar.HOUR_OF_DAY))) {
+            if (hourList.contains(get(date, Calendar.HOUR_OF_DAY))) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -83,6 +82,7 @@ public class ByHourRule extends AbstractDateExpansionRule {
                 cal.set(Calendar.HOUR_OF_DAY, hour);
                 retVal.add(getTime(cal, date));
             });
+            release(cal);
             return retVal;
         }
     }
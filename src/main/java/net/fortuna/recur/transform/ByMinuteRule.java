@@ -66,9 +66,7 @@ public class ByMinuteRule extends AbstractDateExpansionRule {
 
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
-
-            if (minuteList.contains(cal.get(Calendar.MINUTE))) {
+            if (minuteList.contains(get(date, Calendar.MINUTE))) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -87,6 +85,7 @@ public class ByMinuteRule extends AbstractDateExpansionRule {
                 cal.set(Calendar.MINUTE, minute);
                 retVal.add(getTime(cal, date));
             });
+            release(cal);
             return retVal;
         }
     }
@@ -64,8 +64,7 @@ public class ByMonthDayRule extends AbstractDateExpansionRule {
             implements Function<Occurrence, Optional<Occurrence>> {
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
-            if (monthDayList.contains(cal.get(Calendar.DAY_OF_MONTH))) {
+            if (monthDayList.contains(get(date, Calendar.DAY_OF_MONTH))) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -103,6 +102,7 @@ public class ByMonthDayRule extends AbstractDateExpansionRule {
                 }
                 retVal.add(getTime(cal, date));
             }
+            release(cal);
             return retVal;
         }
     }
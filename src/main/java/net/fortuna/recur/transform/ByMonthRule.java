@@ -57,9 +57,8 @@ public class ByMonthRule extends AbstractDateExpansionRule {
 
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
             // Java months are zero-based..
-            if (monthList.contains(cal.get(Calendar.MONTH) + 1)) {
+            if (monthList.contains(get(date, Calendar.MONTH) + 1)) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -81,6 +80,7 @@ public class ByMonthRule extends AbstractDateExpansionRule {
                          (month - 1) - cal.get(Calendar.MONTH));
                 retVal.add(getTime(cal, date));
             });
+            release(cal);
             return retVal;
         }
     }
@@ -55,8 +55,7 @@ public class BySecondRule extends AbstractDateExpansionRule {
             implements Function<Occurrence, Optional<Occurrence>> {
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
-            if (secondList.contains(cal.get(Calendar.SECOND))) {
+            if (secondList.contains(get(date, Calendar.SECOND))) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -75,6 +74,7 @@ public class BySecondRule extends AbstractDateExpansionRule {
                 cal.set(Calendar.SECOND, second);
                 retVal.add(getTime(cal, date));
             });
+            release(cal);
             return retVal;
         }
     }
@@ -67,8 +67,10 @@ public class ByWeekNoRule extends AbstractDateExpansionRule {
                 }
 
                 weekNoDates.add(getTime(cal, date));
+                release(cal);
             }
         }
+        release(initCal);
         return weekNoDates;
     }
 }
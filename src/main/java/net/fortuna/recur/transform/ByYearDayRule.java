@@ -61,8 +61,7 @@ public class ByYearDayRule extends AbstractDateExpansionRule {
             implements Function<Occurrence, Optional<Occurrence>> {
         @Override
         public Optional<Occurrence> apply(final Occurrence date) {
-            final Calendar cal = getCalendarInstance(date, true);
-            if (yearDayList.contains(cal.get(Calendar.DAY_OF_YEAR))) {
+            if (yearDayList.contains(get(date, Calendar.DAY_OF_YEAR))) {
                 return Optional.of(date);
             }
             return Optional.empty();
@@ -102,6 +101,7 @@ public class ByYearDayRule extends AbstractDateExpansionRule {
                 }
                 retVal.add(getTime(cal, date));
             }
+            release(cal);
             return retVal;
         }
     }
@@ -0,0 +1,192 @@
+/* ********************************************************************
+    Appropriate copyright notice
+*/
+package net.fortuna.recur.util;
+
+import com.ibm.icu.util.Calendar;
+import com.ibm.icu.util.TimeZone;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A per-thread pool of ICU calendars keyed by timezone id, first day
+ * of the week and leniency.
+ *
+ * <p>Creating a Calendar involves locale and zone lookups and a full
+ * set of field arrays, while the recurrence code often wants one just
+ * to read a single field. A calendar obtained from
+ * {@link #acquire(TimeZone, int, boolean)} may be handed back with
+ * {@link #release(Calendar)} once the caller is finished with it, and
+ * will then be returned by a later acquire on the same thread. A
+ * calendar which is never released is simply garbage collected.</p>
+ *
+ * <p>Two definitions of a zone may share an id, so a pooled calendar
+ * is only handed out if its zone also has the same rules as the one
+ * asked for. Otherwise a new calendar is created.</p>
+ *
+ * <p>Acquired calendars have 4 minimal days in the first week as
+ * RFC5545 requires. Their time must be set by the caller.</p>
+ */
+public final class CalendarPool {
+  /* Calendars kept for each key on each thread */
+  private static final int maxPerKey = 8;
+
+  /* Timezones kept on each thread - least recently used dropped */
+  private static final int maxZones = 64;
+
+  private static final LongAdder hits = new LongAdder();
+
+  private static final LongAdder misses = new LongAdder();
+
+  private static volatile boolean enabled = true;
+
+  /* Calendars for a zone indexed by first day of the week and
+     leniency - see index() */
+  private static final class ZonePool {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Calendar>[] calendars =
+            new ArrayDeque[(Calendar.SATURDAY + 1) * 2];
+  }
+
+  private static final ThreadLocal<Map<String, ZonePool>> pools =
+          ThreadLocal.withInitial(
+                  () -> new LinkedHashMap<String, ZonePool>(16, 0.75f,
+                                                            true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<String, ZonePool> eldest) {
+                      return size() > maxZones;
+                    }
+                  });
+
+  private CalendarPool() {
+  }
+
+  /**
+   * @param val false to create a new calendar for every acquire
+   */
+  public static void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * Returns a calendar from the pool for this thread or a new one.
+   *
+   * @param tz the timezone - null for the default
+   * @param firstDayOfWeek Calendar.SUNDAY to Calendar.SATURDAY
+   * @param lenient true for more relaxed
+   * @return an ICU Calendar
+   */
+  public static Calendar acquire(final TimeZone tz,
+                                 final int firstDayOfWeek,
+                                 final boolean lenient) {
+    final TimeZone zone;
+    if (tz == null) {
+      zone = TimeZone.getDefault();
+    } else {
+      zone = tz;
+    }
+
+    if (enabled) {
+      final ZonePool pool = pools.get().get(zone.getID());
+
+      if (pool != null) {
+        final ArrayDeque<Calendar> cals =
+                pool.calendars[index(firstDayOfWeek, lenient)];
+
+        if ((cals != null) && !cals.isEmpty() &&
+                TimeZones.isSameZone(cals.peek().getTimeZone(), zone)) {
+          hits.increment();
+          return cals.pop();
+        }
+      }
+    }
+
+    misses.increment();
+
+    final Calendar cal = Calendar.getInstance(zone);
+
+    // A week should have at least 4 days to be considered as such per RFC5545
+    cal.setMinimalDaysInFirstWeek(4);
+    cal.setFirstDayOfWeek(firstDayOfWeek);
+    cal.setLenient(lenient);
+
+    return cal;
+  }
+
+  /**
+   * Returns a calendar to the pool for this thread. The caller must
+   * not use it again.
+   *
+   * @param cal from {@link #acquire(TimeZone, int, boolean)}
+   */
+  public static void release(final Calendar cal) {
+    if (!enabled || (cal.getMinimalDaysInFirstWeek() != 4)) {
+      return;
+    }
+
+    final Map<String, ZonePool> zones = pools.get();
+    final String id = cal.getTimeZone().getID();
+
+    ZonePool pool = zones.get(id);
+    if (pool == null) {
+      pool = new ZonePool();
+      zones.put(id, pool);
+    }
+
+    final int i = index(cal.getFirstDayOfWeek(), cal.isLenient());
+    ArrayDeque<Calendar> cals = pool.calendars[i];
+    if (cals == null) {
+      cals = new ArrayDeque<>(maxPerKey);
+      pool.calendars[i] = cals;
+    }
+
+    if (cals.size() < maxPerKey) {
+      cals.push(cal);
+    }
+  }
+
+  /**
+   * @return number of acquires satisfied from a pool
+   */
+  public static long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of acquires which created a calendar
+   */
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return fraction of acquires satisfied from a pool - 0 if none
+   */
+  public static double getHitRate() {
+    final long h = hits.sum();
+    final long total = h + misses.sum();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    return (double)h / total;
+  }
+
+  /**
+   * Zeroes the hit and miss counts.
+   */
+  public static void resetStatistics() {
+    hits.reset();
+    misses.reset();
+  }
+
+  private static int index(final int firstDayOfWeek,
+                           final boolean lenient) {
+    return firstDayOfWeek * 2 + (lenient ? 1 : 0);
+  }
+}
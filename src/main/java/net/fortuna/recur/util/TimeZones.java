@@ -81,6 +81,19 @@ public final class TimeZones {
             || IBM_UTC_ID.equals(timezone.getID());
     }
 
+    /**
+     * Zones are identified by id, but two definitions - from different
+     * VTIMEZONE components for example - may share an id and differ.
+     * @param a a timezone
+     * @param b a timezone
+     * @return true if both have the same id and the same rules
+     */
+    public static boolean isSameZone(final TimeZone a,
+                                     final TimeZone b) {
+        return (a == b) ||
+                (a.getID().equals(b.getID()) && a.hasSameRules(b));
+    }
+
     public static TimeZone getDefault() {
         return TimeZone.getDefault();
     }
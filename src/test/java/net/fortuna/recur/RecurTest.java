@@ -33,11 +33,16 @@ package net.fortuna.recur;
 
 import com.ibm.icu.util.Calendar;
 import com.ibm.icu.util.GregorianCalendar;
+import com.ibm.icu.util.SimpleTimeZone;
 import com.ibm.icu.util.TimeZone;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import net.fortuna.recur.Recur.Frequency;
 import net.fortuna.recur.Recur.RecurResult;
+import net.fortuna.recur.engine.CalendarBackend;
+import net.fortuna.recur.engine.DescendingCursor;
+import net.fortuna.recur.engine.ExpansionCursor;
+import net.fortuna.recur.util.CalendarPool;
 import net.fortuna.recur.util.TimeZones;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +50,14 @@ import org.slf4j.LoggerFactory;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import static net.fortuna.recur.WeekDay.FR;
 import static net.fortuna.recur.WeekDay.MO;
@@ -272,6 +284,638 @@ public class RecurTest extends TestCase {
 
     }
 
+    /**
+     *
+     */
+    public void testIteratorMatchesGetDates() {
+        final OccurrenceList dates =
+                recur.getDates(seed, periodStart, periodEnd);
+        final OccurrenceIterator it = recur.iterator(seed, periodStart);
+
+        for (final Occurrence date: dates) {
+            assertTrue(it.hasNext());
+            assertEquals(date, it.next());
+        }
+
+        assertTrue(!it.hasNext() || it.next().after(periodEnd));
+    }
+
+    /**
+     *
+     */
+    public void testCountSkipAhead() {
+        final OccurrenceList expected = new OccurrenceList(dateOnly);
+        recur.getDates(seed, seed, periodEnd).forEach(date -> {
+            if (!date.before(periodStart)) {
+                expected.add(date);
+            }
+        });
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, recur.getDates(seed, periodStart, periodEnd));
+    }
+
+    /**
+     *
+     */
+    public void testCanonicalForm() {
+        final Recur canonical = fromRule(recur.getCanonicalForm());
+
+        assertEquals(recur, canonical);
+        assertEquals(recur.hashCode(), canonical.hashCode());
+        assertEquals(recur.getFingerprint(), canonical.getFingerprint());
+        assertEquals(recur.getCanonicalForm(), canonical.getCanonicalForm());
+        assertEquals(canonical.getCanonicalForm(), canonical.toString());
+        assertEquals(recur.getDates(seed, periodStart, periodEnd),
+                     canonical.getDates(seed, periodStart, periodEnd));
+    }
+
+    /**
+     *
+     */
+    public void testParseCache() {
+        final RecurParseCache cache = new RecurParseCache(4);
+        final String rule = recur.toString();
+
+        try {
+            Recur.setParseCache(cache);
+
+            final Recur cached = Recur.fromIcalendar(rule, false).getRecur();
+            final Recur hit = Recur.fromIcalendar(rule, false).getRecur();
+            assertNotSame(cached, hit);
+            assertEquals(cached, hit);
+            assertNotSame(cached, Recur.fromIcalendar(rule, true).getRecur());
+            assertEquals(recur, cached);
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+
+            // Changes to one copy are not seen by later hits
+            cached.getDayList().add(FR);
+            cached.getSetPosList().clear();
+            cached.getSetPosList().add(1);
+            final Recur later = Recur.fromIcalendar(rule, false).getRecur();
+            assertEquals(recur.getDayList(), later.getDayList());
+            assertEquals(recur.getSetPosList(), later.getSetPosList());
+            assertEquals(recur.getFingerprint(), later.getFingerprint());
+            assertEquals(recur.getDates(seed, periodStart, periodEnd),
+                         later.getDates(seed, periodStart, periodEnd));
+
+            for (int i = 1; i <= 10; i++) {
+                Recur.fromIcalendar(rule + ";COUNT=" + i, false);
+            }
+            assertTrue(cache.size() <= 4);
+            assertEquals(12 - cache.size(), cache.getEvictions());
+        } finally {
+            Recur.setParseCache(null);
+        }
+    }
+
+    /**
+     *
+     */
+    public void testExpansionCache() {
+        final ExpansionCache cache = new ExpansionCache(10000);
+
+        assertEquals(recur.getDates(seed, periodStart, periodEnd),
+                     cache.getDates(recur, seed, periodStart, periodEnd));
+        final long misses = cache.getMisses();
+        assertEquals(0, cache.getHits());
+
+        // A window inside the first is served from the cached months
+        final Occurrence mid = Occurrence.getInstanceLike(
+                new Date((periodStart.getDate().getTime() +
+                        periodEnd.getDate().getTime()) / 2), seed);
+        assertEquals(recur.getDates(seed, mid, periodEnd),
+                     cache.getDates(recur, seed, mid, periodEnd));
+        assertEquals(misses, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    /**
+     * A month abandoned after too many empty periods is not cached.
+     */
+    public void testExpansionCacheAbandoned() {
+        final int maxIncrementCount = Recur.getMaxIncrementCount();
+        final ExpansionCache cache = new ExpansionCache(10000);
+
+        try {
+            Recur.setMaxIncrementCount(3);
+
+            final OccurrenceList dates =
+                    recur.getDates(seed, periodStart, periodEnd);
+            assertFalse(dates.isEmpty());
+            assertEquals(dates,
+                         cache.getDates(recur, seed, periodStart, periodEnd));
+            assertEquals(0, cache.size());
+        } finally {
+            Recur.setMaxIncrementCount(maxIncrementCount);
+        }
+    }
+
+    /**
+     *
+     */
+    public void testExtendExpansion() {
+        final Occurrence mid = Occurrence.getInstanceLike(
+                new Date((periodStart.getDate().getTime() +
+                        periodEnd.getDate().getTime()) / 2), seed);
+
+        final Expansion first = recur.expand(seed, periodStart, mid);
+        assertEquals(recur.getDates(seed, periodStart, mid),
+                     first.getDates());
+
+        final List<Occurrence> dates = new ArrayList<>(first.getDates());
+        dates.addAll(first.extend(periodEnd).getDates());
+        assertEquals(recur.getDates(seed, periodStart, periodEnd), dates);
+
+        // The first expansion is unchanged by extending it
+        assertEquals(first.extend(periodEnd).getDates(),
+                     first.extend(periodEnd).getDates());
+    }
+
+    /**
+     *
+     */
+    public void testPagination() {
+        final OccurrenceList expected =
+                recur.getDates(seed, periodStart, null, 10000);
+        final List<Occurrence> dates = new ArrayList<>();
+
+        OccurrencePage page = recur.getPage(seed, periodStart, 7);
+        dates.addAll(page.getDates());
+        while (page.getNextPageToken() != null) {
+            assertEquals(7, page.getDates().size());
+            page = recur.getPage(seed, page.getNextPageToken(), 7);
+            dates.addAll(page.getDates());
+        }
+        assertEquals(expected, dates);
+
+        // A token is only accepted for the same seed
+        final String token = recur.getPage(seed, periodStart, 1)
+                                  .getNextPageToken();
+        try {
+            recur.getPage(periodStart, token, 1);
+            fail("Token accepted for another seed");
+        } catch (final IllegalArgumentException ignored) {
+        }
+    }
+
+    /**
+     *
+     */
+    public void testExpansionOptions() {
+        final OccurrenceList expected =
+                recur.getDates(seed, periodStart, periodEnd);
+
+        ExpansionResult res = recur.getDates(
+                seed, periodStart, periodEnd,
+                new ExpansionOptions.Builder().build());
+        assertEquals(expected, res.getDates());
+        assertNull(res.getTruncation());
+
+        res = recur.getDates(seed, periodStart, periodEnd,
+                             new ExpansionOptions.Builder()
+                                     .maxOccurrences(3).build());
+        assertEquals(expected.subList(0, 3), res.getDates());
+        assertEquals(ExpansionResult.Truncation.MaxOccurrences,
+                     res.getTruncation());
+
+        res = recur.getDates(seed, periodStart, periodEnd,
+                             new ExpansionOptions.Builder()
+                                     .maxPeriods(10).build());
+        assertTrue(res.getDates().size() < expected.size());
+        assertEquals(ExpansionResult.Truncation.MaxPeriods,
+                     res.getTruncation());
+
+        res = recur.getDates(seed, periodStart, periodEnd,
+                             new ExpansionOptions.Builder()
+                                     .timeout(0).build());
+        assertEquals(ExpansionResult.Truncation.Deadline,
+                     res.getTruncation());
+
+        res = recur.getNextDate(seed, periodStart,
+                                new ExpansionOptions.Builder()
+                                        .cancelled(() -> true).build());
+        assertTrue(res.getDates().isEmpty());
+        assertEquals(ExpansionResult.Truncation.Cancelled,
+                     res.getTruncation());
+
+        // The horizon applies to rules without a COUNT or UNTIL
+        res = recur.getDates(seed, periodStart, null,
+                             new ExpansionOptions.Builder()
+                                     .horizon(periodEnd.getDate()).build());
+        assertEquals(expected, res.getDates());
+        assertEquals(ExpansionResult.Truncation.Horizon,
+                     res.getTruncation());
+    }
+
+    /**
+     *
+     */
+    public void testFeasibility() {
+        assertFalse(recur.getFeasibility().isEmpty());
+
+        // Far more empty days between occurrences than maxIncrementCount
+        assertTrue(recur.getFeasibility().getMaxGap() >
+                           Recur.getMaxIncrementCount());
+        assertEquals(3, recur.getDates(seed, periodStart, periodEnd).size());
+        assertNotNull(recur.getNextDate(seed, periodStart));
+
+        final Recur never = fromRule("FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=30");
+        assertTrue(never.getFeasibility().isEmpty());
+        assertTrue(never.getDates(seed, periodStart, periodEnd).isEmpty());
+        assertNull(never.getNextDate(seed, periodStart));
+    }
+
+    /**
+     *
+     */
+    public void testLimitSkip() {
+        // A week of minutes between occurrences - more than maxIncrementCount
+        final OccurrenceList dates =
+                recur.getDates(seed, periodStart, periodEnd);
+        assertEquals(105, dates.size());
+        assertEquals(seed.getDate(), dates.get(0).getDate());
+        assertEquals(dateTime("20220101T090000Z").getDate(),
+                     dates.get(dates.size() - 1).getDate());
+        assertEquals(dates.get(1).getDate(),
+                     recur.getNextDate(seed, seed).getDate());
+    }
+
+    /**
+     * Sub-daily periods are elapsed time, so the hour repeated when
+     * DST ends is expanded twice with no lost or duplicated instants.
+     */
+    public void testSubDailyOverlap() {
+        final OccurrenceList dates =
+                recur.getDates(seed, periodStart, periodEnd);
+        final long first = seed.getDate().getTime() + 15 * 60000L;
+
+        assertEquals(7, dates.size());
+        for (int i = 0; i < dates.size(); i++) {
+            assertEquals(first + i * 30 * 60000L,
+                         dates.get(i).getDate().getTime());
+
+            if (i > 0) {
+                assertEquals(dates.get(i - 1).getDate(),
+                             recur.getPreviousDate(seed, dates.get(i))
+                                  .getDate());
+            }
+        }
+    }
+
+    /**
+     * A zone with the id of the seed's but other rules is not expanded
+     * with calendars pooled for the seed's zone.
+     */
+    public void testSharedZoneId() {
+        final TimeZone other = new SimpleTimeZone(0, seed.getTimeZone().getID());
+        final Occurrence otherSeed = dateTime(seed.getDate(), other);
+        final Occurrence start =
+                Occurrence.getInstanceLike(periodStart.getDate(), otherSeed);
+        final Occurrence end =
+                Occurrence.getInstanceLike(periodEnd.getDate(), otherSeed);
+
+        final OccurrenceList dates = recur.getDates(seed, periodStart, periodEnd);
+        final OccurrenceList otherDates = recur.getDates(otherSeed, start, end);
+
+        final OccurrenceList expected;
+        CalendarPool.setEnabled(false);
+        try {
+            expected = recur.getDates(otherSeed, start, end);
+        } finally {
+            CalendarPool.setEnabled(true);
+        }
+
+        assertEquals(expected, otherDates);
+        // Only the seed's zone changes offset in the window
+        assertFalse(dates.get(dates.size() - 1).getDate().equals(
+                otherDates.get(otherDates.size() - 1).getDate()));
+    }
+
+    /**
+     *
+     */
+    public void testExpandIntoMatchesGetDates() {
+        final OccurrenceList dates =
+                recur.getDates(seed, periodStart, periodEnd);
+        final long[] buffer = new long[dates.size() + 1];
+
+        final int num = recur.expandInto(seed.getDate().getTime(),
+                                         seed.getTimeZone(),
+                                         periodStart.getDate().getTime(),
+                                         periodEnd.getDate().getTime(),
+                                         buffer);
+        assertEquals(dates.size(), num);
+
+        for (int i = 0; i < num; i++) {
+            assertEquals(dates.get(i).getDate().getTime(), buffer[i]);
+        }
+    }
+
+    /**
+     * The local rule selects the same days and times as the transformers
+     * for random rules - in UTC so there are no DST changes.
+     */
+    public void testRandomExpandInto() {
+        TimeZone.setDefault(TimeZone.getTimeZone(TimeZones.UTC_ID));
+        final TimeZone utc = TimeZone.getTimeZone(TimeZones.UTC_ID);
+        final Random r = new Random(expectedCount);
+
+        for (int i = 0; i < 300; i++) {
+            final RandomCase rc = randomCase(r);
+            final Recur rule = fromRule(rc.rule);
+            final Occurrence start = dateTime(new Date(rc.start), utc);
+
+            final OccurrenceList dates = rule.getDates(
+                    start, dateTime(new Date(rc.from), utc),
+                    dateTime(new Date(rc.to), utc));
+            final long[] buffer = new long[dates.size() + 1];
+            final int num = rule.expandInto(rc.start, utc, rc.from, rc.to,
+                                            buffer);
+
+            assertEquals(rc.toString(), dates.size(), num);
+            for (int j = 0; j < num; j++) {
+                assertEquals(rc.toString(),
+                             dates.get(j).getDate().getTime(), buffer[j]);
+            }
+        }
+    }
+
+    /**
+     *
+     */
+    public void testJavaTimeBackend() {
+        final long start = seed.getDate().getTime();
+        final long end = periodEnd.getDate().getTime();
+        final ExpansionCursor icu =
+                recur.cursor(start, seed.getTimeZone(),
+                             periodStart.getDate().getTime(),
+                             CalendarBackend.ICU);
+        final ExpansionCursor javaTime =
+                recur.cursor(start, seed.getTimeZone(),
+                             periodStart.getDate().getTime(),
+                             CalendarBackend.JAVA_TIME);
+        int num = 0;
+
+        while (icu.hasNext()) {
+            final long val = icu.nextLong();
+            if (val > end) {
+                break;
+            }
+
+            assertTrue(javaTime.hasNext());
+            assertEquals(val, javaTime.nextLong());
+            num++;
+        }
+        assertTrue(num > 0);
+    }
+
+    /**
+     * A floating time in the default zone's DST gap moves forward but
+     * the following days keep their wall-clock time.
+     */
+    public void testFloatingWallClock() throws ParseException {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        final DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+        final Occurrence start =
+                new Occurrence(df.parse("20210310T023000"),
+                               null, false, false);
+        final Occurrence end =
+                new Occurrence(df.parse("20210320T000000"),
+                               null, false, false);
+
+        final OccurrenceList dates = recur.getDates(start, start, end);
+        assertEquals(10, dates.size());
+        assertEquals(df.parse("20210314T033000"), dates.get(4).getDate());
+        assertEquals(df.parse("20210315T023000"), dates.get(5).getDate());
+    }
+
+    /**
+     * With no DST in the default zone floating and date-only seeds give
+     * the dates of a seed zoned in it, for random rules.
+     */
+    public void testFloatingMatchesZoned() {
+        TimeZone.setDefault(TimeZone.getTimeZone(TimeZones.UTC_ID));
+        final TimeZone utc = TimeZone.getTimeZone(TimeZones.UTC_ID);
+        final Random r = new Random(expectedCount);
+
+        for (int i = 0; i < 300; i++) {
+            final RandomCase rc = randomCase(r);
+            final Recur rule = fromRule(rc.rule);
+
+            /* Dates have no time, so a date-only seed is as one zoned at
+               midnight for a rule without times */
+            final boolean dateOnly =
+                    !rc.rule.matches(".*(HOURLY|MINUTELY|SECONDLY|BYHOUR|" +
+                                             "BYMINUTE|BYSECOND).*");
+            final long start;
+            if (dateOnly) {
+                start = rc.start - rc.start % 86400000L;
+            } else {
+                start = rc.start;
+            }
+
+            final OccurrenceList zoned = rule.getDates(
+                    dateTime(new Date(start), utc),
+                    dateTime(new Date(rc.from), utc),
+                    dateTime(new Date(rc.to), utc));
+            final OccurrenceList floating = rule.getDates(
+                    new Occurrence(new Date(start), null, dateOnly, false),
+                    new Occurrence(new Date(rc.from), null, dateOnly, false),
+                    new Occurrence(new Date(rc.to), null, dateOnly, false));
+
+            assertEquals(rc.toString(), zoned.size(), floating.size());
+            for (int j = 0; j < zoned.size(); j++) {
+                assertEquals(rc.toString(), zoned.get(j).getDate(),
+                             floating.get(j).getDate());
+            }
+        }
+    }
+
+    /**
+     * Floating sub-daily periods are elapsed time in the default zone so
+     * the occurrences are distinct and in order through a DST gap and
+     * through the repeated hour.
+     */
+    public void testFloatingSubDaily() throws ParseException {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        final DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+
+        assertHalfHourly(df.parse("20210314T010000"),
+                         df.parse("20210314T040000"), 5);
+        assertHalfHourly(df.parse("20211107T003000"),
+                         df.parse("20211107T023000"), 7);
+    }
+
+    private void assertHalfHourly(final Date from,
+                                  final Date to,
+                                  final int num) {
+        final Occurrence start = new Occurrence(from, null, false, false);
+        final Occurrence end = new Occurrence(to, null, false, false);
+
+        final OccurrenceList dates = recur.getDates(start, start, end);
+        assertEquals(num, dates.size());
+        assertEquals(num, recur.count(start, start, end));
+
+        final Iterator<Occurrence> it = recur.iterator(start, start);
+        for (int i = 0; i < num; i++) {
+            final Date expected = new Date(from.getTime() + i * 30 * 60000L);
+            assertEquals(expected, dates.get(i).getDate());
+            assertEquals(expected, it.next().getDate());
+        }
+    }
+
+    /**
+     *
+     */
+    public void testParallelStream() {
+        final OccurrenceList dates =
+                recur.getDates(seed, periodStart, periodEnd);
+
+        assertEquals(dates,
+                     recur.stream(seed, periodStart, periodEnd)
+                          .parallel()
+                          .collect(Collectors.toList()));
+    }
+
+    /**
+     *
+     */
+    public void testBatchExpander() {
+        final List<ExpansionJob> jobs = new ArrayList<>();
+        final Recur other = fromRule("FREQ=WEEKLY;BYDAY=TU,TH");
+
+        for (int i = 0; i < 20; i++) {
+            jobs.add(new ExpansionJob(recur, seed, periodStart, periodEnd,
+                                      i));
+            jobs.add(new ExpansionJob(other, seed, periodStart, periodEnd,
+                                      -1));
+        }
+
+        final BatchExpander.BatchResult res =
+                new BatchExpander(ForkJoinPool.commonPool(), 4).expand(jobs);
+
+        for (int i = 0; i < jobs.size(); i++) {
+            assertEquals(jobs.get(i).expand(), res.getResults().get(i));
+        }
+        assertEquals(jobs.size(), res.getStatistics().getJobs());
+        assertEquals(2, res.getStatistics().getGroups());
+    }
+
+    /**
+     *
+     */
+    public void testDescendingMatchesGetDates() {
+        final OccurrenceList dates =
+                recur.getDates(seed, seed, periodEnd);
+        final ReverseOccurrenceIterator it =
+                recur.descendingIterator(seed, periodEnd);
+
+        for (int i = dates.size() - 1; i >= 0; i--) {
+            assertTrue(it.hasNext());
+            assertEquals(dates.get(i), it.next());
+        }
+        assertFalse(it.hasNext());
+
+        assertEquals(dates.get(dates.size() - 1),
+                     recur.getPreviousDate(seed, periodEnd));
+
+        final long[] buffer = new long[dates.size() + 1];
+        final int num = recur.expandInto(seed.getDate().getTime(),
+                                         seed.getTimeZone(),
+                                         seed.getDate().getTime(),
+                                         periodEnd.getDate().getTime(),
+                                         buffer);
+        final DescendingCursor cursor =
+                recur.descendingCursor(seed.getDate().getTime(),
+                                       seed.getTimeZone(),
+                                       periodEnd.getDate().getTime());
+        for (int i = num - 1; i >= 0; i--) {
+            assertEquals(buffer[i], cursor.nextLong());
+        }
+        assertFalse(cursor.hasNext());
+    }
+
+    /**
+     *
+     */
+    public void testCount() {
+        final long start = seed.getDate().getTime();
+        final long from = periodStart.getDate().getTime();
+        final long to = periodEnd.getDate().getTime();
+        final int expected =
+                recur.expandInto(start, seed.getTimeZone(), from, to,
+                                 val -> { });
+
+        assertEquals(expected,
+                     recur.count(start, seed.getTimeZone(), from, to));
+
+        // Window edges part way through a period
+        final long from2 = from + 30 * 60 * 1000;
+        final long to2 = to - 10 * 60 * 60 * 1000;
+        assertEquals(recur.expandInto(start, seed.getTimeZone(),
+                                      from2, to2, val -> { }),
+                     recur.count(start, seed.getTimeZone(), from2, to2));
+    }
+
+    /**
+     * The count is the number of dates for random rules, in zones with
+     * DST and for floating seeds.
+     */
+    public void testRandomCount() {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        final TimeZone[] zones = {
+                TimeZone.getTimeZone(TimeZones.UTC_ID),
+                TimeZone.getTimeZone("America/New_York"),
+                TimeZone.getTimeZone("Australia/Lord_Howe"),
+                null};
+        final Random r = new Random(expectedCount);
+
+        for (int i = 0; i < 400; i++) {
+            final RandomCase rc = randomCase(r);
+            final Recur rule = fromRule(rc.rule);
+
+            // Zoned, floating, UTC without a zone and date-only
+            final TimeZone tz = zones[i % zones.length];
+            final boolean utc = i % 5 == 0;
+            final boolean dateOnly = i % 7 == 0;
+
+            final Occurrence start = new Occurrence(new Date(rc.start), tz,
+                                                    dateOnly, utc);
+            final Occurrence from = Occurrence.getInstanceLike(
+                    new Date(rc.from), start);
+            final Occurrence to = Occurrence.getInstanceLike(
+                    new Date(rc.to), start);
+
+            assertEquals(rc + " " + tz + " " + utc + " " + dateOnly,
+                         rule.getDates(start, from, to).size(),
+                         rule.count(start, from, to));
+        }
+    }
+
+    /**
+     *
+     */
+    public void testCountCheckpoints() {
+        final OccurrenceList expected =
+                recur.getDates(seed, periodStart, periodEnd);
+
+        try {
+            Recur.setCountCheckpointInterval(8);
+
+            // First pass builds the index - the second resumes from it
+            assertEquals(expected,
+                         recur.getDates(seed, periodStart, periodEnd));
+            assertEquals(expected,
+                         recur.getDates(seed, periodStart, periodEnd));
+            assertEquals(expected.get(0),
+                         recur.getNextDate(seed, periodStart));
+        } finally {
+            Recur.setCountCheckpointInterval(0);
+        }
+    }
+
     /**
      *
      */
@@ -331,6 +975,12 @@ public class RecurTest extends TestCase {
             // expected
             log.info("Caught exception: " + e.getMessage());
         }
+
+        // The parser reports the problem rather than throwing
+        final RecurResult res = RecurParser.parse(recurrenceString, false);
+        assertNull(res.getRecur());
+        assertNotSame(Recur.RecurStatus.Ok, res.getStatus());
+        assertNotNull(res.getMessage());
     }
 
     /**
@@ -1008,6 +1658,389 @@ public class RecurTest extends TestCase {
                                     dateTime("20200831T000000"),
                                     dateTime("20201129T000000")));
 
+        // period index for an old seed is computed rather than stepped to
+        recur = fromRule("FREQ=MINUTELY;INTERVAL=7");
+        suite.addTest(new RecurTest(recur,
+                                    dateTime("20150101T000000Z"),
+                                    dateTime("20200101T000000Z"),
+                                    dateTime("20200101T000500Z")));
+
+        recur = fromRule("FREQ=MONTHLY;INTERVAL=5");
+        suite.addTest(new RecurTest(recur,
+                                    dateTime("19000131T100000Z"),
+                                    dateTime("20200101T000000Z"),
+                                    dateTime("20200131T100000Z")));
+
+        // COUNT rule resumed from a checkpoint
+        recur = fromRule("FREQ=DAILY;COUNT=5000;BYDAY=MO,WE,FR;BYHOUR=9,17");
+        suite.addTest(new RecurTest("testCountCheckpoints",
+                                    recur,
+                                    dateTime("20000103T090000Z"),
+                                    dateTime("20150601T000000Z"),
+                                    dateTime("20150801T000000Z"),
+                                    false));
+
+        // iterator returns the same occurrences as getDates
+        recur = fromRule("FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE,FR");
+        suite.addTest(new RecurTest("testIteratorMatchesGetDates",
+                                    recur,
+                                    dateTime("20100104T090000"),
+                                    dateTime("20150601T000000"),
+                                    dateTime("20150901T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;COUNT=30;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1");
+        suite.addTest(new RecurTest("testIteratorMatchesGetDates",
+                                    recur,
+                                    dateTime("20200105T170000"),
+                                    dateTime("20210301T000000"),
+                                    dateTime("20250101T000000"),
+                                    false));
+
+        // COUNT rules without BY parts jump to the start of the window
+        recur = fromRule("FREQ=WEEKLY;INTERVAL=3;COUNT=400");
+        suite.addTest(new RecurTest("testCountSkipAhead",
+                                    recur,
+                                    dateTime("20000103T090000Z"),
+                                    dateTime("20221001T000000Z"),
+                                    dateTime("20230101T000000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;COUNT=300");
+        suite.addTest(new RecurTest("testCountSkipAhead",
+                                    recur,
+                                    dateTime("20000128T090000Z"),
+                                    dateTime("20241001T000000Z"),
+                                    dateTime("20250101T000000Z"),
+                                    false));
+
+        // rules written differently have the same canonical form
+        recur = fromRule("BYDAY=WE,MO,WE;INTERVAL=1;FREQ=WEEKLY;" +
+                                 "BYHOUR=17,9;WKST=SU");
+        suite.addTest(new RecurTest("testCanonicalForm",
+                                    recur,
+                                    dateTime("20200106T090000Z"),
+                                    dateTime("20200106T090000Z"),
+                                    dateTime("20200301T000000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;BYDAY=MO;BYSETPOS=-1");
+        suite.addTest(new RecurTest("testParseCache",
+                                    recur,
+                                    dateTime("20200106T090000"),
+                                    dateTime("20200106T090000"),
+                                    dateTime("20200601T000000"),
+                                    false));
+
+        // a month abandoned after too many empty periods is not cached
+        recur = fromRule("FREQ=MINUTELY;INTERVAL=7;BYHOUR=9;BYMINUTE=0");
+        suite.addTest(new RecurTest("testExpansionCacheAbandoned",
+                                    recur,
+                                    dateTime("20200101T000000Z"),
+                                    dateTime("20200126T000000Z"),
+                                    dateTime("20200127T000000Z"),
+                                    false));
+
+        // windows are stitched from cached months
+        recur = fromRule("FREQ=SECONDLY;BYDAY=MO;BYMINUTE=54");
+        suite.addTest(new RecurTest("testExpansionCache",
+                                    recur,
+                                    dateTime(dateTime("20201219T120000")
+                                                     .getDate(), null),
+                                    dateTime(dateTime("20201221T000000")
+                                                     .getDate(), null),
+                                    dateTime(dateTime("20201222T000000")
+                                                     .getDate(), null),
+                                    false));
+
+        recur = fromRule("FREQ=WEEKLY;BYDAY=TU,SU;BYHOUR=0,12");
+        suite.addTest(new RecurTest("testExpansionCache",
+                                    recur,
+                                    dateTime("20200103T000000"),
+                                    dateTime("20200215T000000"),
+                                    dateTime("20200605T120000"),
+                                    false));
+
+        // an expansion resumes where it stopped
+        recur = fromRule("FREQ=MONTHLY;COUNT=40;BYDAY=MO,TU,WE,TH,FR;" +
+                                 "BYSETPOS=-1,1");
+        suite.addTest(new RecurTest("testExtendExpansion",
+                                    recur,
+                                    dateTime("20200103T090000"),
+                                    dateTime("20200601T000000"),
+                                    dateTime("20210601T000000"),
+                                    false));
+
+        // pages resume where the previous one stopped
+        recur = fromRule("FREQ=MONTHLY;BYDAY=MO,TU,WE;BYSETPOS=2,-1;COUNT=60");
+        suite.addTest(new RecurTest("testPagination",
+                                    recur,
+                                    dateTime("20200103T090000"),
+                                    dateTime("20200601T000000"),
+                                    null,
+                                    false));
+
+        // expansions stop at the limits they are given
+        recur = fromRule("FREQ=MINUTELY;INTERVAL=15;BYHOUR=9,17");
+        suite.addTest(new RecurTest("testExpansionOptions",
+                                    recur,
+                                    dateTime("20200103T090000Z"),
+                                    dateTime("20200105T000000Z"),
+                                    dateTime("20200110T000000Z"),
+                                    false));
+
+        // rules which can occur on few days skip to them
+        recur = fromRule("FREQ=DAILY;BYMONTH=2;BYMONTHDAY=29");
+        suite.addTest(new RecurTest("testFeasibility",
+                                    recur,
+                                    dateTime("20010101T090000Z"),
+                                    dateTime("20010101T000000Z"),
+                                    dateTime("20130101T000000Z"),
+                                    false));
+
+        // periods excluded by BYDAY, BYHOUR and BYMINUTE are skipped
+        recur = fromRule("FREQ=MINUTELY;BYDAY=SA;BYHOUR=9;BYMINUTE=0");
+        suite.addTest(new RecurTest("testLimitSkip",
+                                    recur,
+                                    dateTime("20200104T090000Z"),
+                                    dateTime("20200101T000000Z"),
+                                    dateTime("20220102T000000Z"),
+                                    false));
+
+        // BYDAY alone skips to the next Monday from a Saturday seed
+        recur = fromRule("FREQ=MINUTELY;BYDAY=MO");
+        suite.addTest(new RecurTest(recur,
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20210109T120000Z"),
+                                    false, 3 * 1440));
+
+        recur = fromRule("FREQ=SECONDLY;BYDAY=MO;BYHOUR=9");
+        suite.addTest(new RecurTest(recur,
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20210109T120000Z"),
+                                    false, 3 * 3600));
+
+        recur = fromRule("FREQ=SECONDLY;BYDAY=MO");
+        suite.addTest(new RecurTest(recur,
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20201219T120000Z"),
+                                    dateTime("20201221T000000Z")));
+
+        // the hour repeated at the end of DST is expanded twice
+        recur = fromRule("FREQ=HOURLY;BYMINUTE=0,30");
+        cal = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
+        cal.clear();
+        cal.set(2021, 10, 7, 0, 15);
+        start = dateTime(cal);
+        cal.set(Calendar.HOUR_OF_DAY, 2);
+        cal.set(Calendar.MINUTE, 45);
+        suite.addTest(new RecurTest("testSubDailyOverlap",
+                                    recur, start, start, dateTime(cal),
+                                    false));
+
+        // zones are told apart by their rules as well as their ids
+        recur = fromRule("FREQ=MONTHLY;BYMONTHDAY=1,15;COUNT=8");
+        cal = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
+        cal.clear();
+        cal.set(2021, 7, 1, 9, 0);
+        start = dateTime(cal);
+        cal.add(Calendar.MONTH, 4);
+        suite.addTest(new RecurTest("testSharedZoneId",
+                                    recur, start, start, dateTime(cal),
+                                    false));
+
+        // primitive expansion returns the same occurrences as getDates
+        recur = fromRule("FREQ=MONTHLY;BYDAY=2TU,-1FR;BYHOUR=9,17");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20100112T090000"),
+                                    dateTime("20150601T000000"),
+                                    dateTime("20170901T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=YEARLY;BYWEEKNO=20,-20;BYDAY=MO,SU;WKST=SU");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20000110T080000Z"),
+                                    dateTime("20150101T000000Z"),
+                                    dateTime("20300101T000000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=DAILY;COUNT=500;BYMONTH=2,3;BYMONTHDAY=-1,29");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20000101T100000"),
+                                    dateTime("20100101T000000"),
+                                    dateTime("20300101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=DAILY;BYHOUR=9,17;BYDAY=MO,WE,FR");
+        suite.addTest(new RecurTest("testParallelStream",
+                                    recur,
+                                    dateTime("20000103T090000"),
+                                    dateTime("20050101T000000"),
+                                    dateTime("20300101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;BYDAY=-1FR;UNTIL=20251231T000000");
+        suite.addTest(new RecurTest("testParallelStream",
+                                    recur,
+                                    dateOnly("19990101"),
+                                    dateOnly("19990101"),
+                                    dateOnly("20400101"),
+                                    true));
+
+        recur = fromRule("FREQ=MONTHLY;BYMONTHDAY=1,15,-1");
+        suite.addTest(new RecurTest("testBatchExpander",
+                                    recur,
+                                    dateTime("20100101T120000"),
+                                    dateTime("20150101T000000"),
+                                    dateTime("20200101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;BYDAY=MO,TU;BYSETPOS=2,-1");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("20000104T100000"),
+                                    null,
+                                    dateTime("20120301T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=WEEKLY;COUNT=40;BYDAY=SA,SU");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateOnly("20000101"),
+                                    null,
+                                    dateOnly("20000701"),
+                                    true));
+
+        recur = fromRule("FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29;UNTIL=20200301T000000Z");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("19960229T120000Z"),
+                                    null,
+                                    dateTime("20300101T000000Z"),
+                                    false));
+
+        // Going back passes over more empty periods than maxIncrementCount
+        recur = fromRule("FREQ=SECONDLY;BYMONTH=6;BYHOUR=9;BYMINUTE=0");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("20200101T000000Z"),
+                                    null,
+                                    dateTime("20200701T000000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=MINUTELY;BYHOUR=12");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("20200101T000000Z"),
+                                    null,
+                                    dateTime("20200103T115900Z"),
+                                    false));
+
+        recur = fromRule("FREQ=SECONDLY;BYMINUTE=59,4,8");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("20200101T000000Z"),
+                                    null,
+                                    dateTime("20200101T055000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=SECONDLY;INTERVAL=3;BYMINUTE=35");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime(dateTime("20200101T000000")
+                                                     .getDate(), null),
+                                    null,
+                                    dateTime(dateTime("20200101T050000")
+                                                     .getDate(), null),
+                                    false));
+
+        recur = fromRule("FREQ=DAILY;BYMONTH=2;BYMONTHDAY=29");
+        suite.addTest(new RecurTest("testDescendingMatchesGetDates",
+                                    recur,
+                                    dateTime("20000229T100000"),
+                                    null,
+                                    dateTime("20200301T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=WEEKLY;BYDAY=MO,WE,FR;BYHOUR=2,9");
+        suite.addTest(new RecurTest("testCount",
+                                    recur,
+                                    dateTime("20000103T023000"),
+                                    dateTime("20050101T000000"),
+                                    dateTime("20300101T000000"),
+                                    false));
+
+        // 02:30 moves into 03:30 on the day DST starts
+        recur = fromRule("FREQ=DAILY;BYHOUR=1,2,3;BYMINUTE=30");
+        suite.addTest(new RecurTest("testCount",
+                                    recur,
+                                    dateTime("20000103T013000"),
+                                    dateTime("20010101T000000"),
+                                    dateTime("20200101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=HOURLY;INTERVAL=5;COUNT=30000;BYMINUTE=0,30");
+        suite.addTest(new RecurTest("testCount",
+                                    recur,
+                                    dateTime("20000103T013000"),
+                                    dateTime("20010101T000000"),
+                                    dateTime("20200101T000000"),
+                                    false));
+
+        suite.addTest(new RecurTest("testRandomCount",
+                                    null, null, null, null, false));
+
+        recur = fromRule("FREQ=DAILY");
+        suite.addTest(new RecurTest("testFloatingWallClock",
+                                    recur, null, null, null, false));
+
+        suite.addTest(new RecurTest("testFloatingMatchesZoned",
+                                    null, null, null, null, false));
+
+        recur = fromRule("FREQ=MINUTELY;INTERVAL=30");
+        suite.addTest(new RecurTest("testFloatingSubDaily",
+                                    recur, null, null, null, false));
+
+        suite.addTest(new RecurTest("testRandomExpandInto",
+                                    null, null, null, null, false));
+
+        recur = fromRule("FREQ=DAILY;BYHOUR=1,2,3;BYMINUTE=30");
+        suite.addTest(new RecurTest("testJavaTimeBackend",
+                                    recur,
+                                    dateTime("20150101T013000"),
+                                    dateTime("20180101T000000"),
+                                    dateTime("20200101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=YEARLY;BYMONTH=1,7;BYDAY=1MO,-1FR;BYSETPOS=1,-1");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20000103T100000"),
+                                    dateTime("20100101T000000"),
+                                    dateTime("20300101T000000"),
+                                    false));
+
+        recur = fromRule("FREQ=MONTHLY;BYMONTHDAY=13;BYDAY=FR");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20000113T100000Z"),
+                                    dateTime("20100101T000000Z"),
+                                    dateTime("20300101T000000Z"),
+                                    false));
+
+        recur = fromRule("FREQ=MINUTELY;INTERVAL=13;BYHOUR=9");
+        suite.addTest(new RecurTest("testExpandIntoMatchesGetDates",
+                                    recur,
+                                    dateTime("20200101T090000Z"),
+                                    dateTime("20200301T000000Z"),
+                                    dateTime("20200310T000000Z"),
+                                    false));
+
         return suite;
     }
 
@@ -1058,6 +2091,131 @@ public class RecurTest extends TestCase {
         return Occurrence.getInstance(cal, false, true);
     }
 
+    private static final String[] randomFrequencies = {
+            "YEARLY", "MONTHLY", "WEEKLY", "DAILY",
+            "HOURLY", "MINUTELY", "SECONDLY"};
+
+    /* Length of the window for each of randomFrequencies */
+    private static final long[] randomWindows = {
+            6 * 366 * 86400000L, 2 * 366 * 86400000L, 366 * 86400000L,
+            120 * 86400000L, 10 * 86400000L, 86400000L, 7200000L};
+
+    private static final String[] randomDays = {
+            "MO", "TU", "WE", "TH", "FR", "SA", "SU"};
+
+    /* A rule and window for the randomized tests - times are UTC */
+    private static final class RandomCase {
+        private String rule;
+
+        private long start;
+
+        private long from;
+
+        private long to;
+
+        @Override
+        public String toString() {
+            return rule + " seed " + new Date(start) +
+                    " from " + new Date(from) + " to " + new Date(to);
+        }
+    }
+
+    private static RandomCase randomCase(final Random r) {
+        final int freq = r.nextInt(randomFrequencies.length);
+        final boolean subDaily = freq > 3;
+        final StringBuilder sb =
+                new StringBuilder("FREQ=").append(randomFrequencies[freq]);
+
+        if (r.nextInt(4) == 0) {
+            sb.append(";INTERVAL=").append(2 + r.nextInt(4));
+        }
+        final boolean counted = r.nextInt(4) == 0;
+        if (counted) {
+            sb.append(";COUNT=").append(1 + r.nextInt(60));
+        }
+        if (r.nextInt(4) == 0) {
+            sb.append(";BYMONTH=").append(randomList(r, 1, 12, false));
+        }
+        if ((freq == 0) && (r.nextInt(6) == 0)) {
+            sb.append(";BYWEEKNO=").append(randomList(r, 1, 53, true));
+        }
+        if (r.nextInt(10) == 0) {
+            sb.append(";BYYEARDAY=").append(randomList(r, 1, 366, true));
+        }
+        if (r.nextInt(4) == 0) {
+            sb.append(";BYMONTHDAY=").append(randomList(r, 1, 31, true));
+        }
+        if (r.nextInt(3) == 0) {
+            sb.append(";BYDAY=");
+            final int num = 1 + r.nextInt(3);
+            for (int i = 0; i < num; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if ((freq < 2) && (r.nextInt(3) == 0)) {
+                    sb.append((1 + r.nextInt(5)) * (r.nextBoolean() ? 1 : -1));
+                }
+                sb.append(randomDays[r.nextInt(7)]);
+            }
+        }
+        if (r.nextInt(10) < (subDaily ? 4 : 2)) {
+            sb.append(";BYHOUR=").append(randomList(r, 0, 23, false));
+        }
+        if (r.nextInt(10) < (subDaily ? 3 : 1)) {
+            sb.append(";BYMINUTE=").append(randomList(r, 0, 59, false));
+        }
+        if (r.nextInt(10) < (subDaily ? 2 : 1)) {
+            sb.append(";BYSECOND=").append(randomList(r, 0, 59, false));
+        }
+        if (r.nextInt(5) == 0) {
+            sb.append(";BYSETPOS=").append(randomList(r, 1, 5, true));
+        }
+        if (r.nextInt(5) == 0) {
+            sb.append(";WKST=").append(randomDays[r.nextInt(7)]);
+        }
+
+        final RandomCase rc = new RandomCase();
+        final long day = 86400000L;
+
+        // 2000 to 2030 on the quarter hour
+        rc.start = 946684800000L + r.nextInt(30 * 365) * day +
+                r.nextInt(96) * 900000L;
+        rc.from = rc.start - 30 * day +
+                (long)(r.nextDouble() * (subDaily ? 40 * day : 3 * 366 * day));
+        if (counted && r.nextBoolean()) {
+            rc.from = rc.start;
+        }
+        rc.to = rc.from + randomWindows[freq];
+
+        if (!counted && (r.nextInt(5) == 0)) {
+            final DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            df.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+            sb.append(";UNTIL=").append(df.format(new Date(
+                    rc.from + (long)(r.nextDouble() * randomWindows[freq]))));
+        }
+        rc.rule = sb.toString();
+
+        return rc;
+    }
+
+    private static String randomList(final Random r,
+                                     final int min,
+                                     final int max,
+                                     final boolean negative) {
+        final StringBuilder sb = new StringBuilder();
+        final int num = 1 + r.nextInt(3);
+
+        for (int i = 0; i < num; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            final int val = min + r.nextInt(max - min + 1);
+            sb.append((negative && r.nextInt(3) == 0) ? -val : val);
+        }
+
+        return sb.toString();
+    }
+
     private static Recur fromRule(final String rrule) {
         final RecurResult rres = Recur.fromIcalendar(rrule, false);
         assertEquals("Expected OK: message was " +